@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.provider;
+
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+import com.google.android.apps.muzei.api.MuzeiContract;
+
+/**
+ * Internal contract for the Artwork Analysis table of {@link MuzeiProvider}, holding values
+ * computed once from each downloaded artwork image so consumers don't need to decode the image
+ * again to get them. This table is not part of the public API.
+ *
+ * <p>Rows are keyed by image URI. Inserting a row for an image URI that already has one replaces
+ * it, and only the most recently analyzed images are kept. Each row also records the hash of
+ * the content that was analyzed, since the image at a URI may change.
+ */
+public class ArtworkAnalysisContract implements BaseColumns {
+    /**
+     * Column name of the image URI that was analyzed. Unique.
+     * <p>Type: TEXT (URI)
+     */
+    public static final String COLUMN_NAME_IMAGE_URI = "imageUri";
+    /**
+     * Column name of the hash of the image content that was analyzed, or null if unknown.
+     * <p>Type: TEXT
+     */
+    public static final String COLUMN_NAME_CONTENT_HASH = "contentHash";
+    /**
+     * Column name of the mean luminance of the image, from 0 (black) to 1 (white).
+     * <p>Type: REAL
+     */
+    public static final String COLUMN_NAME_MEAN_LUMINANCE = "meanLuminance";
+    /**
+     * Column name of the 10th percentile luminance of the image, from 0 to 1.
+     * <p>Type: REAL
+     */
+    public static final String COLUMN_NAME_LUMINANCE_P10 = "luminanceP10";
+    /**
+     * Column name of the median luminance of the image, from 0 to 1.
+     * <p>Type: REAL
+     */
+    public static final String COLUMN_NAME_LUMINANCE_MEDIAN = "luminanceMedian";
+    /**
+     * Column name of the 90th percentile luminance of the image, from 0 to 1.
+     * <p>Type: REAL
+     */
+    public static final String COLUMN_NAME_LUMINANCE_P90 = "luminanceP90";
+    /**
+     * Column name of the 256 bin luminance histogram of the image, as big-endian 32-bit counts.
+     * <p>Type: BLOB
+     */
+    public static final String COLUMN_NAME_LUMINANCE_HISTOGRAM = "luminanceHistogram";
+    /**
+     * Column name of the most common color in the image.
+     * <p>Type: INTEGER (ARGB color)
+     */
+    public static final String COLUMN_NAME_DOMINANT_COLOR = "dominantColor";
+    /**
+     * Column name of the most prominent saturated color in the image, or the dominant color if
+     * the image has no saturated colors.
+     * <p>Type: INTEGER (ARGB color)
+     */
+    public static final String COLUMN_NAME_VIBRANT_COLOR = "vibrantColor";
+    /**
+     * The MIME type of {@link #CONTENT_URI} providing artwork analysis.
+     */
+    public static final String CONTENT_TYPE
+            = "vnd.android.cursor.dir/vnd.google.android.apps.muzei.artwork_analysis";
+    /**
+     * The table name offered by this provider.
+     */
+    public static final String TABLE_NAME = "artwork_analysis";
+    /**
+     * The content:// style URL for this table.
+     */
+    public static final Uri CONTENT_URI = Uri.parse("content://" + MuzeiContract.AUTHORITY
+            + "/" + TABLE_NAME);
+
+    /**
+     * This class cannot be instantiated
+     */
+    private ArtworkAnalysisContract() {
+    }
+}
@@ -70,6 +70,14 @@ public class MuzeiProvider extends ContentProvider {
      * The incoming URI matches the SOURCE ID URI pattern
      */
     private static final int SOURCE_ID = 3;
+    /**
+     * The incoming URI matches the ARTWORK ANALYSIS URI pattern
+     */
+    private static final int ARTWORK_ANALYSIS = 4;
+    /**
+     * The number of most recently analyzed images to keep analysis rows for
+     */
+    private static final int MAX_ARTWORK_ANALYSIS_ROWS = 20;
     /**
      * The database that the provider uses as its underlying data store
      */
@@ -77,7 +85,7 @@ public class MuzeiProvider extends ContentProvider {
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 5;
     /**
      * A UriMatcher instance
      */
@@ -185,6 +193,8 @@ public class MuzeiProvider extends ContentProvider {
                 MuzeiProvider.SOURCES);
         matcher.addURI(MuzeiContract.AUTHORITY, MuzeiContract.Sources.TABLE_NAME + "/#",
                 MuzeiProvider.SOURCE_ID);
+        matcher.addURI(MuzeiContract.AUTHORITY, ArtworkAnalysisContract.TABLE_NAME,
+                MuzeiProvider.ARTWORK_ANALYSIS);
         return matcher;
     }
 
@@ -233,7 +243,8 @@ public class MuzeiProvider extends ContentProvider {
 
     @Override
     public int delete(@NonNull final Uri uri, final String selection, final String[] selectionArgs) {
-        if (MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.ARTWORK) {
+        if (MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.ARTWORK ||
+                MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.ARTWORK_ANALYSIS) {
             throw new UnsupportedOperationException("Deletes are not supported");
         } else if (MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.SOURCES ||
                 MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.SOURCE_ID) {
@@ -289,6 +300,9 @@ public class MuzeiProvider extends ContentProvider {
             case SOURCE_ID:
                 // If the pattern is for source id, returns the sources content item type.
                 return MuzeiContract.Sources.CONTENT_ITEM_TYPE;
+            case ARTWORK_ANALYSIS:
+                // If the pattern is for artwork analysis, returns the artwork analysis content type.
+                return ArtworkAnalysisContract.CONTENT_TYPE;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -300,6 +314,8 @@ public class MuzeiProvider extends ContentProvider {
             return insertArtwork(uri, values);
         } else if (MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.SOURCES) {
             return insertSource(uri, values);
+        } else if (MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.ARTWORK_ANALYSIS) {
+            return insertArtworkAnalysis(uri, values);
         } else {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -326,6 +342,24 @@ public class MuzeiProvider extends ContentProvider {
         return MuzeiContract.Artwork.CONTENT_URI;
     }
 
+    private Uri insertArtworkAnalysis(@NonNull final Uri uri, final ContentValues values) {
+        if (values == null || !values.containsKey(ArtworkAnalysisContract.COLUMN_NAME_IMAGE_URI)) {
+            throw new IllegalArgumentException("Initial values must contain image URI " + values);
+        }
+        final SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        final long rowId = db.insertWithOnConflict(ArtworkAnalysisContract.TABLE_NAME,
+                ArtworkAnalysisContract.COLUMN_NAME_IMAGE_URI, values, SQLiteDatabase.CONFLICT_REPLACE);
+        if (rowId <= 0) {
+            throw new SQLException("Failed to insert row into " + uri);
+        }
+        // Replacing a row gives it a new _ID, so the lowest IDs are the least recently analyzed
+        db.delete(ArtworkAnalysisContract.TABLE_NAME, BaseColumns._ID + " NOT IN (SELECT "
+                + BaseColumns._ID + " FROM " + ArtworkAnalysisContract.TABLE_NAME + " ORDER BY "
+                + BaseColumns._ID + " DESC LIMIT " + MAX_ARTWORK_ANALYSIS_ROWS + ")", null);
+        notifyChange(ArtworkAnalysisContract.CONTENT_URI);
+        return ArtworkAnalysisContract.CONTENT_URI;
+    }
+
     private Uri insertSource(@NonNull final Uri uri, final ContentValues initialValues) {
         if (!initialValues.containsKey(MuzeiContract.Sources.COLUMN_NAME_COMPONENT_NAME))
             throw new IllegalArgumentException("Initial values must contain component name " + initialValues);
@@ -363,6 +397,8 @@ public class MuzeiProvider extends ContentProvider {
         } else if (MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.SOURCES ||
                 MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.SOURCE_ID) {
             return querySource(uri, projection, selection, selectionArgs, sortOrder);
+        } else if (MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.ARTWORK_ANALYSIS) {
+            return queryArtworkAnalysis(uri, projection, selection, selectionArgs, sortOrder);
         } else {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -379,6 +415,17 @@ public class MuzeiProvider extends ContentProvider {
         return c;
     }
 
+    private Cursor queryArtworkAnalysis(@NonNull final Uri uri, final String[] projection,
+                                        final String selection, final String[] selectionArgs,
+                                        final String sortOrder) {
+        final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(ArtworkAnalysisContract.TABLE_NAME);
+        final SQLiteDatabase db = databaseHelper.getReadableDatabase();
+        final Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder, null);
+        c.setNotificationUri(getContext().getContentResolver(), uri);
+        return c;
+    }
+
     private Cursor querySource(@NonNull final Uri uri, final String[] projection, final String selection,
                                 final String[] selectionArgs, final String sortOrder) {
         final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
@@ -423,7 +470,8 @@ public class MuzeiProvider extends ContentProvider {
 
     @Override
     public int update(@NonNull final Uri uri, final ContentValues values, final String selection, final String[] selectionArgs) {
-        if (MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.ARTWORK) {
+        if (MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.ARTWORK ||
+                MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.ARTWORK_ANALYSIS) {
             throw new UnsupportedOperationException("Updates are not allowed: insert does an insert or update operation");
         } else if (MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.SOURCES ||
                 MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.SOURCE_ID) {
@@ -506,6 +554,21 @@ public class MuzeiProvider extends ContentProvider {
                     + MuzeiContract.Artwork.COLUMN_NAME_SOURCE_COMPONENT_NAME + ") REFERENCES "
                     + MuzeiContract.Sources.TABLE_NAME + " ("
                     + MuzeiContract.Sources.COLUMN_NAME_COMPONENT_NAME + ") ON DELETE CASCADE);");
+            createArtworkAnalysisTable(db);
+        }
+
+        private void createArtworkAnalysisTable(final SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + ArtworkAnalysisContract.TABLE_NAME + " ("
+                    + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + ArtworkAnalysisContract.COLUMN_NAME_IMAGE_URI + " TEXT UNIQUE NOT NULL,"
+                    + ArtworkAnalysisContract.COLUMN_NAME_CONTENT_HASH + " TEXT,"
+                    + ArtworkAnalysisContract.COLUMN_NAME_MEAN_LUMINANCE + " REAL,"
+                    + ArtworkAnalysisContract.COLUMN_NAME_LUMINANCE_P10 + " REAL,"
+                    + ArtworkAnalysisContract.COLUMN_NAME_LUMINANCE_MEDIAN + " REAL,"
+                    + ArtworkAnalysisContract.COLUMN_NAME_LUMINANCE_P90 + " REAL,"
+                    + ArtworkAnalysisContract.COLUMN_NAME_LUMINANCE_HISTOGRAM + " BLOB,"
+                    + ArtworkAnalysisContract.COLUMN_NAME_DOMINANT_COLOR + " INTEGER,"
+                    + ArtworkAnalysisContract.COLUMN_NAME_VIBRANT_COLOR + " INTEGER);");
         }
 
         /**
@@ -518,6 +581,14 @@ public class MuzeiProvider extends ContentProvider {
                 // at this point anyways so we'll wipe and recreate the artwork table
                 db.execSQL("DROP TABLE " + MuzeiContract.Artwork.TABLE_NAME);
                 onCreate(db);
+                return;
+            }
+            if (oldVersion < 4) {
+                createArtworkAnalysisTable(db);
+            } else if (oldVersion < 5) {
+                // The analysis can always be computed again, so recreate it with content hashes
+                db.execSQL("DROP TABLE " + ArtworkAnalysisContract.TABLE_NAME);
+                createArtworkAnalysisTable(db);
             }
         }
     }
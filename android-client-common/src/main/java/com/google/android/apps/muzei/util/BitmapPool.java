@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Process-wide pool of mutable bitmaps, bucketed by exact size and config, so that artwork
+ * decodes and copies can reuse the memory of bitmaps from previous artwork (with
+ * {@link BitmapFactory.Options#inBitmap} for decodes) instead of allocating new ones each time.
+ * Exact sizes are used since that's what <code>inBitmap</code> requires for region decodes.
+ *
+ * <p>Bitmaps given to {@link #put(Bitmap)} must no longer be used by the caller. The pool holds
+ * at most a fraction of the app's memory class, recycling the least recently pooled bitmaps
+ * beyond that.
+ */
+public class BitmapPool {
+    private static final int MEMORY_CLASS_FRACTION = 16; // pool is 1/16 of the memory class
+
+    private static BitmapPool sInstance;
+
+    private final long mMaxBytes;
+    private final Map<String, ArrayDeque<Bitmap>> mBuckets = new HashMap<>();
+    // Bitmaps don't override equals, so this finds and removes them by identity in constant time
+    private final LinkedHashSet<Bitmap> mLeastRecentlyPooled = new LinkedHashSet<>();
+    private long mBytes;
+
+    public static synchronized BitmapPool getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BitmapPool(context);
+        }
+
+        return sInstance;
+    }
+
+    private BitmapPool(Context context) {
+        ActivityManager activityManager = (ActivityManager)
+                context.getApplicationContext().getSystemService(Context.ACTIVITY_SERVICE);
+        mMaxBytes = activityManager.getMemoryClass() * 1024L * 1024L / MEMORY_CLASS_FRACTION;
+    }
+
+    private static String makeKey(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+
+    /**
+     * Removes and returns a pooled bitmap of exactly the given size and config, or null if
+     * there isn't one. Its contents are undefined.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> bucket = mBuckets.get(makeKey(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+
+        Bitmap bitmap = bucket.removeLast();
+        mLeastRecentlyPooled.remove(bitmap);
+        mBytes -= bitmap.getByteCount();
+        return bitmap;
+    }
+
+    /**
+     * Returns a mutable, transparent bitmap of the given size and config, reusing a pooled
+     * one if possible.
+     */
+    public Bitmap getOrCreate(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Sets up the given options to decode into a pooled bitmap of the given decoded size, if
+     * there is one, and to decode a bitmap that can later be pooled otherwise. If the decode
+     * doesn't return <code>options.inBitmap</code>, the caller should put it back.
+     */
+    public void setInBitmap(BitmapFactory.Options options, int width, int height) {
+        options.inMutable = true;
+        options.inBitmap = get(width, height, options.inPreferredConfig != null
+                ? options.inPreferredConfig
+                : Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Gives the bitmap to the pool for reuse, or recycles it if it can't be reused. Does
+     * nothing for null or recycled bitmaps.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        int bytes = bitmap.getByteCount();
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || bytes > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+
+        if (mLeastRecentlyPooled.contains(bitmap)) {
+            return;
+        }
+
+        String key = makeKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(key, bucket);
+        }
+
+        bucket.addLast(bitmap);
+        mLeastRecentlyPooled.addLast(bitmap);
+        mBytes += bytes;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Bitmap> it = mLeastRecentlyPooled.iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            Bitmap bitmap = it.next();
+            it.remove();
+            // Buckets are in the order their bitmaps were pooled too, so this is the first one
+            mBuckets.get(makeKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()))
+                    .removeFirst();
+            mBytes -= bitmap.getByteCount();
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Recycles all pooled bitmaps, e.g. when the system is low on memory.
+     */
+    public synchronized void clear() {
+        for (Bitmap bitmap : mLeastRecentlyPooled) {
+            bitmap.recycle();
+        }
+        mLeastRecentlyPooled.clear();
+        mBuckets.clear();
+        mBytes = 0;
+    }
+}
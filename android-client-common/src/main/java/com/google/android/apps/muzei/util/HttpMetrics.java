@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings and sizes of one call made with the {@link SharedHttpClient}, for debugging. DNS,
+ * connect and TLS times add up over redirects and retries, and are zero when a pooled
+ * connection was reused. Time to first byte is from sending the last request to receiving its
+ * response headers. Bytes are as received, before any gzip decoding.
+ */
+public class HttpMetrics {
+    final String mUrl;
+    final long mStartNanos = System.nanoTime();
+    long mDnsNanos;
+    long mConnectNanos;
+    long mConnectEndNanos;
+    long mTlsNanos;
+    long mTimeToFirstByteNanos;
+    long mTotalNanos;
+    long mLastHopEndNanos = mStartNanos;
+    long mBytes;
+    int mCode;
+    String mProtocol;
+    boolean mConnectionReused;
+    boolean mFromCache;
+    boolean mFinished;
+
+    HttpMetrics(String url) {
+        mUrl = url;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public long getDnsMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mDnsNanos);
+    }
+
+    public long getConnectMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mConnectNanos);
+    }
+
+    public long getTlsMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mTlsNanos);
+    }
+
+    public long getTimeToFirstByteMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mTimeToFirstByteNanos);
+    }
+
+    /**
+     * Returns the time from starting the call to finishing reading or closing its response
+     * body.
+     */
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mTotalNanos);
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public int getCode() {
+        return mCode;
+    }
+
+    /**
+     * Returns the protocol the response came over, e.g. <code>h2</code>, or null for
+     * responses from the cache.
+     */
+    public String getProtocol() {
+        return mProtocol;
+    }
+
+    public boolean isConnectionReused() {
+        return mConnectionReused;
+    }
+
+    public boolean isFromCache() {
+        return mFromCache;
+    }
+
+    @Override
+    public String toString() {
+        return mCode + " " + mUrl
+                + (mFromCache ? " from cache" : " over " + mProtocol
+                        + (mConnectionReused ? " (reused)" : "")
+                        + ": dns=" + getDnsMillis() + "ms"
+                        + " connect=" + getConnectMillis() + "ms"
+                        + " tls=" + getTlsMillis() + "ms"
+                        + " ttfb=" + getTimeToFirstByteMillis() + "ms")
+                + " total=" + getTotalMillis() + "ms"
+                + " bytes=" + mBytes;
+    }
+}
@@ -18,49 +18,147 @@ package com.google.android.apps.muzei.util;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v8.renderscript.Allocation;
 import android.support.v8.renderscript.Element;
 import android.support.v8.renderscript.Matrix3f;
+import android.support.v8.renderscript.RSRuntimeException;
 import android.support.v8.renderscript.RenderScript;
 import android.support.v8.renderscript.ScriptIntrinsicBlur;
 import android.support.v8.renderscript.ScriptIntrinsicColorMatrix;
+import android.util.Log;
 
+/**
+ * Process-wide RenderScript blur and desaturate engine. The RenderScript context, intrinsics and
+ * allocations are expensive to set up, so a single instance is shared: get it with
+ * {@link #acquire(Context)} and give it up with {@link #release()}. It's torn down a while after
+ * the last user releases it, so back-to-back users (e.g. successive artwork loads) reuse it.
+ *
+ * <p>Radii up to {@link #MAX_SUPPORTED_BLUR_PIXELS} are blurred with RenderScript. Larger radii,
+ * up to {@link #MAX_EXTENDED_BLUR_PIXELS}, and everything on devices where RenderScript can't be
+ * set up, fall back to {@link StackBlur}.
+ *
+ * <p>All blur methods are synchronized, so calls from multiple threads are serialized.
+ */
 public class ImageBlurrer {
-    public static final int MAX_SUPPORTED_BLUR_PIXELS = 25;
+    private static final String TAG = ImageBlurrer.class.getSimpleName();
+
+    public static final int MAX_SUPPORTED_BLUR_PIXELS = 25; // RenderScript's limit
+    public static final int MAX_EXTENDED_BLUR_PIXELS = 50;
+
+    private static final long KEEP_ALIVE_MILLIS = 60 * 1000;
+
+    // The blur intrinsic uses a gaussian with this sigma for a given radius
+    private static final float SIGMA_PER_RADIUS = 0.4f;
+    private static final float SIGMA_OFFSET = 0.6f;
+    // Incremental blurs smaller than this are too inaccurate to chain
+    private static final float MIN_INCREMENTAL_BLUR_RADIUS = 1f;
+
+    private static final Paint DITHER_PAINT = new Paint(Paint.DITHER_FLAG);
+
+    private static final Object sLock = new Object();
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static ImageBlurrer sInstance;
+    private static int sRefCount;
+
     private RenderScript mRS;
+    private BitmapPool mBitmapPool;
 
     private ScriptIntrinsicBlur mSIBlur;
     private ScriptIntrinsicColorMatrix mSIGrey;
     private Allocation mAllocationSrc;
     private Allocation mAllocationDest;
+    private Allocation mAllocationBlurred; // ping-pongs with mAllocationDest in blurKeyframes
+
+    // Pixel buffers for the Java fallback, kept between calls
+    private int[] mSrcPixels = new int[0];
+    private int[] mPixels = new int[0];
 
-    public ImageBlurrer(Context context) {
-        mRS = RenderScript.create(context);
-        mSIBlur = ScriptIntrinsicBlur.create(mRS, Element.U8_4(mRS));
-        mSIGrey = ScriptIntrinsicColorMatrix.create(mRS, Element.U8_4(mRS));
+    /**
+     * Returns the shared blurrer, creating it if needed. Every call must be balanced with a
+     * call to {@link #release()}. Creating the blurrer is slow, so avoid the main thread.
+     */
+    public static ImageBlurrer acquire(Context context) {
+        synchronized (sLock) {
+            sHandler.removeCallbacks(sDestroyRunnable);
+            if (sInstance == null) {
+                sInstance = new ImageBlurrer(context.getApplicationContext());
+            }
+            ++sRefCount;
+            return sInstance;
+        }
+    }
+
+    /**
+     * Gives up a reference obtained with {@link #acquire(Context)}. The blurrer must not be
+     * used by the caller afterwards.
+     */
+    public void release() {
+        synchronized (sLock) {
+            if (sInstance != this || sRefCount <= 0) {
+                return;
+            }
+
+            if (--sRefCount == 0) {
+                sHandler.postDelayed(sDestroyRunnable, KEEP_ALIVE_MILLIS);
+            }
+        }
     }
 
-    public Bitmap blurBitmap(Bitmap src, float radius, float desaturateAmount) {
+    private static final Runnable sDestroyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (sLock) {
+                if (sRefCount > 0 || sInstance == null) {
+                    return;
+                }
+
+                sInstance.destroy();
+                sInstance = null;
+            }
+        }
+    };
+
+    private ImageBlurrer(Context context) {
+        mBitmapPool = BitmapPool.getInstance(context);
+        try {
+            mRS = RenderScript.create(context);
+            mSIBlur = ScriptIntrinsicBlur.create(mRS, Element.U8_4(mRS));
+            mSIGrey = ScriptIntrinsicColorMatrix.create(mRS, Element.U8_4(mRS));
+        } catch (RSRuntimeException e) {
+            Log.w(TAG, "RenderScript unavailable, blurring in Java instead", e);
+            if (mRS != null) {
+                mRS.destroy();
+                mRS = null;
+            }
+        }
+    }
+
+    public synchronized Bitmap blurBitmap(Bitmap src, float radius, float desaturateAmount) {
         if (src == null) {
             return null;
         }
 
-        Bitmap dest = src.copy(src.getConfig(), false);
+        // The result is a bitmap from the pool, which the caller can give back once done
+        Bitmap dest = createDest(src);
         if (radius == 0f && desaturateAmount == 0f) {
+            new Canvas(dest).drawBitmap(src, 0, 0, null);
             return dest;
         }
 
-        if (mAllocationSrc == null) {
-            mAllocationSrc = Allocation.createFromBitmap(mRS, src);
-        } else {
-            mAllocationSrc.copyFrom(src);
-        }
-        if (mAllocationDest == null) {
-            mAllocationDest = Allocation.createFromBitmap(mRS, dest);
-        } else {
-            mAllocationDest.copyFrom(dest);
+        if (mRS == null || radius > MAX_SUPPORTED_BLUR_PIXELS) {
+            readSrcPixels(src);
+            javaBlur(src, Math.min(radius, MAX_EXTENDED_BLUR_PIXELS),
+                    MathUtil.constrain(0, 1, desaturateAmount), dest);
+            return dest;
         }
 
+        prepareAllocations(src);
+        mAllocationSrc.copyFrom(src);
+
         if (radius > 0f && desaturateAmount > 0f) {
             doBlur(radius, mAllocationSrc, mAllocationDest);
             doDesaturate(MathUtil.constrain(0, 1, desaturateAmount), mAllocationDest, mAllocationSrc);
@@ -75,6 +173,178 @@ public class ImageBlurrer {
         return dest;
     }
 
+    /**
+     * Produces a blurred copy of the source for each radius, in a single pass. The source is
+     * copied into RenderScript once, and each keyframe's blur is built on top of the previous
+     * keyframe's while the radii increase, so intermediate results never leave RenderScript.
+     * Keyframes beyond the RenderScript limit are blurred from the source in Java. The returned
+     * bitmaps come from the {@link BitmapPool}.
+     */
+    public Bitmap[] blurKeyframes(Bitmap src, float[] radii) {
+        return blurKeyframes(src, radii, null);
+    }
+
+    /**
+     * Like {@link #blurKeyframes(Bitmap, float[])}, returning keyframes with the given config,
+     * e.g. {@link Bitmap.Config#RGB_565} to halve their size. Blurred images have no fine
+     * detail, so the reduced precision is dithered away invisibly. A null config keeps the
+     * source's config.
+     */
+    public synchronized Bitmap[] blurKeyframes(Bitmap src, float[] radii,
+            Bitmap.Config config) {
+        if (src == null) {
+            return null;
+        }
+
+        // Both the blur intrinsic and the Java blur work on 32-bit pixels, so when converting,
+        // each keyframe is blurred into a scratch bitmap and then drawn dithered into its own
+        Bitmap scratch = null;
+        if (config != null && config != src.getConfig()) {
+            scratch = createDest(src);
+        }
+
+        boolean readSrcPixels = false;
+        if (mRS != null) {
+            prepareAllocations(src);
+            mAllocationSrc.copyFrom(src);
+        }
+
+        Bitmap[] keyframes = new Bitmap[radii.length];
+        Allocation current = mAllocationSrc;
+        float currentSigma = 0;
+        for (int f = 0; f < radii.length; f++) {
+            float radius = MathUtil.constrain(0, MAX_EXTENDED_BLUR_PIXELS, radii[f]);
+            if (mRS == null || radius > MAX_SUPPORTED_BLUR_PIXELS) {
+                if (!readSrcPixels) {
+                    readSrcPixels(src);
+                    readSrcPixels = true;
+                }
+                keyframes[f] = createDest(src, config);
+                javaBlur(src, radius, 0, scratch != null ? scratch : keyframes[f]);
+                copyDithered(scratch, keyframes[f]);
+                continue;
+            }
+
+            float sigma = radius > 0 ? radiusToSigma(radius) : 0;
+            if (sigma < currentSigma) {
+                // Can't unblur, so start over from the source
+                current = mAllocationSrc;
+                currentSigma = 0;
+            }
+
+            if (sigma > currentSigma) {
+                // Blurring by s1 then s2 is a blur by sqrt(s1^2 + s2^2)
+                float incrementalRadius = sigmaToRadius(
+                        (float) Math.sqrt(sigma * sigma - currentSigma * currentSigma));
+                Allocation target = (current == mAllocationDest)
+                        ? mAllocationBlurred
+                        : mAllocationDest;
+                if (current == mAllocationSrc
+                        || incrementalRadius < MIN_INCREMENTAL_BLUR_RADIUS) {
+                    doBlur(radius, mAllocationSrc, target);
+                } else {
+                    doBlur(incrementalRadius, current, target);
+                }
+                current = target;
+                currentSigma = sigma;
+            }
+
+            keyframes[f] = createDest(src, config);
+            current.copyTo(scratch != null ? scratch : keyframes[f]);
+            copyDithered(scratch, keyframes[f]);
+        }
+
+        mBitmapPool.put(scratch);
+        return keyframes;
+    }
+
+    private Bitmap createDest(Bitmap src) {
+        return createDest(src, null);
+    }
+
+    private Bitmap createDest(Bitmap src, Bitmap.Config config) {
+        if (config == null) {
+            config = src.getConfig() != null ? src.getConfig() : Bitmap.Config.ARGB_8888;
+        }
+        return mBitmapPool.getOrCreate(src.getWidth(), src.getHeight(), config);
+    }
+
+    /**
+     * Draws the scratch bitmap into the destination, dithering if it has less precision. Does
+     * nothing if there's no scratch bitmap, i.e. the result was written to the destination
+     * directly.
+     */
+    private static void copyDithered(Bitmap scratch, Bitmap dest) {
+        if (scratch == null) {
+            return;
+        }
+
+        new Canvas(dest).drawBitmap(scratch, 0, 0, DITHER_PAINT);
+    }
+
+    private static float radiusToSigma(float radius) {
+        return SIGMA_PER_RADIUS * radius + SIGMA_OFFSET;
+    }
+
+    private static float sigmaToRadius(float sigma) {
+        return (sigma - SIGMA_OFFSET) / SIGMA_PER_RADIUS;
+    }
+
+    private void readSrcPixels(Bitmap src) {
+        int pixelCount = src.getWidth() * src.getHeight();
+        if (mSrcPixels.length < pixelCount) {
+            mSrcPixels = new int[pixelCount];
+            mPixels = new int[pixelCount];
+        }
+        src.getPixels(mSrcPixels, 0, src.getWidth(), 0, 0, src.getWidth(), src.getHeight());
+    }
+
+    /**
+     * Blurs and desaturates the pixels last read with {@link #readSrcPixels(Bitmap)} in Java,
+     * matching the RenderScript blur's gaussian, and writes them into the given bitmap.
+     */
+    private void javaBlur(Bitmap src, float radius, float normalizedDesaturateAmount,
+            Bitmap dest) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        System.arraycopy(mSrcPixels, 0, mPixels, 0, width * height);
+        if (radius > 0) {
+            StackBlur.blur(mPixels, width, height,
+                    StackBlur.radiusForSigma(radiusToSigma(radius)));
+        }
+
+        if (normalizedDesaturateAmount > 0) {
+            for (int i = width * height - 1; i >= 0; i--) {
+                int p = mPixels[i];
+                int r = (p >> 16) & 0xff, g = (p >> 8) & 0xff, b = p & 0xff;
+                float grey = 0.299f * r + 0.587f * g + 0.114f * b;
+                mPixels[i] = (p & 0xff000000)
+                        | (int) MathUtil.interpolate(r, grey, normalizedDesaturateAmount) << 16
+                        | (int) MathUtil.interpolate(g, grey, normalizedDesaturateAmount) << 8
+                        | (int) MathUtil.interpolate(b, grey, normalizedDesaturateAmount);
+            }
+        }
+
+        dest.setPixels(mPixels, 0, width, 0, 0, width, height);
+    }
+
+    /**
+     * Makes sure the allocations match the size of the given bitmap, recreating them if a
+     * previous user blurred a bitmap of a different size.
+     */
+    private void prepareAllocations(Bitmap src) {
+        if (mAllocationSrc != null
+                && mAllocationSrc.getType().getX() == src.getWidth()
+                && mAllocationSrc.getType().getY() == src.getHeight()) {
+            return;
+        }
+
+        destroyAllocations();
+        mAllocationSrc = Allocation.createFromBitmap(mRS, src);
+        mAllocationDest = Allocation.createTyped(mRS, mAllocationSrc.getType());
+        mAllocationBlurred = Allocation.createTyped(mRS, mAllocationSrc.getType());
+    }
+
     private void doBlur(float amount, Allocation input, Allocation output) {
         mSIBlur.setRadius(amount);
         mSIBlur.setInput(input);
@@ -99,14 +369,31 @@ public class ImageBlurrer {
         mSIGrey.forEach(input, output);
     }
 
-    public void destroy() {
-        mSIBlur.destroy();
+    private void destroyAllocations() {
         if (mAllocationSrc != null) {
             mAllocationSrc.destroy();
+            mAllocationSrc = null;
         }
         if (mAllocationDest != null) {
             mAllocationDest.destroy();
+            mAllocationDest = null;
         }
+        if (mAllocationBlurred != null) {
+            mAllocationBlurred.destroy();
+            mAllocationBlurred = null;
+        }
+    }
+
+    private synchronized void destroy() {
+        mSrcPixels = new int[0];
+        mPixels = new int[0];
+        if (mRS == null) {
+            return;
+        }
+
+        mSIBlur.destroy();
+        mSIGrey.destroy();
+        destroyAllocations();
         mRS.destroy();
     }
 }
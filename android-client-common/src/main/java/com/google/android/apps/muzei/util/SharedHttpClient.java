@@ -0,0 +1,293 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import okhttp3.Cache;
+import okhttp3.Connection;
+import okhttp3.Dns;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * The process-wide OkHttp client, so that all downloads share one connection pool (reusing
+ * HTTP/2 and keep-alive connections instead of paying for a new TCP and TLS handshake each
+ * time), one dispatcher and one disk cache. Only JSON responses are cached, within a small
+ * budget, so that artwork downloads don't push out metadata.
+ *
+ * <p>Each call's timings are kept in a short list of {@link HttpMetrics}, and logged when
+ * debug logging is enabled for this tag, e.g. with
+ * <code>adb shell setprop log.tag.SharedHttpClient DEBUG</code>.
+ */
+public class SharedHttpClient {
+    private static final String TAG = SharedHttpClient.class.getSimpleName();
+
+    private static final int CONNECT_TIMEOUT = 15; // in seconds
+    private static final int READ_TIMEOUT = 30; // in seconds
+
+    private static final String CACHE_DIR = "http";
+    private static final long MAX_CACHE_BYTES = 2 * 1024 * 1024;
+
+    private static final int MAX_RECENT_METRICS = 32;
+
+    private static OkHttpClient sInstance;
+
+    // Calls run their interceptors, DNS lookups and connects on one thread, so the metrics of
+    // the call in progress on each thread are found through this
+    private static final ThreadLocal<HttpMetrics> sCurrentMetrics = new ThreadLocal<>();
+    private static final ArrayDeque<HttpMetrics> sRecentMetrics = new ArrayDeque<>();
+
+    private SharedHttpClient() {
+    }
+
+    public static synchronized OkHttpClient getInstance(Context context) {
+        if (sInstance == null) {
+            File cacheDir = new File(context.getApplicationContext().getCacheDir(), CACHE_DIR);
+            sInstance = new OkHttpClient.Builder()
+                    .connectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS)
+                    .readTimeout(READ_TIMEOUT, TimeUnit.SECONDS)
+                    .cache(new Cache(cacheDir, MAX_CACHE_BYTES))
+                    .dns(TIMING_DNS)
+                    .socketFactory(new TimingSocketFactory())
+                    .addInterceptor(CALL_INTERCEPTOR)
+                    .addNetworkInterceptor(NETWORK_INTERCEPTOR)
+                    .build();
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Returns the metrics of the most recently finished calls, oldest first.
+     */
+    public static List<HttpMetrics> getRecentMetrics() {
+        synchronized (sRecentMetrics) {
+            return new ArrayList<>(sRecentMetrics);
+        }
+    }
+
+    private static void finish(HttpMetrics metrics) {
+        synchronized (sRecentMetrics) {
+            if (metrics.mFinished) {
+                return;
+            }
+            metrics.mFinished = true;
+            metrics.mTotalNanos = System.nanoTime() - metrics.mStartNanos;
+            sRecentMetrics.addLast(metrics);
+            if (sRecentMetrics.size() > MAX_RECENT_METRICS) {
+                sRecentMetrics.removeFirst();
+            }
+        }
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, metrics.toString());
+        }
+    }
+
+    private static final Interceptor CALL_INTERCEPTOR = new Interceptor() {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            HttpMetrics metrics = new HttpMetrics(request.url().toString());
+            sCurrentMetrics.set(metrics);
+            Response response;
+            try {
+                response = chain.proceed(request);
+            } finally {
+                sCurrentMetrics.remove();
+            }
+
+            metrics.mCode = response.code();
+            if (response.networkResponse() == null) {
+                // Nothing more to time for responses from the cache
+                metrics.mFromCache = true;
+                finish(metrics);
+            }
+            return response;
+        }
+    };
+
+    private static final Interceptor NETWORK_INTERCEPTOR = new Interceptor() {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            final HttpMetrics metrics = sCurrentMetrics.get();
+            Response response;
+            if (metrics == null) {
+                response = chain.proceed(chain.request());
+            } else {
+                Connection connection = chain.connection();
+                long now = System.nanoTime();
+                metrics.mConnectionReused = metrics.mConnectEndNanos < metrics.mLastHopEndNanos;
+                if (!metrics.mConnectionReused && connection.handshake() != null) {
+                    // Connected during this hop, and the TLS handshake came right after
+                    metrics.mTlsNanos += now - metrics.mConnectEndNanos;
+                }
+                metrics.mProtocol = connection.protocol().toString();
+
+                response = chain.proceed(chain.request());
+                metrics.mLastHopEndNanos = System.nanoTime();
+                metrics.mTimeToFirstByteNanos = metrics.mLastHopEndNanos - now;
+            }
+
+            Response.Builder builder = response.newBuilder();
+            if (metrics != null && response.body() != null) {
+                builder.body(new CountingResponseBody(response.body(), metrics));
+            }
+
+            String contentType = response.header("Content-Type");
+            if (response.code() != 304 && (contentType == null || !contentType.contains("json"))) {
+                // Keep the disk cache for metadata; artwork has its own cache
+                builder.header("Cache-Control", "no-store");
+            }
+            return builder.build();
+        }
+    };
+
+    private static final Dns TIMING_DNS = new Dns() {
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            long start = System.nanoTime();
+            try {
+                return Dns.SYSTEM.lookup(hostname);
+            } finally {
+                HttpMetrics metrics = sCurrentMetrics.get();
+                if (metrics != null) {
+                    metrics.mDnsNanos += System.nanoTime() - start;
+                }
+            }
+        }
+    };
+
+    /**
+     * Makes plain sockets that record how long connecting them takes. TLS sockets are layered
+     * on top of these, so the handshake isn't included.
+     */
+    private static class TimingSocketFactory extends SocketFactory {
+        private final SocketFactory mDelegate = SocketFactory.getDefault();
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return new Socket() {
+                @Override
+                public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                    long start = System.nanoTime();
+                    super.connect(endpoint, timeout);
+                    HttpMetrics metrics = sCurrentMetrics.get();
+                    if (metrics != null) {
+                        metrics.mConnectEndNanos = System.nanoTime();
+                        metrics.mConnectNanos += metrics.mConnectEndNanos - start;
+                    }
+                }
+            };
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return mDelegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return mDelegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return mDelegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                int localPort) throws IOException {
+            return mDelegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+
+    /**
+     * Counts the bytes read from a response body, and finishes its metrics once it's fully
+     * read or closed.
+     */
+    private static class CountingResponseBody extends ResponseBody {
+        private final ResponseBody mDelegate;
+        private final HttpMetrics mMetrics;
+        private BufferedSource mSource;
+
+        private CountingResponseBody(ResponseBody delegate, HttpMetrics metrics) {
+            mDelegate = delegate;
+            mMetrics = metrics;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return mDelegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return mDelegate.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            if (mSource == null) {
+                mSource = Okio.buffer(new ForwardingSource(mDelegate.source()) {
+                    @Override
+                    public long read(Buffer sink, long byteCount) throws IOException {
+                        long bytesRead = super.read(sink, byteCount);
+                        if (bytesRead == -1) {
+                            finish(mMetrics);
+                        } else {
+                            mMetrics.mBytes += bytesRead;
+                        }
+                        return bytesRead;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        finish(mMetrics);
+                        super.close();
+                    }
+                });
+            }
+            return mSource;
+        }
+    }
+}
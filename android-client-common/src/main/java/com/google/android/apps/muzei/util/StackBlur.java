@@ -0,0 +1,251 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Pure Java stack blur of ARGB pixel arrays, for when RenderScript isn't available or the
+ * radius is beyond what its blur intrinsic supports. A stack blur weights pixels by a triangle
+ * of the given radius, which is close to a gaussian, and its cost per pixel doesn't depend on
+ * the radius.
+ *
+ * <p>The horizontal pass blurs bands of rows in parallel, then the vertical pass blurs bands of
+ * columns in parallel, on a shared pool with a thread per core. Each band has its own line
+ * buffer, so nothing is allocated per row or column. This class has no Android dependencies.
+ */
+public final class StackBlur {
+    // Below this many pixels, handing the work to other threads costs more than it saves
+    private static final int MIN_PARALLEL_PIXELS = 64 * 1024;
+
+    public static final int MAX_RADIUS = 254;
+
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService sExecutor;
+
+    private StackBlur() {
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+                private int mCount;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "StackBlur #" + (++mCount));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return sExecutor;
+    }
+
+    /**
+     * Returns the stack blur radius that best matches a gaussian with the given sigma, by
+     * matching the variance of the triangle, which is radius * (radius + 2) / 6.
+     */
+    public static int radiusForSigma(float sigma) {
+        return Math.max(0, Math.round((float) Math.sqrt(1 + 6 * sigma * sigma) - 1));
+    }
+
+    /**
+     * Blurs the given ARGB pixels (one int per pixel, rows packed with no padding) in place.
+     * Radii beyond {@link #MAX_RADIUS} are clamped. Blocks until done.
+     */
+    public static void blur(int[] pixels, int width, int height, int radius) {
+        blur(pixels, width, height, radius, (width * height < MIN_PARALLEL_PIXELS)
+                ? 1
+                : THREAD_COUNT);
+    }
+
+    /**
+     * Blurs like {@link #blur(int[], int, int, int)}, splitting each pass into the given number
+     * of bands, at most one per row or column. The result doesn't depend on the band count.
+     */
+    static void blur(final int[] pixels, final int width, final int height, int radius,
+            int bandCount) {
+        if (radius < 1 || width <= 0 || height <= 0) {
+            return;
+        }
+
+        final int clampedRadius = Math.min(radius, MAX_RADIUS);
+
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("Expected at least " + width * height
+                    + " pixels, got " + pixels.length);
+        }
+
+        bandCount = Math.max(1, Math.min(bandCount, Math.min(width, height)));
+        final int[][] lineBuffers = new int[bandCount][Math.max(width, height)];
+
+        // Rows are independent of each other, so split them into bands
+        List<Callable<Void>> tasks = new ArrayList<>(bandCount);
+        for (int band = 0; band < bandCount; band++) {
+            final int[] line = lineBuffers[band];
+            final int startRow = height * band / bandCount;
+            final int endRow = height * (band + 1) / bandCount;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int y = startRow; y < endRow; y++) {
+                        System.arraycopy(pixels, y * width, line, 0, width);
+                        blurLine(line, width, clampedRadius, pixels, y * width, 1);
+                    }
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+
+        // Then the same for columns, once all rows are done
+        tasks.clear();
+        for (int band = 0; band < bandCount; band++) {
+            final int[] line = lineBuffers[band];
+            final int startColumn = width * band / bandCount;
+            final int endColumn = width * (band + 1) / bandCount;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int x = startColumn; x < endColumn; x++) {
+                        for (int y = 0, i = x; y < height; y++, i += width) {
+                            line[y] = pixels[i];
+                        }
+                        blurLine(line, height, clampedRadius, pixels, x, width);
+                    }
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+    }
+
+    private static void run(List<Callable<Void>> tasks) {
+        if (tasks.size() == 1) {
+            try {
+                tasks.get(0).call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
+        try {
+            List<Future<Void>> futures = getExecutor().invokeAll(tasks);
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while blurring", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Blurs a line of pixels from the source, clamping at its ends, and writes the result into
+     * the destination starting at the given offset with the given stride.
+     *
+     * <p>Pixels at distance d from the center are weighted by radius + 1 - d. Moving the
+     * center by one adds the pixels on its right half (sumIn, plus the one entering the window)
+     * to the weighted sum and takes away the pixels on its left half (sumOut).
+     */
+    private static void blurLine(int[] src, int length, int radius,
+            int[] dest, int destOffset, int destStride) {
+        // Divide by the sum of weights with a multiply and shift, which is exact for sums
+        // below 2^24 and divisors below 2^16, i.e. for radii up to MAX_RADIUS
+        long reciprocal = ((1L << 40) + (radius + 1) * (radius + 1) - 1)
+                / ((radius + 1) * (radius + 1));
+        int last = length - 1;
+
+        int sumA = 0, sumR = 0, sumG = 0, sumB = 0;
+        int inA = 0, inR = 0, inG = 0, inB = 0;
+        int outA = 0, outR = 0, outG = 0, outB = 0;
+        for (int i = -radius; i <= radius; i++) {
+            int p = src[Math.min(last, Math.max(0, i))];
+            int a = p >>> 24, r = (p >> 16) & 0xff, g = (p >> 8) & 0xff, b = p & 0xff;
+            int weight = radius + 1 - Math.abs(i);
+            sumA += a * weight;
+            sumR += r * weight;
+            sumG += g * weight;
+            sumB += b * weight;
+            if (i <= 0) {
+                outA += a;
+                outR += r;
+                outG += g;
+                outB += b;
+            } else {
+                inA += a;
+                inR += r;
+                inG += g;
+                inB += b;
+            }
+        }
+
+        for (int x = 0, d = destOffset; x < length; x++, d += destStride) {
+            dest[d] = (int) ((sumA * reciprocal >>> 40) << 24
+                    | (sumR * reciprocal >>> 40) << 16
+                    | (sumG * reciprocal >>> 40) << 8
+                    | (sumB * reciprocal >>> 40));
+
+            // Slide the window one pixel to the right
+            sumA -= outA;
+            sumR -= outR;
+            sumG -= outG;
+            sumB -= outB;
+
+            int p = src[Math.max(0, x - radius)];
+            outA -= p >>> 24;
+            outR -= (p >> 16) & 0xff;
+            outG -= (p >> 8) & 0xff;
+            outB -= p & 0xff;
+
+            p = src[Math.min(last, x + radius + 1)];
+            inA += p >>> 24;
+            inR += (p >> 16) & 0xff;
+            inG += (p >> 8) & 0xff;
+            inB += p & 0xff;
+
+            sumA += inA;
+            sumR += inR;
+            sumG += inG;
+            sumB += inB;
+
+            // The next center moves from the right half to the left half
+            p = src[Math.min(last, x + 1)];
+            int a = p >>> 24, r = (p >> 16) & 0xff, g = (p >> 8) & 0xff, b = p & 0xff;
+            outA += a;
+            outR += r;
+            outG += g;
+            outB += b;
+            inA -= a;
+            inR -= r;
+            inG -= g;
+            inB -= b;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures {@link StackBlur} in milliseconds per megapixel, on one thread and on all cores,
+ * for radii across its range, and prints the results. There's nothing to assert, since
+ * timings depend on the machine; the numbers are meant to be compared with the RenderScript
+ * blur, which is measured the same way per megapixel on a device.
+ *
+ * <p>Ignored so that it doesn't slow down regular test runs; remove the annotation locally
+ * to take measurements.
+ */
+public class StackBlurBenchmark {
+    private static final int WIDTH = 2048;
+    private static final int HEIGHT = 1024;
+    private static final int WARMUP_RUNS = 2;
+    private static final int RUNS = 5;
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void millisPerMegapixel() {
+        int[] source = new int[WIDTH * HEIGHT];
+        Random random = new Random(0);
+        for (int i = 0; i < source.length; i++) {
+            source[i] = random.nextInt();
+        }
+
+        int[] pixels = new int[source.length];
+        double megapixels = WIDTH * HEIGHT / 1e6;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int radius : new int[] {4, 16, 64, StackBlur.MAX_RADIUS}) {
+            for (int bandCount : (threads > 1) ? new int[] {1, threads} : new int[] {1}) {
+                long bestNanos = Long.MAX_VALUE;
+                for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+                    System.arraycopy(source, 0, pixels, 0, source.length);
+                    long start = System.nanoTime();
+                    StackBlur.blur(pixels, WIDTH, HEIGHT, radius, bandCount);
+                    long nanos = System.nanoTime() - start;
+                    if (run >= WARMUP_RUNS) {
+                        bestNanos = Math.min(bestNanos, nanos);
+                    }
+                }
+                System.out.println(String.format(Locale.US,
+                        "StackBlur radius %d, %d band(s): %.2f ms/MP",
+                        radius, bandCount, bestNanos / 1e6 / megapixels));
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link StackBlur} against a direct convolution with the triangle kernel, clamping at
+ * the edges and rounding down after each pass like the blur does.
+ */
+public class StackBlurTest {
+    @Test
+    public void constantImageIsUnchanged() {
+        int color = 0x80c0407f;
+        for (int radius : new int[] {1, 5, StackBlur.MAX_RADIUS}) {
+            int[] pixels = new int[37 * 23];
+            Arrays.fill(pixels, color);
+            StackBlur.blur(pixels, 37, 23, radius);
+            for (int pixel : pixels) {
+                assertEquals("radius " + radius, color, pixel);
+            }
+        }
+    }
+
+    @Test
+    public void impulseMatchesTriangleKernel() {
+        int size = 41;
+        int radius = 5;
+        int center = size / 2;
+        int[] pixels = new int[size * size];
+        pixels[center * size + center] = 0xffffffff;
+        StackBlur.blur(pixels, size, size, radius);
+
+        int divisor = (radius + 1) * (radius + 1);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int weightX = Math.max(0, radius + 1 - Math.abs(x - center));
+                int weightY = Math.max(0, radius + 1 - Math.abs(y - center));
+                int c = 255 * weightX / divisor * weightY / divisor;
+                int expected = c << 24 | c << 16 | c << 8 | c;
+                assertEquals("at " + x + "," + y, expected, pixels[y * size + x]);
+            }
+        }
+    }
+
+    @Test
+    public void edgesAreClamped() {
+        // Radius larger than the image, so every pixel reads past both edges
+        assertMatchesReference(randomPixels(30 * 20, 1), 30, 20, 7);
+        assertMatchesReference(randomPixels(5 * 3, 2), 5, 3, 12);
+    }
+
+    @Test
+    public void radiusOneMatchesReference() {
+        assertMatchesReference(randomPixels(64 * 48, 3), 64, 48, 1);
+    }
+
+    @Test
+    public void maxRadiusMatchesReference() {
+        assertMatchesReference(randomPixels(600 * 40, 4), 600, 40, StackBlur.MAX_RADIUS);
+    }
+
+    @Test
+    public void radiusBeyondMaxIsClamped() {
+        int[] pixels = randomPixels(300 * 20, 5);
+        int[] clamped = pixels.clone();
+        StackBlur.blur(pixels, 300, 20, StackBlur.MAX_RADIUS + 100);
+        StackBlur.blur(clamped, 300, 20, StackBlur.MAX_RADIUS);
+        assertArrayEquals(clamped, pixels);
+    }
+
+    @Test
+    public void bandCountDoesNotChangeResult() {
+        int width = 257;
+        int height = 131;
+        int[] pixels = randomPixels(width * height, 6);
+        int[] expected = pixels.clone();
+        StackBlur.blur(expected, width, height, 9, 1);
+        for (int bandCount : new int[] {2, 4, 7, 1000}) {
+            int[] banded = pixels.clone();
+            StackBlur.blur(banded, width, height, 9, bandCount);
+            assertArrayEquals("band count " + bandCount, expected, banded);
+        }
+    }
+
+    private static void assertMatchesReference(int[] pixels, int width, int height,
+            int radius) {
+        int[] expected = referenceBlur(pixels, width, height, radius);
+        StackBlur.blur(pixels, width, height, radius, 1);
+        assertArrayEquals("radius " + radius, expected, pixels);
+    }
+
+    private static int[] randomPixels(int count, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+
+    private static int[] referenceBlur(int[] src, int width, int height, int radius) {
+        int[] rows = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                rows[y * width + x] = referencePixel(src, y * width, 1, width, x, radius);
+            }
+        }
+
+        int[] dest = new int[width * height];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                dest[y * width + x] = referencePixel(rows, x, width, height, y, radius);
+            }
+        }
+        return dest;
+    }
+
+    private static int referencePixel(int[] line, int offset, int stride, int length,
+            int center, int radius) {
+        long divisor = (radius + 1) * (radius + 1);
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            long sum = 0;
+            for (int i = -radius; i <= radius; i++) {
+                int index = Math.min(length - 1, Math.max(0, center + i));
+                int channel = (line[offset + index * stride] >>> shift) & 0xff;
+                sum += channel * (radius + 1 - Math.abs(i));
+            }
+            result |= (int) (sum / divisor) << shift;
+        }
+        return result;
+    }
+}
@@ -442,6 +442,35 @@ public abstract class MuzeiArtSource extends Service {
         mServiceHandler.post(mPublishStateRunnable);
     }
 
+    /**
+     * Advertises artwork that this source expects to {@linkplain #publishArtwork(Artwork)
+     * publish} next, in the order it expects to publish it. Muzei may download it ahead of time,
+     * e.g. while the device is on an unmetered network or charging, so that when it's published
+     * it can be shown without waiting for the network. Replaces any previously advertised
+     * artwork; pass nothing to clear it.
+     *
+     * <p> Only the image URI needs to match the published artwork for the download to be
+     * reused, so the rest of its metadata can be filled in at publish time.
+     */
+    protected final void setUpcomingArtwork(Artwork... artwork) {
+        setUpcomingArtwork(Arrays.asList(artwork));
+    }
+
+    /**
+     * Advertises artwork that this source expects to publish next.
+     *
+     * @see #setUpcomingArtwork(Artwork...)
+     */
+    protected final void setUpcomingArtwork(List<Artwork> artwork) {
+        ComponentName componentName = new ComponentName(this, getClass());
+        for (Artwork upcomingArtwork : artwork) {
+            upcomingArtwork.setComponentName(componentName);
+        }
+        mCurrentState.setUpcomingArtwork(artwork);
+        mServiceHandler.removeCallbacks(mPublishStateRunnable);
+        mServiceHandler.post(mPublishStateRunnable);
+    }
+
     /**
      * Sets the current source description of the current configuration (e.g. 'Popular photos
      * tagged "landscape"'). If no description is provided, the <code>android:description</code>
@@ -37,6 +37,7 @@ public class SourceState {
     private String mDescription;
     private boolean mWantsNetworkAvailable;
     private final ArrayList<UserCommand> mUserCommands = new ArrayList<>();
+    private final ArrayList<Artwork> mUpcomingArtwork = new ArrayList<>();
 
     public Artwork getCurrentArtwork() {
         return mCurrentArtwork;
@@ -58,6 +59,14 @@ public class SourceState {
         return mUserCommands.get(index);
     }
 
+    public int getNumUpcomingArtwork() {
+        return mUpcomingArtwork.size();
+    }
+
+    public Artwork getUpcomingArtworkAt(int index) {
+        return mUpcomingArtwork.get(index);
+    }
+
     public void setCurrentArtwork(Artwork artwork) {
         mCurrentArtwork = artwork;
     }
@@ -95,6 +104,13 @@ public class SourceState {
         }
     }
 
+    public void setUpcomingArtwork(List<Artwork> upcomingArtwork) {
+        mUpcomingArtwork.clear();
+        if (upcomingArtwork != null) {
+            mUpcomingArtwork.addAll(upcomingArtwork);
+        }
+    }
+
     public Bundle toBundle() {
         Bundle bundle = new Bundle();
         if (mCurrentArtwork != null) {
@@ -107,6 +123,11 @@ public class SourceState {
             commandsSerialized[i] = mUserCommands.get(i).serialize();
         }
         bundle.putStringArray("userCommands", commandsSerialized);
+        ArrayList<Bundle> upcomingArtworkBundles = new ArrayList<>(mUpcomingArtwork.size());
+        for (Artwork artwork : mUpcomingArtwork) {
+            upcomingArtworkBundles.add(artwork.toBundle());
+        }
+        bundle.putParcelableArrayList("upcomingArtwork", upcomingArtworkBundles);
         return bundle;
     }
 
@@ -125,6 +146,13 @@ public class SourceState {
                 state.mUserCommands.add(UserCommand.deserialize(s));
             }
         }
+        ArrayList<Bundle> upcomingArtworkBundles =
+                bundle.getParcelableArrayList("upcomingArtwork");
+        if (upcomingArtworkBundles != null) {
+            for (Bundle upcomingArtworkBundle : upcomingArtworkBundles) {
+                state.mUpcomingArtwork.add(Artwork.fromBundle(upcomingArtworkBundle));
+            }
+        }
         return state;
     }
 
@@ -140,6 +168,11 @@ public class SourceState {
             commandsSerialized.put(command.serialize());
         }
         jsonObject.put("userCommands", commandsSerialized);
+        JSONArray upcomingArtwork = new JSONArray();
+        for (Artwork artwork : mUpcomingArtwork) {
+            upcomingArtwork.put(artwork.toJson());
+        }
+        jsonObject.put("upcomingArtwork", upcomingArtwork);
         return jsonObject;
     }
 
@@ -159,6 +192,18 @@ public class SourceState {
                 mUserCommands.add(UserCommand.deserialize(commandsSerialized.optString(i)));
             }
         }
+        JSONArray upcomingArtwork = jsonObject.optJSONArray("upcomingArtwork");
+        mUpcomingArtwork.clear();
+        if (upcomingArtwork != null) {
+            int length = upcomingArtwork.length();
+            mUpcomingArtwork.ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                JSONObject artworkJsonObject = upcomingArtwork.optJSONObject(i);
+                if (artworkJsonObject != null) {
+                    mUpcomingArtwork.add(Artwork.fromJson(artworkJsonObject));
+                }
+            }
+        }
     }
 
     public static SourceState fromJson(JSONObject jsonObject) throws JSONException{
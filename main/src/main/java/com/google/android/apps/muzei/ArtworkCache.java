@@ -20,27 +20,31 @@ import android.app.AlarmManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
-import android.util.Pair;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.util.DisplayMetrics;
+import android.view.WindowManager;
 
 import com.google.android.apps.muzei.api.Artwork;
 import com.google.android.apps.muzei.event.ArtworkLoadingStateChangedEvent;
 import com.google.android.apps.muzei.event.CurrentArtworkDownloadedEvent;
+import com.google.android.apps.muzei.render.ArtworkAnalysis;
+import com.google.android.apps.muzei.render.ArtworkHeader;
 import com.google.android.apps.muzei.render.BitmapRegionLoader;
 import com.google.android.apps.muzei.util.IOUtil;
 import com.google.android.apps.muzei.util.LogUtil;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.List;
 
 import org.greenrobot.eventbus.EventBus;
 
@@ -52,8 +56,24 @@ public class ArtworkCache {
 
     private Context mApplicationContext;
     private File mArtCacheRoot;
+    private ArtworkCacheIndex mIndex;
 
-    private static final int MAX_CACHE_SIZE = 3; // 3 items per source
+    // Across all sources; the selected source's current artwork is kept even beyond this
+    private static final long MAX_CACHE_BYTES = 64L * 1024 * 1024;
+
+    // Artwork bigger than this is rejected while it downloads. The pixel limit only applies
+    // to artwork from the network; local images are used at any size the decoder can handle
+    private static final long MAX_ARTWORK_BYTES = MAX_CACHE_BYTES / 2;
+    private static final int MAX_PIXELS_PER_SCREEN_PIXEL = 16;
+
+    // Upcoming artwork to download ahead of time per prefetch, at most
+    private static final int MAX_PREFETCH_COUNT = 3;
+
+    // How often to ask servers whether cached artwork that's published again has changed
+    private static final long REVALIDATE_INTERVAL_MILLIS = 24 * 60 * 60 * 1000;
+
+    // Partial downloads that aren't resumed within this long are given up on
+    private static final long PARTIAL_FILE_MAX_AGE_MILLIS = 7 * 24 * 60 * 60 * 1000;
 
     private static final String PREF_ARTWORK_DOWNLOAD_ATTEMPT = "artwork_download_attempt";
 
@@ -73,6 +93,10 @@ public class ArtworkCache {
         // TODO: instead of best available, optimize for stable location since these aren't
         // meant to be too temporary
         mArtCacheRoot = new File(IOUtil.getBestAvailableCacheRoot(mApplicationContext), "artcache");
+        mIndex = new ArtworkCacheIndex(mArtCacheRoot, MAX_CACHE_BYTES);
+
+        // Left behind by versions that downloaded everything to one temp file
+        new File(mArtCacheRoot, "temp.download").delete();
     }
 
     public synchronized void maybeDownloadCurrentArtworkSync() {
@@ -89,19 +113,33 @@ public class ArtworkCache {
         }
 
         if (destFile.exists() && destFile.length() > 0) {
-            EventBus.getDefault().postSticky(new ArtworkLoadingStateChangedEvent(false, false));
-            EventBus.getDefault().post(new CurrentArtworkDownloadedEvent());
-            return;
+            boolean changed = maybeRevalidate(destFile, currentArtwork);
+            // Revalidating may have found changed content that turned out to be invalid, in
+            // which case download it again below
+            if (destFile.exists()) {
+                if (changed) {
+                    mIndex.put(destFile);
+                } else {
+                    mIndex.setCurrent(destFile);
+                }
+                EventBus.getDefault().postSticky(
+                        new ArtworkLoadingStateChangedEvent(false, false));
+                EventBus.getDefault().post(new CurrentArtworkDownloadedEvent());
+                return;
+            }
         }
 
         // ensure cache root for this source exists
         destFile.getParentFile().mkdirs();
+        deleteStalePartialFiles(destFile);
 
         EventBus.getDefault().postSticky(new ArtworkLoadingStateChangedEvent(true, false));
 
+        IOUtil.ConditionalRequest request = newResumeRequest(destFile);
         InputStream in;
         try {
-            in = IOUtil.openUri(mApplicationContext, currentArtwork.getImageUri(), "image/");
+            in = IOUtil.openUri(mApplicationContext, currentArtwork.getImageUri(), "image/",
+                    request);
         } catch (IOUtil.OpenUriException e) {
             LOGE(TAG, "Error downloading current artwork. URI: " + currentArtwork.getImageUri(), e);
             if (e.isRetryable()) {
@@ -115,28 +153,278 @@ public class ArtworkCache {
 
         // Input stream successfully opened. Save to cache file
         try {
-            File tempFile = new File(mArtCacheRoot, "temp.download");
-            IOUtil.readFullyWriteToFile(in, tempFile);
-            destFile.delete();
-            if (!tempFile.renameTo(destFile)) {
-                throw new IOException("Couldn't move temp artwork file to final cache location.");
-            }
-            // Attempt to parse the newly downloaded file as an image, ensuring it is in a valid format
-            BitmapRegionLoader.newInstance(new FileInputStream(destFile));
+            writeToCacheFile(in, destFile, currentArtwork, request);
         } catch (IOException e) {
             LOGE(TAG, "Error caching and loading the current artwork. URI: " + currentArtwork.getImageUri(), e);
-            destFile.delete();
             EventBus.getDefault().postSticky(new ArtworkLoadingStateChangedEvent(false, true));
-            scheduleRetryArtworkDownload();
+            if (!(e instanceof ArtworkDownloadTee.InvalidArtworkException)) {
+                scheduleRetryArtworkDownload();
+            }
             return;
         }
 
-        cleanupCache(selectedSource);
+        mIndex.put(destFile);
 
         EventBus.getDefault().postSticky(new ArtworkLoadingStateChangedEvent(false, false));
         EventBus.getDefault().post(new CurrentArtworkDownloadedEvent());
     }
 
+    /**
+     * Downloads the artwork that the selected source advertised as coming up next, so that
+     * switching to it later doesn't wait on the network. Only runs on unmetered networks or
+     * while charging, and gives up quietly on errors; the artwork is downloaded as usual once
+     * it's published if prefetching it failed.
+     */
+    public void maybePrefetchUpcomingArtworkSync() {
+        SourceManager sm = SourceManager.getInstance(mApplicationContext);
+        ComponentName selectedSource = sm.getSelectedSource();
+        List<Artwork> upcomingArtwork = sm.getUpcomingArtwork();
+        int count = 0;
+        for (Artwork artwork : upcomingArtwork) {
+            if (count >= MAX_PREFETCH_COUNT || !canPrefetch()) {
+                break;
+            }
+
+            // Each download holds the lock separately so that downloading the current artwork
+            // doesn't wait on the whole list
+            if (prefetchArtwork(selectedSource, artwork)) {
+                ++count;
+            }
+        }
+    }
+
+    private synchronized boolean prefetchArtwork(ComponentName source, Artwork artwork) {
+        File destFile = getArtworkCacheFile(source, artwork);
+        if (destFile == null || (destFile.exists() && destFile.length() > 0)) {
+            return false;
+        }
+
+        destFile.getParentFile().mkdirs();
+        deleteStalePartialFiles(destFile);
+
+        IOUtil.ConditionalRequest request = newResumeRequest(destFile);
+        InputStream in;
+        try {
+            in = IOUtil.openUri(mApplicationContext, artwork.getImageUri(), "image/", request);
+        } catch (IOUtil.OpenUriException e) {
+            LOGW(TAG, "Error prefetching upcoming artwork. URI: " + artwork.getImageUri(), e);
+            return false;
+        }
+
+        try {
+            writeToCacheFile(in, destFile, artwork, request);
+        } catch (IOException e) {
+            LOGW(TAG, "Error caching upcoming artwork. URI: " + artwork.getImageUri(), e);
+            return false;
+        }
+
+        mIndex.put(destFile, false);
+        return true;
+    }
+
+    private boolean canPrefetch() {
+        ConnectivityManager cm = (ConnectivityManager) mApplicationContext
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        if (activeNetwork == null || !activeNetwork.isConnected()) {
+            return false;
+        }
+
+        if (!ConnectivityManagerCompat.isActiveNetworkMetered(cm)) {
+            return true;
+        }
+
+        Intent batteryStatus = mApplicationContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return batteryStatus != null
+                && batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * Asks the server whether the given cached artwork changed, if it's been a while since
+     * the last time and the server gave validators to ask with, and replaces it if so.
+     * Returns true if it was replaced. Failing to revalidate keeps the cached artwork.
+     */
+    private boolean maybeRevalidate(File destFile, Artwork artwork) {
+        ArtworkCacheIndex.Validators validators = mIndex.getValidators(destFile);
+        if (validators == null || System.currentTimeMillis() - validators.mValidatedTime
+                < REVALIDATE_INTERVAL_MILLIS) {
+            return false;
+        }
+
+        IOUtil.ConditionalRequest request = new IOUtil.ConditionalRequest();
+        request.mETag = validators.mETag;
+        request.mLastModified = validators.mLastModified;
+        InputStream in;
+        try {
+            in = IOUtil.openUri(mApplicationContext, artwork.getImageUri(), "image/", request);
+        } catch (IOUtil.OpenUriException e) {
+            LOGW(TAG, "Error revalidating cached artwork. URI: " + artwork.getImageUri(), e);
+            return false;
+        }
+
+        if (request.mNotModified) {
+            mIndex.setValidators(destFile,
+                    request.mResponseETag != null ? request.mResponseETag : validators.mETag,
+                    request.mResponseLastModified != null
+                            ? request.mResponseLastModified
+                            : validators.mLastModified);
+            mIndex.addBytesSaved(destFile.length());
+            return false;
+        }
+
+        try {
+            return writeToCacheFile(in, destFile, artwork, request);
+        } catch (IOException e) {
+            LOGW(TAG, "Error caching changed artwork. URI: " + artwork.getImageUri(), e);
+            if (destFile.exists()) {
+                // Still the old content, so keep its validators, which will be retried later
+                mIndex.setValidators(destFile, validators.mETag, validators.mLastModified);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns a request that resumes the partial download of the given cache file, if there
+     * is one and the server gave validators to check that it's still the same content.
+     */
+    private IOUtil.ConditionalRequest newResumeRequest(File destFile) {
+        IOUtil.ConditionalRequest request = new IOUtil.ConditionalRequest();
+        ArtworkCacheIndex.Validators validators = mIndex.getValidators(destFile);
+        long partialLength = ArtworkCacheIndex.getPartialFile(destFile).length();
+        if (validators != null && partialLength > 0) {
+            request.mETag = validators.mETag;
+            request.mLastModified = validators.mLastModified;
+            request.mResumeOffset = partialLength;
+        }
+        return request;
+    }
+
+    /**
+     * Deletes partial downloads in the source directory of the given cache file that haven't
+     * been resumed in a long time, other than the one for that file.
+     */
+    private void deleteStalePartialFiles(File destFile) {
+        File[] files = destFile.getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        File keepFile = ArtworkCacheIndex.getPartialFile(destFile);
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (ArtworkCacheIndex.isPartialFile(file) && !file.equals(keepFile)
+                    && now - file.lastModified() > PARTIAL_FILE_MAX_AGE_MILLIS) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Saves the given stream, from a request to download the given artwork, to its cache
+     * file, checking that it's a valid image on the way and storing its header and analysis.
+     * The download goes to a partial file first, which is kept on network errors so that the
+     * download can be resumed later. Cleans up after itself on other failures. Returns false
+     * if the cache file already had the same content, in which case it's left alone.
+     */
+    private boolean writeToCacheFile(InputStream in, File destFile, Artwork artwork,
+            IOUtil.ConditionalRequest request) throws IOException {
+        if (in == null) {
+            throw new IOException("No content for artwork that isn't cached.");
+        }
+
+        // Recorded before reading, so that an interrupted download can be resumed
+        File partialFile = ArtworkCacheIndex.getPartialFile(destFile);
+        mIndex.setValidators(destFile, request.mResponseETag, request.mResponseLastModified);
+        if (request.mResumed) {
+            mIndex.addBytesSaved(request.mResumeOffset);
+        }
+
+        ArtworkHeader header;
+        try {
+            header = new ArtworkDownloadTee(MAX_ARTWORK_BYTES,
+                    getMaxArtworkPixels(artwork.getImageUri()))
+                    .copy(in, partialFile, request.mResumed);
+        } catch (ArtworkDownloadTee.InvalidArtworkException e) {
+            partialFile.delete();
+            throw e;
+        } catch (IOException e) {
+            if (mIndex.getValidators(destFile) == null) {
+                // There's no way to tell if it's still the same content later
+                partialFile.delete();
+            }
+            throw e;
+        }
+
+        ArtworkHeader cachedHeader = destFile.exists() ? mIndex.getHeader(destFile) : null;
+        if (cachedHeader != null && header.mContentHash != null
+                && header.mContentHash.equals(cachedHeader.mContentHash)) {
+            // Keep the cached file, and everything derived from it
+            partialFile.delete();
+            return false;
+        }
+
+        ArtworkAnalysis analysis;
+        try {
+            destFile.delete();
+            if (!partialFile.renameTo(destFile)) {
+                throw new IOException("Couldn't move temp artwork file to final cache location.");
+            }
+            // Analyze the artwork once here so consumers don't need to decode it again
+            BitmapRegionLoader loader = BitmapRegionLoader.newInstance(destFile,
+                    header.mRotation);
+            if (loader == null) {
+                throw new IOException("Couldn't open a decoder for the downloaded artwork.");
+            }
+            try {
+                analysis = ArtworkAnalysis.analyze(loader);
+            } finally {
+                loader.destroy();
+            }
+        } catch (IOException e) {
+            partialFile.delete();
+            destFile.delete();
+            mIndex.remove(destFile);
+            throw e;
+        }
+
+        mIndex.setHeader(destFile, header);
+        if (analysis != null) {
+            analysis.save(mApplicationContext, artwork.getImageUri(), header.mContentHash);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the header of the given cached artwork file, only parsing the file if the cache
+     * doesn't have its header, e.g. for artwork cached by older versions. Returns null if it
+     * isn't a valid image.
+     */
+    public ArtworkHeader getArtworkHeader(File file) {
+        ArtworkHeader header = mIndex.getHeader(file);
+        if (header == null) {
+            header = ArtworkHeader.parse(file);
+            if (header != null) {
+                mIndex.setHeader(file, header);
+            }
+        }
+        return header;
+    }
+
+    private long getMaxArtworkPixels(Uri imageUri) {
+        String scheme = imageUri.getScheme();
+        if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) {
+            return Long.MAX_VALUE;
+        }
+
+        WindowManager windowManager = (WindowManager) mApplicationContext
+                .getSystemService(Context.WINDOW_SERVICE);
+        DisplayMetrics metrics = new DisplayMetrics();
+        windowManager.getDefaultDisplay().getRealMetrics(metrics);
+        return (long) MAX_PIXELS_PER_SCREEN_PIXEL * metrics.widthPixels * metrics.heightPixels;
+    }
+
     public File getArtworkCacheFile(ComponentName source, Artwork artwork) {
         File cacheRootForSource = getCacheRootForSource(source);
         if (cacheRootForSource == null) {
@@ -158,6 +446,24 @@ public class ArtworkCache {
         return new File(cacheRootForSource, IOUtil.getCacheFilenameForUri(uri));
     }
 
+    /**
+     * Lets the current artwork of the given source be evicted, once it's no longer selected.
+     */
+    public void unpinSource(ComponentName source) {
+        File cacheRootForSource = getCacheRootForSource(source);
+        if (cacheRootForSource != null) {
+            mIndex.unpinSource(cacheRootForSource.getName());
+        }
+    }
+
+    /**
+     * Lets the current artwork of all sources in the given package be evicted, e.g. once the
+     * package is removed.
+     */
+    public void unpinSourcesInPackage(String packageName) {
+        mIndex.unpinSourcesInPackage(packageName);
+    }
+
     private File getCacheRootForSource(ComponentName source) {
         if (source == null) {
             LOGW(TAG, "Empty source.");
@@ -168,38 +474,6 @@ public class ArtworkCache {
         return new File(mArtCacheRoot, sourceDirName);
     }
 
-    private void cleanupCache(ComponentName source) {
-        // Ensure cache doesn't go over MAX_CACHE_SIZE
-        File[] cacheFiles = getCacheRootForSource(source).listFiles();
-        if (cacheFiles == null || cacheFiles.length < MAX_CACHE_SIZE) {
-            return;
-        }
-
-        SortedSet<Pair<Long, File>> latestFiles = new TreeSet<>(
-                new Comparator<Pair<Long, File>>() {
-                    @Override
-                    public int compare(Pair<Long, File> p1, Pair<Long, File> p2) {
-                        return -(p1.first < p2.first ? -1 : 1);
-                    }
-                });
-
-        for (File file : cacheFiles) {
-            latestFiles.add(new Pair<>(file.lastModified(), file));
-        }
-
-        // Remove everything but the first MAX_CACHE_SIZE files in the latest files set
-        Iterator<Pair<Long, File>> it = latestFiles.iterator();
-        int n = 0;
-        while (it.hasNext()) {
-            File cacheFile = it.next().second;
-            if (++n <= MAX_CACHE_SIZE) {
-                continue;
-            }
-
-            cacheFile.delete();
-        }
-    }
-
     private void cancelArtworkDownloadRetries() {
         AlarmManager am = (AlarmManager) mApplicationContext
                 .getSystemService(Context.ALARM_SERVICE);
@@ -0,0 +1,742 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei;
+
+import android.os.Process;
+
+import com.google.android.apps.muzei.render.ArtworkHeader;
+import com.google.android.apps.muzei.util.LogUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static com.google.android.apps.muzei.util.LogUtil.LOGW;
+
+/**
+ * Index of the files in the artwork disk cache, kept in memory in least recently used order
+ * and persisted as an append-only journal, in the style of DiskLruCache. The cache is kept
+ * within a byte budget across all sources by evicting the least recently used artwork, except
+ * that the selected source's current artwork is pinned and never evicted. Other sources'
+ * artwork is unpinned as soon as another source is selected or their package is removed, so
+ * switching sources doesn't grow the cache beyond the budget.
+ *
+ * <p>Recording a download only appends a line to the journal; evicting files and compacting
+ * the journal happen later on a low priority background thread. Cache files live in one
+ * directory per source under the cache root, and are keyed by that directory and file name.
+ *
+ * <p>The index also keeps the HTTP validators of each file, including files that are still
+ * {@linkplain #getPartialFile(File) partially downloaded}, so that downloads can be resumed
+ * and revalidated, and a running total of the bytes that this saved. It keeps the
+ * {@link ArtworkHeader} of each file too, so that loading artwork doesn't need to parse it.
+ */
+class ArtworkCacheIndex {
+    private static final String TAG = LogUtil.makeLogTag(ArtworkCacheIndex.class);
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    private static final String MAGIC = "muzei.artcache";
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String PIN = "PIN";
+    private static final String UNPIN = "UNPIN";
+    private static final String HTTP = "HTTP";
+    private static final String SAVED = "SAVED";
+    private static final String HEADER = "HEADER";
+    private static final String NONE = "-";
+
+    private static final String PARTIAL_SUFFIX = ".partial";
+    // Headers used to be kept in files next to the artwork
+    private static final String LEGACY_HEADER_SUFFIX = ".header";
+
+    // Compact the journal once it has this many lines that don't describe a live entry
+    private static final int MAX_REDUNDANT_OPS = 500;
+
+    private final File mRoot;
+    private final long mMaxBytes;
+    private final LinkedHashMap<String, Long> mSizes = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, String> mPinnedKeys = new HashMap<>(); // source dir -> key
+    private final Map<String, Validators> mValidators = new HashMap<>();
+    private final Map<String, ArtworkHeader> mHeaders = new HashMap<>();
+    private final ExecutorService mCleanupExecutor;
+    private long mBytes;
+    private long mBytesSaved;
+    private int mRedundantOpCount;
+    private Writer mJournalWriter;
+    private boolean mOpened;
+    private boolean mCleanupPending;
+
+    ArtworkCacheIndex(File root, long maxBytes) {
+        mRoot = root;
+        mMaxBytes = maxBytes;
+        mCleanupExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                        runnable.run();
+                    }
+                }, "ArtworkCacheIndex");
+            }
+        });
+    }
+
+    /**
+     * Records a newly written cache file, replacing any previous entry for it, as the current
+     * artwork of its source.
+     */
+    public synchronized void put(File file) {
+        put(file, true);
+    }
+
+    /**
+     * Records a newly written cache file, replacing any previous entry for it. Files that
+     * aren't the current artwork of their source, e.g. prefetched ones, are evicted like any
+     * other unpinned entry until {@link #setCurrent(File)} is called for them.
+     */
+    public synchronized void put(File file, boolean current) {
+        ensureOpen();
+        String key = getKey(file);
+        long size = file.length();
+        Long previousSize = mSizes.put(key, size);
+        if (previousSize != null) {
+            mBytes -= previousSize;
+            ++mRedundantOpCount;
+        }
+        mBytes += size;
+        appendToJournal(PUT + ' ' + size + ' ' + key);
+        if (current) {
+            pin(file, key);
+        }
+        scheduleCleanup();
+    }
+
+    /**
+     * Marks an already cached file as the most recently used, and as the current artwork of
+     * its source.
+     */
+    public synchronized void setCurrent(File file) {
+        ensureOpen();
+        String key = getKey(file);
+        if (!mSizes.containsKey(key)) {
+            // Cached before the index knew about it, e.g. while the journal was unwritable
+            put(file);
+            return;
+        }
+
+        mSizes.get(key);
+        ++mRedundantOpCount;
+        appendToJournal(READ + ' ' + key);
+        pin(file, key);
+        scheduleCleanup();
+    }
+
+    /**
+     * Forgets the given cache file, e.g. after it failed to download. The caller is
+     * responsible for deleting it.
+     */
+    public synchronized void remove(File file) {
+        ensureOpen();
+        String key = getKey(file);
+        Long size = mSizes.remove(key);
+        Validators validators = mValidators.remove(key);
+        ArtworkHeader header = mHeaders.remove(key);
+        if (size == null && validators == null && header == null) {
+            return;
+        }
+
+        if (size != null) {
+            mBytes -= size;
+            ++mRedundantOpCount;
+        }
+        if (validators != null) {
+            ++mRedundantOpCount;
+        }
+        if (header != null) {
+            ++mRedundantOpCount;
+        }
+        ++mRedundantOpCount;
+        appendToJournal(REMOVE + ' ' + key);
+    }
+
+    /**
+     * Returns the header recorded for the given cache file, or null if there isn't one.
+     */
+    public synchronized ArtworkHeader getHeader(File file) {
+        ensureOpen();
+        return mHeaders.get(getKey(file));
+    }
+
+    /**
+     * Records the header of the given cache file, which must be put in the index too.
+     */
+    public synchronized void setHeader(File file, ArtworkHeader header) {
+        ensureOpen();
+        String key = getKey(file);
+        if (mHeaders.put(key, header) != null) {
+            ++mRedundantOpCount;
+        }
+        appendToJournal(HEADER + ' ' + key + ' ' + formatHeader(header));
+        scheduleCleanup();
+    }
+
+    /**
+     * Returns the HTTP validators last recorded for the given cache file, or null if there
+     * aren't any.
+     */
+    public synchronized Validators getValidators(File file) {
+        ensureOpen();
+        return mValidators.get(getKey(file));
+    }
+
+    /**
+     * Records the HTTP validators of the content being downloaded or just revalidated for the
+     * given cache file, as of now. Validators that can't be stored are dropped.
+     */
+    public synchronized void setValidators(File file, String eTag, String lastModified) {
+        ensureOpen();
+        if (eTag != null && (eTag.isEmpty() || NONE.equals(eTag) || eTag.matches(".*\\s.*"))) {
+            eTag = null;
+        }
+        if (lastModified != null && (lastModified.isEmpty() || NONE.equals(lastModified)
+                || lastModified.indexOf('\n') >= 0 || lastModified.indexOf('\r') >= 0)) {
+            lastModified = null;
+        }
+
+        String key = getKey(file);
+        if (eTag == null && lastModified == null) {
+            if (mValidators.remove(key) != null) {
+                // Nothing to resume or revalidate with, so forget the old ones
+                mRedundantOpCount += 2;
+                appendToJournal(HTTP + ' ' + key + " 0 " + NONE + ' ' + NONE);
+            }
+            return;
+        }
+
+        Validators validators = new Validators(eTag, lastModified, System.currentTimeMillis());
+        if (mValidators.put(key, validators) != null) {
+            ++mRedundantOpCount;
+        }
+        appendToJournal(HTTP + ' ' + key + ' ' + validators);
+        scheduleCleanup();
+    }
+
+    /**
+     * Adds to the total number of bytes that didn't need downloading thanks to resumed or
+     * revalidated downloads.
+     */
+    public synchronized void addBytesSaved(long bytes) {
+        ensureOpen();
+        if (bytes <= 0) {
+            return;
+        }
+
+        mBytesSaved += bytes;
+        ++mRedundantOpCount;
+        appendToJournal(SAVED + ' ' + bytes);
+        scheduleCleanup();
+    }
+
+    public synchronized long getBytesSaved() {
+        ensureOpen();
+        return mBytesSaved;
+    }
+
+    /**
+     * Returns the file that the given cache file is downloaded into until it's complete. It
+     * sits next to the cache file, but isn't part of the index.
+     */
+    public static File getPartialFile(File file) {
+        return new File(file.getPath() + PARTIAL_SUFFIX);
+    }
+
+    public static boolean isPartialFile(File file) {
+        return file.getName().endsWith(PARTIAL_SUFFIX);
+    }
+
+    /**
+     * Unpins the current artwork of the source with the given cache directory name, e.g. when
+     * it's no longer the selected source, so that it can be evicted like any other artwork.
+     */
+    public synchronized void unpinSource(String sourceDirName) {
+        ensureOpen();
+        if (unpin(sourceDirName)) {
+            scheduleCleanup();
+        }
+    }
+
+    /**
+     * Unpins the current artwork of all sources in the given package, e.g. when it's removed.
+     */
+    public synchronized void unpinSourcesInPackage(String packageName) {
+        ensureOpen();
+        // Source directory names start with the package of the source's component name
+        String prefix = packageName + "_";
+        boolean unpinned = false;
+        for (String source : new ArrayList<>(mPinnedKeys.keySet())) {
+            if (source.startsWith(prefix)) {
+                unpinned |= unpin(source);
+            }
+        }
+        if (unpinned) {
+            scheduleCleanup();
+        }
+    }
+
+    private boolean unpin(String source) {
+        if (mPinnedKeys.remove(source) == null) {
+            return false;
+        }
+
+        // Both the pin and this line are now redundant
+        mRedundantOpCount += 2;
+        appendToJournal(UNPIN + ' ' + source);
+        return true;
+    }
+
+    private void pin(File file, String key) {
+        String source = file.getParentFile().getName();
+        // Only the selected source's artwork is pinned, which is the one made current last;
+        // this also drops pins left by older journals or rescans
+        for (String pinnedSource : new ArrayList<>(mPinnedKeys.keySet())) {
+            if (!pinnedSource.equals(source)) {
+                unpin(pinnedSource);
+            }
+        }
+
+        if (key.equals(mPinnedKeys.put(source, key))) {
+            return;
+        }
+
+        ++mRedundantOpCount;
+        appendToJournal(PIN + ' ' + key);
+    }
+
+    private static String getKey(File file) {
+        return file.getParentFile().getName() + '/' + file.getName();
+    }
+
+    private static String getSource(String key) {
+        return key.substring(0, Math.max(0, key.indexOf('/')));
+    }
+
+    private void scheduleCleanup() {
+        if (mCleanupPending || (mBytes <= mMaxBytes && mRedundantOpCount < MAX_REDUNDANT_OPS)) {
+            return;
+        }
+
+        mCleanupPending = true;
+        mCleanupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                cleanup();
+            }
+        });
+    }
+
+    private synchronized void cleanup() {
+        mCleanupPending = false;
+
+        // Evict the least recently used artwork until within budget, skipping pinned artwork
+        Iterator<Map.Entry<String, Long>> it = mSizes.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            String key = entry.getKey();
+            if (key.equals(mPinnedKeys.get(getSource(key)))) {
+                continue;
+            }
+
+            File file = new File(mRoot, key);
+            file.delete();
+            new File(file.getPath() + LEGACY_HEADER_SUFFIX).delete();
+            mBytes -= entry.getValue();
+            it.remove();
+            mRedundantOpCount += 2;
+            if (mValidators.remove(key) != null) {
+                ++mRedundantOpCount;
+            }
+            if (mHeaders.remove(key) != null) {
+                ++mRedundantOpCount;
+            }
+            appendToJournal(REMOVE + ' ' + key);
+        }
+
+        if (mRedundantOpCount >= MAX_REDUNDANT_OPS && mRedundantOpCount >= mSizes.size()) {
+            rebuildJournal();
+        }
+    }
+
+    private void ensureOpen() {
+        if (mOpened) {
+            return;
+        }
+
+        mOpened = true;
+        mRoot.mkdirs();
+        if (!readJournal()) {
+            // No usable journal, e.g. on the first run with an existing cache, so index
+            // whatever is on disk once
+            scanCacheFiles();
+            rebuildJournal();
+        }
+
+        if (mJournalWriter == null) {
+            try {
+                mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(new File(mRoot, JOURNAL_FILE), true), UTF_8));
+            } catch (IOException e) {
+                LOGW(TAG, "Couldn't open the artwork cache journal.", e);
+            }
+        }
+    }
+
+    private boolean readJournal() {
+        File journalFile = new File(mRoot, JOURNAL_FILE);
+        if (!journalFile.exists()) {
+            return false;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(journalFile), UTF_8));
+            if (!MAGIC.equals(reader.readLine())
+                    || !Integer.toString(VERSION).equals(reader.readLine())) {
+                return false;
+            }
+
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ++lineCount;
+                readJournalLine(line);
+            }
+            mRedundantOpCount = lineCount - mSizes.size() - mPinnedKeys.size()
+                    - mValidators.size() - mHeaders.size();
+
+            // Drop entries whose files were deleted behind the index's back, e.g. by the
+            // system clearing the cache
+            Iterator<Map.Entry<String, Long>> it = mSizes.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                if (!new File(mRoot, entry.getKey()).exists()) {
+                    mBytes -= entry.getValue();
+                    it.remove();
+                    ++mRedundantOpCount;
+                }
+            }
+            if (mHeaders.keySet().retainAll(mSizes.keySet())) {
+                ++mRedundantOpCount;
+            }
+            Iterator<String> validatorsIt = mValidators.keySet().iterator();
+            while (validatorsIt.hasNext()) {
+                String key = validatorsIt.next();
+                if (!mSizes.containsKey(key)
+                        && !getPartialFile(new File(mRoot, key)).exists()) {
+                    validatorsIt.remove();
+                    ++mRedundantOpCount;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            LOGW(TAG, "Error reading the artwork cache journal, rebuilding it.", e);
+            mSizes.clear();
+            mPinnedKeys.clear();
+            mValidators.clear();
+            mHeaders.clear();
+            mBytes = 0;
+            mBytesSaved = 0;
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void readJournalLine(String line) {
+        // A line cut short by a crash is ignored
+        int opEnd = line.indexOf(' ');
+        if (opEnd < 0) {
+            return;
+        }
+
+        String op = line.substring(0, opEnd);
+        String rest = line.substring(opEnd + 1);
+        if (PUT.equals(op)) {
+            int sizeEnd = rest.indexOf(' ');
+            if (sizeEnd < 0) {
+                return;
+            }
+            String key = rest.substring(sizeEnd + 1);
+            long size;
+            try {
+                size = Long.parseLong(rest.substring(0, sizeEnd));
+            } catch (NumberFormatException e) {
+                return;
+            }
+            Long previousSize = mSizes.put(key, size);
+            mBytes += size - (previousSize != null ? previousSize : 0);
+        } else if (READ.equals(op)) {
+            mSizes.get(rest);
+        } else if (REMOVE.equals(op)) {
+            Long size = mSizes.remove(rest);
+            if (size != null) {
+                mBytes -= size;
+            }
+            mValidators.remove(rest);
+            mHeaders.remove(rest);
+        } else if (PIN.equals(op)) {
+            mPinnedKeys.put(getSource(rest), rest);
+        } else if (UNPIN.equals(op)) {
+            mPinnedKeys.remove(rest);
+        } else if (HTTP.equals(op)) {
+            int keyEnd = rest.indexOf(' ');
+            if (keyEnd < 0) {
+                return;
+            }
+            String key = rest.substring(0, keyEnd);
+            Validators validators = Validators.parse(rest.substring(keyEnd + 1));
+            if (validators != null) {
+                mValidators.put(key, validators);
+            } else {
+                mValidators.remove(key);
+            }
+        } else if (HEADER.equals(op)) {
+            int keyEnd = rest.indexOf(' ');
+            if (keyEnd < 0) {
+                return;
+            }
+            ArtworkHeader header = parseHeader(rest.substring(keyEnd + 1));
+            if (header != null) {
+                mHeaders.put(rest.substring(0, keyEnd), header);
+            }
+        } else if (SAVED.equals(op)) {
+            try {
+                mBytesSaved += Long.parseLong(rest);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+
+    private void scanCacheFiles() {
+        mSizes.clear();
+        mPinnedKeys.clear();
+        mValidators.clear();
+        mHeaders.clear();
+        mBytes = 0;
+
+        List<File> files = new ArrayList<>();
+        File[] sourceDirs = mRoot.listFiles();
+        if (sourceDirs != null) {
+            for (File sourceDir : sourceDirs) {
+                File[] sourceFiles = sourceDir.listFiles();
+                if (sourceFiles == null) {
+                    continue;
+                }
+                for (File file : sourceFiles) {
+                    if (file.getName().endsWith(LEGACY_HEADER_SUFFIX)) {
+                        file.delete();
+                    } else if (!isPartialFile(file)) {
+                        files.add(file);
+                    }
+                }
+            }
+        }
+
+        // Oldest first, so that the newest file ends up pinned as the one most likely to be the
+        // selected source's current artwork
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String key = getKey(file);
+            mSizes.put(key, file.length());
+            mBytes += file.length();
+        }
+        if (!files.isEmpty()) {
+            File newestFile = files.get(files.size() - 1);
+            mPinnedKeys.put(newestFile.getParentFile().getName(), getKey(newestFile));
+        }
+    }
+
+    /**
+     * Writes a new journal describing only the current entries, replacing the old one.
+     */
+    private void rebuildJournal() {
+        if (mJournalWriter != null) {
+            try {
+                mJournalWriter.close();
+            } catch (IOException ignored) {
+            }
+            mJournalWriter = null;
+        }
+
+        File tempFile = new File(mRoot, JOURNAL_FILE_TEMP);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tempFile), UTF_8));
+            writer.write(MAGIC + '\n' + VERSION + '\n');
+            for (Map.Entry<String, Long> entry : mSizes.entrySet()) {
+                writer.write(PUT + ' ' + entry.getValue() + ' ' + entry.getKey() + '\n');
+            }
+            for (String key : mPinnedKeys.values()) {
+                writer.write(PIN + ' ' + key + '\n');
+            }
+            for (Map.Entry<String, Validators> entry : mValidators.entrySet()) {
+                writer.write(HTTP + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+            }
+            for (Map.Entry<String, ArtworkHeader> entry : mHeaders.entrySet()) {
+                writer.write(HEADER + ' ' + entry.getKey() + ' '
+                        + formatHeader(entry.getValue()) + '\n');
+            }
+            if (mBytesSaved > 0) {
+                writer.write(SAVED + ' ' + mBytesSaved + '\n');
+            }
+            writer.close();
+            writer = null;
+            if (!tempFile.renameTo(new File(mRoot, JOURNAL_FILE))) {
+                throw new IOException("Couldn't move the rebuilt journal into place.");
+            }
+            mRedundantOpCount = 0;
+            mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(mRoot, JOURNAL_FILE), true), UTF_8));
+        } catch (IOException e) {
+            LOGW(TAG, "Error rebuilding the artwork cache journal.", e);
+            tempFile.delete();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void appendToJournal(String line) {
+        if (mJournalWriter == null) {
+            return;
+        }
+
+        try {
+            mJournalWriter.write(line);
+            mJournalWriter.write('\n');
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            LOGW(TAG, "Error writing to the artwork cache journal.", e);
+        }
+    }
+
+    private static String formatHeader(ArtworkHeader header) {
+        return header.mWidth + " " + header.mHeight + ' ' + header.mRotation + ' '
+                + header.mMimeType + ' '
+                + (header.mContentHash != null ? header.mContentHash : NONE);
+    }
+
+    private static ArtworkHeader parseHeader(String s) {
+        String[] parts = s.split(" ");
+        if (parts.length != 5) {
+            return null;
+        }
+
+        try {
+            return new ArtworkHeader(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2]), parts[3], NONE.equals(parts[4]) ? null : parts[4]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * HTTP validators of a cache file, and when the server last confirmed them.
+     */
+    static class Validators {
+        final String mETag;
+        final String mLastModified;
+        final long mValidatedTime;
+
+        private Validators(String eTag, String lastModified, long validatedTime) {
+            mETag = eTag;
+            mLastModified = lastModified;
+            mValidatedTime = validatedTime;
+        }
+
+        /**
+         * Parses the journal form written by {@link #toString()}, returning null for a line
+         * that clears the validators or can't be parsed.
+         */
+        private static Validators parse(String s) {
+            // The last modified date has spaces in it, so it comes last
+            String[] parts = s.split(" ", 3);
+            if (parts.length < 3) {
+                return null;
+            }
+
+            String eTag = NONE.equals(parts[1]) ? null : parts[1];
+            String lastModified = NONE.equals(parts[2]) ? null : parts[2];
+            if (eTag == null && lastModified == null) {
+                return null;
+            }
+
+            try {
+                return new Validators(eTag, lastModified, Long.parseLong(parts[0]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mValidatedTime + " " + (mETag != null ? mETag : NONE) + ' '
+                    + (mLastModified != null ? mLastModified : NONE);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei;
+
+import com.google.android.apps.muzei.render.ArtworkHeader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Copies an artwork download to a file while checking it on the way, so that content that
+ * clearly isn't usable artwork is abandoned as soon as that's known instead of after
+ * downloading all of it. The image header is sniffed from the first bytes and a hash of the
+ * content is computed as it goes by, so that neither needs the file to be read again.
+ *
+ * <p>Each instance copies one download.
+ */
+class ArtworkDownloadTee {
+    // The header should be found within this many bytes, which fits the largest JPEG EXIF
+    // segment along with any other metadata before the frame header
+    private static final int MAX_SNIFF_BYTES = 256 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final long mMaxBytes;
+    private final long mMaxPixels;
+    private final MessageDigest mDigest;
+    private byte[] mSniffBuffer = new byte[MAX_SNIFF_BYTES];
+    private int mSniffLength;
+    private ArtworkHeader mHeader;
+    private long mBytes;
+
+    ArtworkDownloadTee(long maxBytes, long maxPixels) {
+        mMaxBytes = maxBytes;
+        mMaxPixels = maxPixels;
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            digest = null;
+        }
+        mDigest = digest;
+    }
+
+    /**
+     * Copies the given stream to the given file, after what's already in the file if
+     * appending, and closes the stream. Returns the header of the complete image, with its
+     * content hash. Throws {@link InvalidArtworkException} as soon as the content turns out not
+     * to be usable, and other exceptions for errors reading the stream or writing the file.
+     */
+    ArtworkHeader copy(InputStream in, File file, boolean append) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        OutputStream out = null;
+        try {
+            if (append && file.exists()) {
+                // Catch up on what was downloaded before
+                InputStream existing = new FileInputStream(file);
+                try {
+                    int bytesRead;
+                    while ((bytesRead = existing.read(buffer)) != -1) {
+                        consume(buffer, bytesRead);
+                    }
+                } finally {
+                    existing.close();
+                }
+            }
+
+            out = new FileOutputStream(file, append);
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                consume(buffer, bytesRead);
+                out.write(buffer, 0, bytesRead);
+            }
+            out.close();
+            out = null;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        if (mHeader == null) {
+            // Not found in the first bytes, e.g. behind unusually large metadata
+            mHeader = ArtworkHeader.parse(file);
+            if (mHeader == null) {
+                throw new InvalidArtworkException("Downloaded artwork isn't a valid image.");
+            }
+            checkSize(mHeader);
+        }
+
+        return mHeader.withContentHash(getContentHash());
+    }
+
+    private void consume(byte[] buffer, int count) throws IOException {
+        mBytes += count;
+        if (mBytes > mMaxBytes) {
+            throw new InvalidArtworkException("Artwork is over " + mMaxBytes + " bytes.");
+        }
+
+        if (mDigest != null) {
+            mDigest.update(buffer, 0, count);
+        }
+
+        if (mHeader == null && mSniffBuffer != null) {
+            int sniffCount = Math.min(count, MAX_SNIFF_BYTES - mSniffLength);
+            System.arraycopy(buffer, 0, mSniffBuffer, mSniffLength, sniffCount);
+            mSniffLength += sniffCount;
+            try {
+                mHeader = ArtworkHeader.sniff(mSniffBuffer, mSniffLength);
+            } catch (IOException e) {
+                throw new InvalidArtworkException(e.getMessage());
+            }
+
+            if (mHeader != null) {
+                checkSize(mHeader);
+            }
+            if (mHeader != null || mSniffLength == MAX_SNIFF_BYTES) {
+                mSniffBuffer = null;
+            }
+        }
+    }
+
+    private void checkSize(ArtworkHeader header) throws InvalidArtworkException {
+        if ((long) header.mWidth * header.mHeight > mMaxPixels) {
+            throw new InvalidArtworkException("Artwork is " + header.mWidth + "x"
+                    + header.mHeight + ", far larger than this device needs.");
+        }
+    }
+
+    private String getContentHash() {
+        if (mDigest == null) {
+            return null;
+        }
+
+        StringBuilder hash = new StringBuilder();
+        for (byte b : mDigest.digest()) {
+            if ((0xff & b) < 0x10) {
+                hash.append("0");
+            }
+            hash.append(Integer.toHexString(0xff & b));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Thrown when downloaded content can't be used as artwork, as opposed to when downloading
+     * it failed. Downloading it again won't help.
+     */
+    static class InvalidArtworkException extends IOException {
+        InvalidArtworkException(String message) {
+            super(message);
+        }
+    }
+}
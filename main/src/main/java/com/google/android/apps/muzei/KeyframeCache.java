@@ -0,0 +1,228 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.google.android.apps.muzei.util.BitmapPool;
+import com.google.android.apps.muzei.util.IOUtil;
+import com.google.android.apps.muzei.util.LogUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import static com.google.android.apps.muzei.util.LogUtil.LOGW;
+
+/**
+ * On-disk cache of the blurred keyframes generated for an artwork, stored alongside the
+ * {@link ArtworkCache}. Entries are keyed by a string describing the source artwork file and
+ * every render parameter that affects the keyframes, so a hit can be used as-is without
+ * re-running the blur.
+ */
+public class KeyframeCache {
+    private static final String TAG = LogUtil.makeLogTag(KeyframeCache.class);
+
+    private static final int FILE_VERSION = 2; // 2: keyframes are stored unrotated
+    private static final int MAX_CACHE_SIZE = 6; // keyframe sets across all artwork
+    private static final int COMPRESS_QUALITY = 95;
+
+    private static KeyframeCache sInstance;
+
+    private File mCacheRoot;
+    private BitmapPool mBitmapPool;
+
+    public static synchronized KeyframeCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KeyframeCache(context);
+        }
+
+        return sInstance;
+    }
+
+    private KeyframeCache(Context context) {
+        mCacheRoot = new File(IOUtil.getBestAvailableCacheRoot(context.getApplicationContext()),
+                "keyframecache");
+        mBitmapPool = BitmapPool.getInstance(context);
+    }
+
+    /**
+     * Returns the cached keyframes for the given key, or null if there's no complete entry
+     * with exactly <code>count</code> keyframes.
+     */
+    public Bitmap[] get(String key, int count) {
+        return get(key, count, null);
+    }
+
+    /**
+     * Like {@link #get(String, int)}, decoding the keyframes with the given config, or the
+     * default config if null.
+     */
+    public synchronized Bitmap[] get(String key, int count, Bitmap.Config config) {
+        File file = getCacheFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        Bitmap[] keyframes = new Bitmap[count];
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION || !key.equals(in.readUTF())
+                    || in.readInt() != count) {
+                return null;
+            }
+
+            for (int f = 0; f < count; f++) {
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                keyframes[f] = decodeKeyframe(data, config);
+                if (keyframes[f] == null) {
+                    throw new IOException("Couldn't decode cached keyframe " + f);
+                }
+            }
+
+            // Touch the file so cleanup keeps recently used entries
+            file.setLastModified(System.currentTimeMillis());
+            return keyframes;
+        } catch (IOException e) {
+            LOGW(TAG, "Error reading cached keyframes, discarding.", e);
+            for (Bitmap keyframe : keyframes) {
+                mBitmapPool.put(keyframe);
+            }
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes a keyframe into a pooled bitmap of the same size, if there is one.
+     */
+    private Bitmap decodeKeyframe(byte[] data, Bitmap.Config config) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (config != null) {
+            options.inPreferredConfig = config;
+            options.inDither = true;
+        }
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        options.inJustDecodeBounds = false;
+        mBitmapPool.setInBitmap(options, options.outWidth, options.outHeight);
+        Bitmap inBitmap = options.inBitmap;
+        Bitmap keyframe;
+        try {
+            keyframe = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder couldn't reuse the pooled bitmap, so decode into a new one
+            options.inBitmap = null;
+            keyframe = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+
+        if (inBitmap != null && keyframe != inBitmap) {
+            mBitmapPool.put(inBitmap);
+        }
+        return keyframe;
+    }
+
+    /**
+     * Stores the given keyframes under the given key. The bitmaps are not recycled.
+     */
+    public synchronized void put(String key, Bitmap[] keyframes) {
+        mCacheRoot.mkdirs();
+        File file = getCacheFile(key);
+        File tempFile = new File(mCacheRoot, "temp.keyframes");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(key);
+            out.writeInt(keyframes.length);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            for (Bitmap keyframe : keyframes) {
+                buffer.reset();
+                // Keyframes are heavily blurred, so lossy compression is indistinguishable
+                if (keyframe == null || !keyframe.compress(Bitmap.CompressFormat.JPEG,
+                        COMPRESS_QUALITY, buffer)) {
+                    throw new IOException("Couldn't compress keyframe.");
+                }
+                out.writeInt(buffer.size());
+                buffer.writeTo(out);
+            }
+            out.close();
+            out = null;
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Couldn't move temp keyframes to final cache location.");
+            }
+        } catch (IOException e) {
+            LOGW(TAG, "Error caching keyframes.", e);
+            tempFile.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        cleanupCache();
+    }
+
+    private File getCacheFile(String key) {
+        return new File(mCacheRoot, IOUtil.getCacheFilenameForKey(key) + ".keyframes");
+    }
+
+    private void cleanupCache() {
+        // Ensure cache doesn't go over MAX_CACHE_SIZE, keeping the most recently used entries
+        File[] cacheFiles = mCacheRoot.listFiles();
+        if (cacheFiles == null || cacheFiles.length <= MAX_CACHE_SIZE) {
+            return;
+        }
+
+        Arrays.sort(cacheFiles, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 > m2 ? -1 : (m1 < m2 ? 1 : 0);
+            }
+        });
+
+        for (int i = MAX_CACHE_SIZE; i < cacheFiles.length; i++) {
+            cacheFiles[i].delete();
+        }
+    }
+}
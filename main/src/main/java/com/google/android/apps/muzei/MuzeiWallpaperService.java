@@ -29,11 +29,16 @@ import com.google.android.apps.muzei.event.LockScreenVisibleChangedEvent;
 import com.google.android.apps.muzei.event.WallpaperActiveStateChangedEvent;
 import com.google.android.apps.muzei.event.WallpaperSizeChangedEvent;
 import com.google.android.apps.muzei.render.MuzeiBlurRenderer;
+import com.google.android.apps.muzei.render.PreparedArtworkCache;
 import com.google.android.apps.muzei.render.RealRenderController;
 import com.google.android.apps.muzei.render.RenderController;
+import com.google.android.apps.muzei.util.BitmapPool;
 
 import net.rbgrn.android.glwallpaperservice.GLWallpaperService;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 
@@ -61,6 +66,16 @@ public class MuzeiWallpaperService extends GLWallpaperService {
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            // Cleared first, since releasing the cached artwork returns its bitmaps to the pool
+            PreparedArtworkCache.getInstance(this).clear();
+            BitmapPool.getInstance(this).clear();
+        }
+    }
+
     private class MuzeiWallpaperEngine extends GLEngine implements
             RenderController.Callbacks,
             MuzeiBlurRenderer.Callbacks {
@@ -275,5 +290,15 @@ public class MuzeiWallpaperService extends GLWallpaperService {
         public void queueEventOnGlThread(Runnable runnable) {
             queueEvent(runnable);
         }
+
+        @Override
+        protected void dump(String prefix, FileDescriptor fd, PrintWriter out, String[] args) {
+            super.dump(prefix, fd, out, args);
+            if (mRenderer != null) {
+                out.print(prefix);
+                out.println("Renderer:");
+                mRenderer.dump(prefix + "  ", out);
+            }
+        }
     }
 }
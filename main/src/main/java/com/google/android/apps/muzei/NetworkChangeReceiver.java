@@ -44,6 +44,10 @@ public class NetworkChangeReceiver extends WakefulBroadcastReceiver {
                 startWakefulService(context, retryIntent);
             }
 
+            // An unmetered network may have become available for prefetching
+            startWakefulService(context,
+                    TaskQueueService.getPrefetchUpcomingArtworkIntent(context));
+
             // TODO: wakeful broadcast?
             SourceManager sm = SourceManager.getInstance(context);
             sm.maybeDispatchNetworkAvailable();
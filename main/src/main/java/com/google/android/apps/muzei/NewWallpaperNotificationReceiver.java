@@ -40,8 +40,10 @@ import com.google.android.apps.muzei.api.MuzeiArtSource;
 import com.google.android.apps.muzei.api.MuzeiContract;
 import com.google.android.apps.muzei.api.UserCommand;
 import com.google.android.apps.muzei.event.ArtDetailOpenedClosedEvent;
+import com.google.android.apps.muzei.render.ArtworkAnalysis;
 import com.google.android.apps.muzei.render.BitmapRegionLoader;
 import com.google.android.apps.muzei.render.ImageUtil;
+import com.google.android.apps.muzei.util.BitmapPool;
 
 import net.nurik.roman.muzei.R;
 
@@ -153,11 +155,12 @@ public class NewWallpaperNotificationReceiver extends BroadcastReceiver {
             rect.set(0, (height - width) / 2, width, (height + width) / 2);
         }
 
+        BitmapPool bitmapPool = BitmapPool.getInstance(context);
         BitmapFactory.Options options = new BitmapFactory.Options();
         int largeIconHeight = context.getResources()
                 .getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
         options.inSampleSize = ImageUtil.calculateSampleSize(height, largeIconHeight);
-        Bitmap largeIcon = bitmapRegionLoader.decodeRegion(rect, options);
+        Bitmap largeIcon = bitmapRegionLoader.decodeRegion(rect, options, bitmapPool);
         if (largeIcon == null) {
             // decodeRegion should always return something for valid images
             // Assume this is a temporary issue and try again later
@@ -167,19 +170,24 @@ public class NewWallpaperNotificationReceiver extends BroadcastReceiver {
         // Use the suggested 400x400 for Android Wear background images per
         // http://developer.android.com/training/wearables/notifications/creating.html#AddWearableFeatures
         options.inSampleSize = ImageUtil.calculateSampleSize(height, 400);
-        Bitmap background = bitmapRegionLoader.decodeRegion(rect, options);
+        Bitmap background = bitmapRegionLoader.decodeRegion(rect, options, bitmapPool);
         if (background == null) {
             // decodeRegion should always return something for valid images
             // Assume this is a temporary issue and try again later
+            bitmapPool.put(largeIcon);
             return;
         }
 
+        // Tint the notification with the artwork's precomputed vibrant color
+        ArtworkAnalysis analysis = bitmapRegionLoader.getAnalysis();
         String title = TextUtils.isEmpty(artwork.getTitle())
                 ? context.getString(R.string.app_name)
                 : artwork.getTitle();
         NotificationCompat.Builder nb = new NotificationCompat.Builder(context)
                 .setSmallIcon(R.drawable.ic_stat_muzei)
-                .setColor(ContextCompat.getColor(context, R.color.notification))
+                .setColor(analysis != null
+                        ? analysis.mVibrantColor
+                        : ContextCompat.getColor(context, R.color.notification))
                 .setPriority(Notification.PRIORITY_MIN)
                 .setAutoCancel(true)
                 .setContentTitle(title)
@@ -276,7 +284,9 @@ public class NewWallpaperNotificationReceiver extends BroadcastReceiver {
         // Hide the image and artwork title for the public version
         NotificationCompat.Builder publicBuilder = new NotificationCompat.Builder(context)
                 .setSmallIcon(R.drawable.ic_stat_muzei)
-                .setColor(ContextCompat.getColor(context, R.color.notification))
+                .setColor(analysis != null
+                        ? analysis.mVibrantColor
+                        : ContextCompat.getColor(context, R.color.notification))
                 .setPriority(Notification.PRIORITY_MIN)
                 .setAutoCancel(true)
                 .setContentTitle(context.getString(R.string.app_name))
@@ -294,6 +304,10 @@ public class NewWallpaperNotificationReceiver extends BroadcastReceiver {
         NotificationManagerCompat nm = NotificationManagerCompat.from(context);
         nm.notify(NOTIFICATION_ID, nb.build());
 
+        // The notification has its own copy of the bitmaps once posted
+        bitmapPool.put(largeIcon);
+        bitmapPool.put(background);
+
         // Clear any last-seen notification
         sp.edit().remove(PREF_LAST_SEEN_NOTIFICATION_IMAGE_URI).apply();
     }
@@ -70,6 +70,7 @@ public class SourceManager {
     private static final String PREF_SELECTED_SOURCE_TOKEN = "selected_source_token";
     private static final String PREF_SOURCE_STATES = "source_states";
     private static final String PREF_CURRENT_ARTWORK = "current_artwork";
+    private static final String PREF_UPCOMING_ARTWORK = "upcoming_artwork";
 
     private Context mApplicationContext;
     private ComponentName mSubscriberComponentName;
@@ -79,6 +80,7 @@ public class SourceManager {
     private ComponentName mSelectedSource;
     private String mSelectedSourceToken;
     private Artwork mCurrentArtwork;
+    private final List<Artwork> mUpcomingArtwork = new ArrayList<>();
 
     private static SourceManager sInstance;
 
@@ -125,6 +127,17 @@ public class SourceManager {
         if (cursor != null) {
             cursor.close();
         }
+
+        // Get the artwork the selected source expects to publish next
+        try {
+            JSONArray upcomingArtwork = new JSONArray(
+                    mSharedPrefs.getString(PREF_UPCOMING_ARTWORK, "[]"));
+            for (int i = 0; i < upcomingArtwork.length(); i++) {
+                mUpcomingArtwork.add(Artwork.fromJson(upcomingArtwork.getJSONObject(i)));
+            }
+        } catch (JSONException e) {
+            LOGE(TAG, "Error reading upcoming artwork", e);
+        }
     }
 
     private void migrateDataToContentProvider() {
@@ -220,8 +233,14 @@ public class SourceManager {
 
             try {
                 mContentResolver.applyBatch(MuzeiContract.AUTHORITY, operations);
+                // The old source's artwork no longer needs to outlive the cache budget
+                if (mSelectedSource != null) {
+                    ArtworkCache.getInstance(mApplicationContext).unpinSource(mSelectedSource);
+                }
+
                 // generate a new token and subscribe to new source
                 mSelectedSource = source;
+                setUpcomingArtwork(null);
                 mSelectedSourceToken = UUID.randomUUID().toString();
                 mSharedPrefs.edit()
                         .putString(PREF_SELECTED_SOURCE, source.flattenToShortString())
@@ -288,16 +307,50 @@ public class SourceManager {
             } catch (JSONException e) {
                 LOGE(TAG, "Error writing current artwork", e);
             }
+
+            List<Artwork> upcomingArtwork = new ArrayList<>();
+            for (int i = 0; i < state.getNumUpcomingArtwork(); i++) {
+                upcomingArtwork.add(state.getUpcomingArtworkAt(i));
+            }
+            setUpcomingArtwork(upcomingArtwork);
         }
 
-        // Download the artwork contained from the newly published SourceState
+        // Download the artwork contained from the newly published SourceState, then any
+        // upcoming artwork it advertises
         mApplicationContext.startService(TaskQueueService.getDownloadCurrentArtworkIntent(mApplicationContext));
+        mApplicationContext.startService(
+                TaskQueueService.getPrefetchUpcomingArtworkIntent(mApplicationContext));
+    }
+
+    private void setUpcomingArtwork(List<Artwork> upcomingArtwork) {
+        mUpcomingArtwork.clear();
+        if (upcomingArtwork != null) {
+            mUpcomingArtwork.addAll(upcomingArtwork);
+        }
+
+        JSONArray upcomingArtworkJson = new JSONArray();
+        try {
+            for (Artwork artwork : mUpcomingArtwork) {
+                upcomingArtworkJson.put(artwork.toJson());
+            }
+        } catch (JSONException e) {
+            LOGE(TAG, "Error writing upcoming artwork", e);
+        }
+        mSharedPrefs.edit().putString(PREF_UPCOMING_ARTWORK, upcomingArtworkJson.toString())
+                .apply();
     }
 
     public synchronized Artwork getCurrentArtwork() {
         return mCurrentArtwork;
     }
 
+    /**
+     * Returns the artwork the selected source expects to publish next, if it advertised any.
+     */
+    public synchronized List<Artwork> getUpcomingArtwork() {
+        return new ArrayList<>(mUpcomingArtwork);
+    }
+
     public synchronized ComponentName getSelectedSource() {
         return mSelectedSource;
     }
@@ -42,6 +42,12 @@ public class SourcePackageChangeReceiver extends WakefulBroadcastReceiver {
         }
 
         String packageName = intent.getData().getSchemeSpecificPart();
+        if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+                && !intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+            // Cached artwork of the removed sources can be evicted like any other
+            ArtworkCache.getInstance(context).unpinSourcesInPackage(packageName);
+        }
+
         SourceManager sourceManager = SourceManager.getInstance(context);
         ComponentName selectedComponent = sourceManager.getSelectedSource();
         if (!TextUtils.equals(packageName, selectedComponent.getPackageName())) {
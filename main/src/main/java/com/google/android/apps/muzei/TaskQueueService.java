@@ -30,8 +30,11 @@ public class TaskQueueService extends IntentService {
 
     static final String ACTION_DOWNLOAD_CURRENT_ARTWORK
             = "com.google.android.apps.muzei.action.DOWNLOAD_CURRENT_ARTWORK";
+    static final String ACTION_PREFETCH_UPCOMING_ARTWORK
+            = "com.google.android.apps.muzei.action.PREFETCH_UPCOMING_ARTWORK";
 
     private static final long DOWNLOAD_ARTWORK_WAKELOCK_TIMEOUT_MILLIS = 30 * 1000;
+    private static final long PREFETCH_ARTWORK_WAKELOCK_TIMEOUT_MILLIS = 60 * 1000;
 
     public TaskQueueService() {
         super("TaskQueueService");
@@ -60,6 +63,20 @@ public class TaskQueueService extends IntentService {
                 }
             }
 
+            WakefulBroadcastReceiver.completeWakefulIntent(intent);
+        } else if (ACTION_PREFETCH_UPCOMING_ARTWORK.equals(action)) {
+            PowerManager pwm = (PowerManager) getSystemService(POWER_SERVICE);
+            PowerManager.WakeLock lock = pwm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+            lock.acquire(PREFETCH_ARTWORK_WAKELOCK_TIMEOUT_MILLIS);
+
+            try {
+                ArtworkCache.getInstance(this).maybePrefetchUpcomingArtworkSync();
+            } finally {
+                if (lock.isHeld()) {
+                    lock.release();
+                }
+            }
+
             WakefulBroadcastReceiver.completeWakefulIntent(intent);
         }
     }
@@ -74,4 +91,9 @@ public class TaskQueueService extends IntentService {
         return new Intent(context, TaskQueueService.class)
                 .setAction(ACTION_DOWNLOAD_CURRENT_ARTWORK);
     }
+
+    public static Intent getPrefetchUpcomingArtworkIntent(Context context) {
+        return new Intent(context, TaskQueueService.class)
+                .setAction(ACTION_PREFETCH_UPCOMING_ARTWORK);
+    }
 }
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.net.Uri;
+
+import com.google.android.apps.muzei.provider.ArtworkAnalysisContract;
+import com.google.android.apps.muzei.util.LogUtil;
+
+import java.nio.ByteBuffer;
+
+import static com.google.android.apps.muzei.util.LogUtil.LOGE;
+
+/**
+ * Luminance and color statistics computed once from a downloaded artwork image and stored in
+ * the {@link ArtworkAnalysisContract artwork analysis table}, so that the renderer and
+ * notifications can use them without decoding the image again.
+ */
+public class ArtworkAnalysis {
+    private static final String TAG = LogUtil.makeLogTag(ArtworkAnalysis.class);
+
+    private static final int ANALYSIS_SIZE = 128;
+    private static final int HISTOGRAM_BINS = 256;
+
+    // Colors are bucketed by the top 4 bits of each channel
+    private static final int COLOR_BUCKET_BITS = 4;
+    private static final int COLOR_BUCKETS = 1 << (3 * COLOR_BUCKET_BITS);
+
+    private static final float VIBRANT_MIN_SATURATION = 0.35f;
+    private static final float VIBRANT_MIN_VALUE = 0.3f;
+
+    public final float mMeanLuminance;
+    public final float mLuminanceP10;
+    public final float mLuminanceMedian;
+    public final float mLuminanceP90;
+    public final int[] mLuminanceHistogram;
+    public final int mDominantColor;
+    public final int mVibrantColor;
+
+    private ArtworkAnalysis(float meanLuminance, float luminanceP10, float luminanceMedian,
+            float luminanceP90, int[] luminanceHistogram, int dominantColor, int vibrantColor) {
+        mMeanLuminance = meanLuminance;
+        mLuminanceP10 = luminanceP10;
+        mLuminanceMedian = luminanceMedian;
+        mLuminanceP90 = luminanceP90;
+        mLuminanceHistogram = luminanceHistogram;
+        mDominantColor = dominantColor;
+        mVibrantColor = vibrantColor;
+    }
+
+    /**
+     * Analyzes a small decode of the whole image. Returns null if the image can't be decoded.
+     * Must not be called on the main thread.
+     */
+    public static ArtworkAnalysis analyze(BitmapRegionLoader bitmapRegionLoader) {
+        if (bitmapRegionLoader == null) {
+            return null;
+        }
+
+        int width = bitmapRegionLoader.getWidth();
+        int height = bitmapRegionLoader.getHeight();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = ImageUtil.calculateSampleSize(Math.max(width, height),
+                ANALYSIS_SIZE);
+        // The analysis doesn't depend on orientation, so skip rotating the decode
+        Bitmap bitmap = bitmapRegionLoader.decodeUnrotatedRegion(new Rect(0, 0, width, height),
+                options);
+        if (bitmap == null) {
+            return null;
+        }
+
+        ArtworkAnalysis analysis = analyze(bitmap);
+        bitmap.recycle();
+        return analysis;
+    }
+
+    /**
+     * Analyzes the given bitmap, which should be small. The bitmap is not recycled.
+     */
+    public static ArtworkAnalysis analyze(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int n = width * height;
+        if (n == 0) {
+            return null;
+        }
+
+        int[] pixels = new int[n];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        int[] histogram = new int[HISTOGRAM_BINS];
+        int[] bucketCounts = new int[COLOR_BUCKETS];
+        int[] bucketRed = new int[COLOR_BUCKETS];
+        int[] bucketGreen = new int[COLOR_BUCKETS];
+        int[] bucketBlue = new int[COLOR_BUCKETS];
+        long totalLum = 0;
+        int shift = 8 - COLOR_BUCKET_BITS;
+        for (int color : pixels) {
+            int r = Color.red(color);
+            int g = Color.green(color);
+            int b = Color.blue(color);
+            int lum = Math.min(HISTOGRAM_BINS - 1, (int) (0.21f * r + 0.71f * g + 0.07f * b));
+            ++histogram[lum];
+            totalLum += lum;
+
+            int bucket = ((r >> shift) << (2 * COLOR_BUCKET_BITS))
+                    | ((g >> shift) << COLOR_BUCKET_BITS)
+                    | (b >> shift);
+            ++bucketCounts[bucket];
+            bucketRed[bucket] += r;
+            bucketGreen[bucket] += g;
+            bucketBlue[bucket] += b;
+        }
+
+        // Pick the dominant color from the most populated bucket, and the vibrant color from
+        // the bucket with the highest population weighted by saturation and brightness
+        int dominantBucket = 0;
+        int vibrantBucket = -1;
+        float vibrantScore = 0;
+        float[] hsv = new float[3];
+        for (int bucket = 0; bucket < COLOR_BUCKETS; bucket++) {
+            int count = bucketCounts[bucket];
+            if (count == 0) {
+                continue;
+            }
+
+            if (count > bucketCounts[dominantBucket]) {
+                dominantBucket = bucket;
+            }
+
+            Color.colorToHSV(averageColor(bucket, bucketCounts, bucketRed, bucketGreen,
+                    bucketBlue), hsv);
+            if (hsv[1] < VIBRANT_MIN_SATURATION || hsv[2] < VIBRANT_MIN_VALUE) {
+                continue;
+            }
+
+            float score = count * hsv[1] * hsv[2];
+            if (score > vibrantScore) {
+                vibrantScore = score;
+                vibrantBucket = bucket;
+            }
+        }
+
+        int dominantColor = averageColor(dominantBucket, bucketCounts, bucketRed, bucketGreen,
+                bucketBlue);
+        int vibrantColor = vibrantBucket >= 0
+                ? averageColor(vibrantBucket, bucketCounts, bucketRed, bucketGreen, bucketBlue)
+                : dominantColor;
+        return new ArtworkAnalysis(
+                totalLum / (float) n / HISTOGRAM_BINS,
+                percentile(histogram, n, 0.1f),
+                percentile(histogram, n, 0.5f),
+                percentile(histogram, n, 0.9f),
+                histogram, dominantColor, vibrantColor);
+    }
+
+    private static int averageColor(int bucket, int[] counts, int[] red, int[] green,
+            int[] blue) {
+        int count = counts[bucket];
+        if (count == 0) {
+            return Color.BLACK;
+        }
+        return Color.rgb(red[bucket] / count, green[bucket] / count, blue[bucket] / count);
+    }
+
+    private static float percentile(int[] histogram, int n, float fraction) {
+        int target = (int) Math.ceil(n * fraction);
+        int cumulative = 0;
+        for (int bin = 0; bin < histogram.length; bin++) {
+            cumulative += histogram[bin];
+            if (cumulative >= target) {
+                return bin / (float) (histogram.length - 1);
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Returns the stored analysis for the given image URI, or null if it hasn't been analyzed
+     * or the analysis was of different content, as identified by the given content hash. A
+     * null hash only matches analyses stored without one.
+     */
+    public static ArtworkAnalysis query(Context context, Uri imageUri, String contentHash) {
+        if (imageUri == null) {
+            return null;
+        }
+
+        String selection = ArtworkAnalysisContract.COLUMN_NAME_IMAGE_URI + "=? AND "
+                + ArtworkAnalysisContract.COLUMN_NAME_CONTENT_HASH
+                + (contentHash != null ? "=?" : " IS NULL");
+        String[] selectionArgs = contentHash != null
+                ? new String[]{imageUri.toString(), contentHash}
+                : new String[]{imageUri.toString()};
+        Cursor cursor = context.getContentResolver().query(ArtworkAnalysisContract.CONTENT_URI,
+                null, selection, selectionArgs, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+
+            int[] histogram = new int[HISTOGRAM_BINS];
+            byte[] histogramBlob = cursor.getBlob(cursor.getColumnIndex(
+                    ArtworkAnalysisContract.COLUMN_NAME_LUMINANCE_HISTOGRAM));
+            if (histogramBlob != null && histogramBlob.length == HISTOGRAM_BINS * 4) {
+                ByteBuffer.wrap(histogramBlob).asIntBuffer().get(histogram);
+            }
+            return new ArtworkAnalysis(
+                    cursor.getFloat(cursor.getColumnIndex(
+                            ArtworkAnalysisContract.COLUMN_NAME_MEAN_LUMINANCE)),
+                    cursor.getFloat(cursor.getColumnIndex(
+                            ArtworkAnalysisContract.COLUMN_NAME_LUMINANCE_P10)),
+                    cursor.getFloat(cursor.getColumnIndex(
+                            ArtworkAnalysisContract.COLUMN_NAME_LUMINANCE_MEDIAN)),
+                    cursor.getFloat(cursor.getColumnIndex(
+                            ArtworkAnalysisContract.COLUMN_NAME_LUMINANCE_P90)),
+                    histogram,
+                    cursor.getInt(cursor.getColumnIndex(
+                            ArtworkAnalysisContract.COLUMN_NAME_DOMINANT_COLOR)),
+                    cursor.getInt(cursor.getColumnIndex(
+                            ArtworkAnalysisContract.COLUMN_NAME_VIBRANT_COLOR)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Stores this analysis for the given image URI and the hash of the content that was
+     * analyzed, replacing any previous analysis of it.
+     */
+    public void save(Context context, Uri imageUri, String contentHash) {
+        if (imageUri == null) {
+            return;
+        }
+
+        ByteBuffer histogramBlob = ByteBuffer.allocate(HISTOGRAM_BINS * 4);
+        histogramBlob.asIntBuffer().put(mLuminanceHistogram);
+
+        ContentValues values = new ContentValues();
+        values.put(ArtworkAnalysisContract.COLUMN_NAME_IMAGE_URI, imageUri.toString());
+        values.put(ArtworkAnalysisContract.COLUMN_NAME_CONTENT_HASH, contentHash);
+        values.put(ArtworkAnalysisContract.COLUMN_NAME_MEAN_LUMINANCE, mMeanLuminance);
+        values.put(ArtworkAnalysisContract.COLUMN_NAME_LUMINANCE_P10, mLuminanceP10);
+        values.put(ArtworkAnalysisContract.COLUMN_NAME_LUMINANCE_MEDIAN, mLuminanceMedian);
+        values.put(ArtworkAnalysisContract.COLUMN_NAME_LUMINANCE_P90, mLuminanceP90);
+        values.put(ArtworkAnalysisContract.COLUMN_NAME_LUMINANCE_HISTOGRAM,
+                histogramBlob.array());
+        values.put(ArtworkAnalysisContract.COLUMN_NAME_DOMINANT_COLOR, mDominantColor);
+        values.put(ArtworkAnalysisContract.COLUMN_NAME_VIBRANT_COLOR, mVibrantColor);
+        try {
+            context.getContentResolver().insert(ArtworkAnalysisContract.CONTENT_URI, values);
+        } catch (RuntimeException e) {
+            LOGE(TAG, "Error saving artwork analysis.", e);
+        }
+    }
+}
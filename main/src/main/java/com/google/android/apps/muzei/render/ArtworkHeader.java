@@ -0,0 +1,296 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+
+import com.google.android.apps.muzei.util.LogUtil;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.google.android.apps.muzei.util.LogUtil.LOGW;
+
+/**
+ * Size, EXIF rotation, MIME type and content hash of a downloaded artwork image, found once
+ * while the image is downloaded and kept in the artwork cache index, so that loading the
+ * artwork again doesn't need to parse the image header or EXIF data.
+ *
+ * <p>{@link #sniff(byte[], int)} finds all of this but the hash from the first bytes of JPEG,
+ * PNG and WebP images, which are the formats that the artwork can be region decoded from, so
+ * that anything else can be rejected without downloading the rest.
+ */
+public class ArtworkHeader {
+    private static final String TAG = LogUtil.makeLogTag(ArtworkHeader.class);
+
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+    private static final String MIME_TYPE_PNG = "image/png";
+    private static final String MIME_TYPE_WEBP = "image/webp";
+
+    // Enough bytes to tell any of the supported formats apart
+    private static final int SIGNATURE_LENGTH = 12;
+
+    private static final int EXIF_TAG_ORIENTATION = 0x0112;
+
+    /** Width of the image as stored, before rotation. */
+    public final int mWidth;
+    /** Height of the image as stored, before rotation. */
+    public final int mHeight;
+    /** Clockwise rotation in degrees needed to display the image upright. */
+    public final int mRotation;
+    public final String mMimeType;
+    /** Hex digest of the image file, or null if it wasn't computed. */
+    public final String mContentHash;
+
+    public ArtworkHeader(int width, int height, int rotation, String mimeType,
+            String contentHash) {
+        mWidth = width;
+        mHeight = height;
+        mRotation = rotation;
+        mMimeType = mimeType;
+        mContentHash = contentHash;
+    }
+
+    /**
+     * Returns a copy of this header with the given content hash.
+     */
+    public ArtworkHeader withContentHash(String contentHash) {
+        return new ArtworkHeader(mWidth, mHeight, mRotation, mMimeType, contentHash);
+    }
+
+    /**
+     * Parses the header and EXIF orientation of the given image file. Returns null if it isn't
+     * a decodable image. Must not be called on the main thread.
+     */
+    public static ArtworkHeader parse(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0 || options.outMimeType == null) {
+            return null;
+        }
+
+        int rotation = 0;
+        try {
+            ExifInterface exifInterface = new ExifInterface(file.getAbsolutePath());
+            rotation = getRotation(exifInterface.getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL));
+        } catch (IOException e) {
+            LOGW(TAG, "Couldn't open EXIF interface on file: " + file.getAbsolutePath(), e);
+        }
+
+        return new ArtworkHeader(options.outWidth, options.outHeight, rotation,
+                options.outMimeType, null);
+    }
+
+    private static int getRotation(int exifOrientation) {
+        switch (exifOrientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90: return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180: return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270: return 270;
+            default: return 0;
+        }
+    }
+
+    /**
+     * Finds the header of an image from its first bytes, without a content hash. Returns null
+     * if more bytes are needed, and throws if the bytes can't be the start of a JPEG, PNG or
+     * WebP image.
+     */
+    public static ArtworkHeader sniff(byte[] data, int length) throws IOException {
+        if (length < SIGNATURE_LENGTH) {
+            return null;
+        }
+
+        if ((data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8 && (data[2] & 0xff) == 0xff) {
+            return sniffJpeg(data, length);
+        } else if ((data[0] & 0xff) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G'
+                && data[4] == '\r' && data[5] == '\n' && data[6] == 0x1a && data[7] == '\n') {
+            return sniffPng(data, length);
+        } else if (data[0] == 'R' && data[1] == 'I' && data[2] == 'F' && data[3] == 'F'
+                && data[8] == 'W' && data[9] == 'E' && data[10] == 'B' && data[11] == 'P') {
+            return sniffWebp(data, length);
+        }
+
+        throw new IOException("Not a JPEG, PNG or WebP image.");
+    }
+
+    private static ArtworkHeader sniffPng(byte[] data, int length) throws IOException {
+        // The IHDR chunk always comes first
+        if (length < 24) {
+            return null;
+        }
+        if (data[12] != 'I' || data[13] != 'H' || data[14] != 'D' || data[15] != 'R') {
+            throw new IOException("PNG image doesn't start with IHDR.");
+        }
+        return newSniffedHeader(readInt(data, 16, false), readInt(data, 20, false), 0,
+                MIME_TYPE_PNG);
+    }
+
+    private static ArtworkHeader sniffWebp(byte[] data, int length) throws IOException {
+        if (length < 30) {
+            return null;
+        }
+
+        int width;
+        int height;
+        if (data[12] == 'V' && data[13] == 'P' && data[14] == '8' && data[15] == ' ') {
+            // Lossy: a key frame starts with a start code, then 14 bit dimensions
+            if ((data[23] & 0xff) != 0x9d || (data[24] & 0xff) != 0x01
+                    || (data[25] & 0xff) != 0x2a) {
+                throw new IOException("WebP image has no key frame.");
+            }
+            width = readShort(data, 26, true) & 0x3fff;
+            height = readShort(data, 28, true) & 0x3fff;
+        } else if (data[12] == 'V' && data[13] == 'P' && data[14] == '8' && data[15] == 'L') {
+            // Lossless: a signature byte, then 14 bit dimensions minus one
+            if ((data[20] & 0xff) != 0x2f) {
+                throw new IOException("WebP lossless image has a bad signature.");
+            }
+            int bits = readInt(data, 21, true);
+            width = (bits & 0x3fff) + 1;
+            height = ((bits >> 14) & 0x3fff) + 1;
+        } else if (data[12] == 'V' && data[13] == 'P' && data[14] == '8' && data[15] == 'X') {
+            // Extended: 24 bit canvas dimensions minus one, after flags
+            width = readInt24(data, 24) + 1;
+            height = readInt24(data, 27) + 1;
+        } else {
+            throw new IOException("WebP image has an unknown first chunk.");
+        }
+        return newSniffedHeader(width, height, 0, MIME_TYPE_WEBP);
+    }
+
+    private static ArtworkHeader sniffJpeg(byte[] data, int length) throws IOException {
+        int rotation = 0;
+        int i = 2;
+        while (true) {
+            // Markers may be padded with any number of 0xff bytes
+            int markerStart = i;
+            while (i < length && (data[i] & 0xff) == 0xff) {
+                ++i;
+            }
+            if (i >= length) {
+                return null;
+            }
+            if (i == markerStart) {
+                throw new IOException("JPEG image has a bad marker.");
+            }
+
+            int marker = data[i] & 0xff;
+            ++i;
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                // No segment follows these
+                continue;
+            }
+            if (marker == 0xd9 || marker == 0xda) {
+                throw new IOException("JPEG image has no frame header before its data.");
+            }
+
+            if (i + 2 > length) {
+                return null;
+            }
+            int segmentLength = readShort(data, i, false) & 0xffff;
+            if (segmentLength < 2) {
+                throw new IOException("JPEG image has a bad segment length.");
+            }
+
+            boolean isStartOfFrame = marker >= 0xc0 && marker <= 0xcf
+                    && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+            if (isStartOfFrame) {
+                // Length, precision, then height before width
+                if (i + 7 > length) {
+                    return null;
+                }
+                return newSniffedHeader(readShort(data, i + 5, false) & 0xffff,
+                        readShort(data, i + 3, false) & 0xffff, rotation, MIME_TYPE_JPEG);
+            }
+
+            if (marker == 0xe1) {
+                if (i + segmentLength > length) {
+                    return null;
+                }
+                int orientation = readExifOrientation(data, i + 2, i + segmentLength);
+                if (orientation > 0) {
+                    rotation = getRotation(orientation);
+                }
+            }
+            i += segmentLength;
+        }
+    }
+
+    /**
+     * Returns the orientation tag of the EXIF data in the given APP1 segment payload, or 0 if
+     * it isn't EXIF or doesn't have one.
+     */
+    private static int readExifOrientation(byte[] data, int start, int end) {
+        if (end - start < 14 || data[start] != 'E' || data[start + 1] != 'x'
+                || data[start + 2] != 'i' || data[start + 3] != 'f'
+                || data[start + 4] != 0 || data[start + 5] != 0) {
+            return 0;
+        }
+
+        int tiff = start + 6;
+        boolean littleEndian;
+        if (data[tiff] == 'I' && data[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (data[tiff] == 'M' && data[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return 0;
+        }
+
+        long ifdOffset = readInt(data, tiff + 4, littleEndian) & 0xffffffffL;
+        if (ifdOffset < 8 || tiff + ifdOffset + 2 > end) {
+            return 0;
+        }
+        int ifd = (int) (tiff + ifdOffset);
+        int entryCount = readShort(data, ifd, littleEndian) & 0xffff;
+        for (int entry = ifd + 2; entryCount > 0 && entry + 12 <= end;
+                entry += 12, --entryCount) {
+            if ((readShort(data, entry, littleEndian) & 0xffff) == EXIF_TAG_ORIENTATION) {
+                return readShort(data, entry + 8, littleEndian) & 0xffff;
+            }
+        }
+        return 0;
+    }
+
+    private static ArtworkHeader newSniffedHeader(int width, int height, int rotation,
+            String mimeType) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Image has no size.");
+        }
+        return new ArtworkHeader(width, height, rotation, mimeType, null);
+    }
+
+    private static int readShort(byte[] data, int offset, boolean littleEndian) {
+        int b0 = data[offset] & 0xff;
+        int b1 = data[offset + 1] & 0xff;
+        return littleEndian ? (b1 << 8 | b0) : (b0 << 8 | b1);
+    }
+
+    private static int readInt24(byte[] data, int offset) {
+        return (data[offset + 2] & 0xff) << 16 | (data[offset + 1] & 0xff) << 8
+                | (data[offset] & 0xff);
+    }
+
+    private static int readInt(byte[] data, int offset, boolean littleEndian) {
+        int high = readShort(data, offset + (littleEndian ? 2 : 0), littleEndian);
+        int low = readShort(data, offset + (littleEndian ? 0 : 2), littleEndian);
+        return high << 16 | low;
+    }
+}
@@ -21,6 +21,9 @@ import android.graphics.BitmapRegionDecoder;
 import android.graphics.Matrix;
 import android.graphics.Rect;
 
+import com.google.android.apps.muzei.util.BitmapPool;
+
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -35,9 +38,11 @@ public class BitmapRegionLoader {
     private int mOriginalWidth;
     private int mOriginalHeight;
     private Rect mTempRect = new Rect();
+    private File mFile;
     private InputStream mInputStream;
     private volatile BitmapRegionDecoder mBitmapRegionDecoder;
     private Matrix mRotateMatrix;
+    private volatile ArtworkAnalysis mAnalysis;
 
     public static BitmapRegionLoader newInstance(InputStream in) throws IOException {
         return newInstance(in, 0);
@@ -50,11 +55,25 @@ public class BitmapRegionLoader {
 
         BitmapRegionLoader loader = new BitmapRegionLoader(in);
         if (loader.mValid) {
-            loader.mRotation = rotation;
-            if (loader.mRotation != 0) {
-                loader.mRotateMatrix = new Matrix();
-                loader.mRotateMatrix.postRotate(rotation);
-            }
+            loader.setRotation(rotation);
+            return loader;
+        }
+
+        return null;
+    }
+
+    /**
+     * Creates a loader backed directly by the given file. Unlike stream-based loaders, file-based
+     * loaders can open additional decoders over the same file with {@link #newSibling()}.
+     */
+    public static BitmapRegionLoader newInstance(File file, int rotation) throws IOException {
+        if (file == null) {
+            return null;
+        }
+
+        BitmapRegionLoader loader = new BitmapRegionLoader(file);
+        if (loader.mValid) {
+            loader.setRotation(rotation);
             return loader;
         }
 
@@ -71,64 +90,100 @@ public class BitmapRegionLoader {
         }
     }
 
+    private BitmapRegionLoader(File file) throws IOException {
+        mFile = file;
+        mBitmapRegionDecoder = BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+        if (mBitmapRegionDecoder != null) {
+            mOriginalWidth = mBitmapRegionDecoder.getWidth();
+            mOriginalHeight = mBitmapRegionDecoder.getHeight();
+            mValid = true;
+        }
+    }
+
+    private void setRotation(int rotation) {
+        mRotation = rotation;
+        if (mRotation != 0) {
+            mRotateMatrix = new Matrix();
+            mRotateMatrix.postRotate(rotation);
+        }
+    }
+
+    /**
+     * Opens a new, independent loader over the same file as this loader, so that regions can be
+     * decoded concurrently. Returns null if this loader isn't backed by a file or the file could
+     * not be reopened. The caller is responsible for destroying the returned loader.
+     */
+    public BitmapRegionLoader newSibling() {
+        if (mFile == null) {
+            return null;
+        }
+
+        try {
+            return newInstance(mFile, mRotation);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     /**
      * Key difference, aside from support for rotation, from
      * {@link BitmapRegionDecoder#decodeRegion(Rect, Options)} in this implementation is that even
      * if <code>inBitmap</code> is given, a sub-bitmap might be returned.
      */
-    public synchronized Bitmap decodeRegion(Rect rect, Options options) {
-        int unsampledInBitmapWidth = -1;
-        int unsampledInBitmapHeight = -1;
-        int sampleSize = Math.max(1, options != null ? options.inSampleSize : 1);
-        if (options != null && options.inBitmap != null) {
-            unsampledInBitmapWidth = options.inBitmap.getWidth() * sampleSize;
-            unsampledInBitmapHeight = options.inBitmap.getHeight() * sampleSize;
-        }
-
-        // Decode with rotation
-        switch (mRotation) {
-            case 90:
-                mTempRect.set(
-                        rect.top, mOriginalHeight - rect.right,
-                        rect.bottom, mOriginalHeight - rect.left);
-                break;
+    public Bitmap decodeRegion(Rect rect, Options options) {
+        return decodeRegion(rect, options, true);
+    }
 
-            case 180:
-                mTempRect.set(
-                        mOriginalWidth - rect.right, mOriginalHeight - rect.bottom,
-                        mOriginalWidth - rect.left, mOriginalHeight - rect.top);
-                break;
+    /**
+     * Like {@link #decodeRegion(Rect, Options)}, but returns the region unrotated; see
+     * {@link #decodeUnrotatedRegion(Rect, Options, BitmapPool)}.
+     */
+    public Bitmap decodeUnrotatedRegion(Rect rect, Options options) {
+        return decodeRegion(rect, options, false);
+    }
 
-            case 270:
-                mTempRect.set(
-                        mOriginalWidth - rect.bottom, rect.left,
-                        mOriginalWidth - rect.top, rect.right);
-                break;
+    /**
+     * Like {@link #decodeRegion(Rect, Options, BitmapPool)}, but returns the region as stored in
+     * the image, without applying this loader's rotation. The rect is still in rotated
+     * coordinates. Saves allocating and filling a rotated copy of the region when the caller
+     * can apply the rotation itself, e.g. when drawing it with {@link GLPicture}.
+     */
+    public Bitmap decodeUnrotatedRegion(Rect rect, Options options, BitmapPool bitmapPool) {
+        return decodeRegion(rect, options, bitmapPool, false);
+    }
 
-            default:
-                mTempRect.set(rect);
+    private synchronized Bitmap decodeRegion(Rect rect, Options options, boolean rotate) {
+        if (mBitmapRegionDecoder == null) {
+            return null;
         }
 
+        int sampleSize = Math.max(1, options != null ? options.inSampleSize : 1);
+
+        // Decode with rotation
+        unrotateRect(rect, mRotation, mOriginalWidth, mOriginalHeight, mTempRect);
+
         Bitmap bitmap = mBitmapRegionDecoder.decodeRegion(mTempRect, options);
         if (bitmap == null) {
             return null;
         }
 
-        if (options != null && options.inBitmap != null &&
-                ((mTempRect.width() != unsampledInBitmapWidth
-                        || mTempRect.height() != unsampledInBitmapHeight))) {
-            // Need to extract the sub-bitmap
+        // The decoder rounds the sampled size up
+        int decodedWidth = getSampledSize(mTempRect.width(), sampleSize);
+        int decodedHeight = getSampledSize(mTempRect.height(), sampleSize);
+        if (options != null && options.inBitmap != null
+                && (bitmap.getWidth() != decodedWidth || bitmap.getHeight() != decodedHeight)) {
+            // Decoded into a bigger inBitmap, so need to extract the sub-bitmap
             Bitmap subBitmap = Bitmap.createBitmap(
                     bitmap, 0, 0,
-                    mTempRect.width() / sampleSize,
-                    mTempRect.height() / sampleSize);
+                    Math.min(decodedWidth, bitmap.getWidth()),
+                    Math.min(decodedHeight, bitmap.getHeight()));
             if (bitmap != options.inBitmap && bitmap != subBitmap) {
                 bitmap.recycle();
             }
             bitmap = subBitmap;
         }
 
-        if (mRotateMatrix != null) {
+        if (rotate && mRotateMatrix != null) {
             // Rotate decoded bitmap
             Bitmap rotatedBitmap = Bitmap.createBitmap(
                     bitmap, 0, 0,
@@ -143,6 +198,102 @@ public class BitmapRegionLoader {
         return bitmap;
     }
 
+    /**
+     * Like {@link #decodeRegion(Rect, Options)}, but decodes into a bitmap of the right size from
+     * the given pool when there is one, putting it back if it goes unused. The returned bitmap
+     * can be given to the pool once the caller is done with it.
+     */
+    public Bitmap decodeRegion(Rect rect, Options options, BitmapPool bitmapPool) {
+        return decodeRegion(rect, options, bitmapPool, true);
+    }
+
+    private Bitmap decodeRegion(Rect rect, Options options, BitmapPool bitmapPool,
+            boolean rotate) {
+        // The decoder fills inBitmap with the region before it's rotated
+        int sampleSize = Math.max(1, options.inSampleSize);
+        boolean swapDimensions = mRotation == 90 || mRotation == 270;
+        bitmapPool.setInBitmap(options,
+                getSampledSize(swapDimensions ? rect.height() : rect.width(), sampleSize),
+                getSampledSize(swapDimensions ? rect.width() : rect.height(), sampleSize));
+        Bitmap inBitmap = options.inBitmap;
+        Bitmap bitmap;
+        try {
+            bitmap = decodeRegion(rect, options, rotate);
+        } catch (IllegalArgumentException e) {
+            // The decoder couldn't reuse the pooled bitmap, so decode into a new one
+            options.inBitmap = null;
+            bitmap = decodeRegion(rect, options, rotate);
+        }
+
+        options.inBitmap = null;
+        if (inBitmap != null && bitmap != inBitmap) {
+            bitmapPool.put(inBitmap);
+        }
+        return bitmap;
+    }
+
+    private static int getSampledSize(int size, int sampleSize) {
+        return (size + sampleSize - 1) / sampleSize;
+    }
+
+    /**
+     * Maps a rect in the coordinates of an image rotated clockwise by the given number of
+     * degrees back to the coordinates of the unrotated image, which has the given size. The
+     * rect and the out rect may be the same object.
+     */
+    public static void unrotateRect(Rect rect, int rotation, int unrotatedWidth,
+            int unrotatedHeight, Rect outRect) {
+        int left = rect.left;
+        int top = rect.top;
+        int right = rect.right;
+        int bottom = rect.bottom;
+        switch (rotation) {
+            case 90:
+                outRect.set(
+                        top, unrotatedHeight - right,
+                        bottom, unrotatedHeight - left);
+                break;
+
+            case 180:
+                outRect.set(
+                        unrotatedWidth - right, unrotatedHeight - bottom,
+                        unrotatedWidth - left, unrotatedHeight - top);
+                break;
+
+            case 270:
+                outRect.set(
+                        unrotatedWidth - bottom, left,
+                        unrotatedWidth - top, right);
+                break;
+
+            default:
+                outRect.set(left, top, right, bottom);
+        }
+    }
+
+    /**
+     * Returns the file this loader decodes from, or null if it's backed by a stream.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getRotation() {
+        return mRotation;
+    }
+
+    /**
+     * Returns the precomputed analysis of this image, if one was attached with
+     * {@link #setAnalysis(ArtworkAnalysis)}.
+     */
+    public ArtworkAnalysis getAnalysis() {
+        return mAnalysis;
+    }
+
+    public void setAnalysis(ArtworkAnalysis analysis) {
+        mAnalysis = analysis;
+    }
+
     public synchronized int getWidth() {
         return (mRotation == 90 || mRotation == 270) ? mOriginalHeight : mOriginalWidth;
     }
@@ -152,11 +303,17 @@ public class BitmapRegionLoader {
     }
 
     public synchronized void destroy() {
+        if (mBitmapRegionDecoder == null) {
+            return;
+        }
+
         mBitmapRegionDecoder.recycle();
         mBitmapRegionDecoder = null;
-        try {
-            mInputStream.close();
-        } catch (IOException ignored) {
+        if (mInputStream != null) {
+            try {
+                mInputStream.close();
+            } catch (IOException ignored) {
+            }
         }
     }
 }
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.opengl.ETC1Util;
+import android.os.Process;
+
+import com.google.android.apps.muzei.util.BitmapPool;
+import com.google.android.apps.muzei.util.IOUtil;
+import com.google.android.apps.muzei.util.LogUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static com.google.android.apps.muzei.util.LogUtil.LOGE;
+import static com.google.android.apps.muzei.util.LogUtil.LOGW;
+
+/**
+ * On-disk cache of the sharp artwork tiles as ETC1 compressed textures, stored alongside the
+ * artwork cache. Tiles are transcoded once in the background after an artwork is first shown;
+ * later loads of the same artwork read the compressed tiles straight from disk and upload them
+ * without a JPEG decode, using an eighth of the texture memory of ARGB_8888 tiles.
+ */
+class CompressedTileCache {
+    private static final String TAG = LogUtil.makeLogTag(CompressedTileCache.class);
+
+    private static final int FILE_VERSION = 2; // 2: tiles are stored unrotated
+    private static final int MAX_CACHE_SIZE = 3; // compressed pictures across all artwork
+
+    private static CompressedTileCache sInstance;
+
+    private final File mCacheRoot;
+    private final BitmapPool mBitmapPool;
+    private final ExecutorService mTranscodeExecutor;
+    private final Set<String> mPendingKeys = new HashSet<>();
+
+    public static synchronized CompressedTileCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CompressedTileCache(context);
+        }
+
+        return sInstance;
+    }
+
+    private CompressedTileCache(Context context) {
+        mCacheRoot = new File(IOUtil.getBestAvailableCacheRoot(context.getApplicationContext()),
+                "etc1cache");
+        mBitmapPool = BitmapPool.getInstance(context);
+        mTranscodeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                        runnable.run();
+                    }
+                }, "CompressedTileCache");
+            }
+        });
+    }
+
+    /**
+     * Builds a cache key for the sharp picture decoded from the given file with the given
+     * parameters.
+     */
+    public static String makeKey(File file, int rotation, int maxHeight, int tileSize) {
+        return IOUtil.makeDerivedCacheKey(file, rotation, maxHeight, tileSize);
+    }
+
+    /**
+     * Returns the cached compressed tiles for the given key, or null if there's no complete
+     * entry.
+     */
+    public synchronized PictureTiles get(String key) {
+        File file = getCacheFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION || !key.equals(in.readUTF())) {
+                return null;
+            }
+
+            PictureTiles tiles = new PictureTiles(in.readInt(), in.readInt(), in.readInt(),
+                    in.readInt(), null);
+            for (int i = 0; i < tiles.mCompressedTiles.length; i++) {
+                int width = in.readInt();
+                int height = in.readInt();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(data.length)
+                        .order(ByteOrder.nativeOrder());
+                buffer.put(data);
+                buffer.position(0);
+                tiles.mCompressedTiles[i] = new ETC1Util.ETC1Texture(width, height, buffer);
+            }
+
+            // Touch the file so cleanup keeps recently used entries
+            file.setLastModified(System.currentTimeMillis());
+            return tiles;
+        } catch (IOException e) {
+            LOGW(TAG, "Error reading compressed tiles, discarding.", e);
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes and compresses the sharp picture from the given file on a low priority background
+     * thread, storing it under the given key. Does nothing if the key is already cached or
+     * being transcoded.
+     */
+    public void transcodeAsync(final String key, final File file, final int rotation,
+            final int maxHeight, final int tileSize) {
+        synchronized (this) {
+            if (mPendingKeys.contains(key) || getCacheFile(key).exists()) {
+                return;
+            }
+            mPendingKeys.add(key);
+        }
+
+        mTranscodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transcode(key, file, rotation, maxHeight, tileSize);
+                } finally {
+                    synchronized (CompressedTileCache.this) {
+                        mPendingKeys.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    private void transcode(String key, File file, int rotation, int maxHeight, int tileSize) {
+        BitmapRegionLoader loader = null;
+        PictureTiles tiles = null;
+        try {
+            loader = BitmapRegionLoader.newInstance(file, rotation);
+            // ETC1 has no alpha and 16-bit input is all the encoder keeps, so decode to RGB_565
+            tiles = PictureTiles.decode(loader, maxHeight, tileSize, Bitmap.Config.RGB_565,
+                    mBitmapPool);
+            if (tiles != null && tiles.compress()) {
+                put(key, tiles);
+            }
+        } catch (IOException e) {
+            LOGE(TAG, "Error opening artwork for transcoding.", e);
+        } finally {
+            if (loader != null) {
+                loader.destroy();
+            }
+            if (tiles != null) {
+                tiles.recycle();
+            }
+        }
+    }
+
+    private synchronized void put(String key, PictureTiles tiles) {
+        mCacheRoot.mkdirs();
+        File file = getCacheFile(key);
+        File tempFile = new File(mCacheRoot, "temp.etc1");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(key);
+            out.writeInt(tiles.mWidth);
+            out.writeInt(tiles.mHeight);
+            out.writeInt(tiles.mTileSize);
+            out.writeInt(tiles.mRotation);
+            byte[] data = null;
+            for (ETC1Util.ETC1Texture tile : tiles.mCompressedTiles) {
+                ByteBuffer buffer = tile.getData();
+                buffer.position(0);
+                int length = buffer.remaining();
+                if (data == null || data.length < length) {
+                    data = new byte[length];
+                }
+                buffer.get(data, 0, length);
+                buffer.position(0);
+                out.writeInt(tile.getWidth());
+                out.writeInt(tile.getHeight());
+                out.writeInt(length);
+                out.write(data, 0, length);
+            }
+            out.close();
+            out = null;
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Couldn't move temp tiles to final cache location.");
+            }
+        } catch (IOException e) {
+            LOGW(TAG, "Error caching compressed tiles.", e);
+            tempFile.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        cleanupCache();
+    }
+
+    private File getCacheFile(String key) {
+        return new File(mCacheRoot, IOUtil.getCacheFilenameForKey(key) + ".etc1");
+    }
+
+    private void cleanupCache() {
+        // Ensure cache doesn't go over MAX_CACHE_SIZE, keeping the most recently used entries
+        File[] cacheFiles = mCacheRoot.listFiles();
+        if (cacheFiles == null || cacheFiles.length <= MAX_CACHE_SIZE) {
+            return;
+        }
+
+        Arrays.sort(cacheFiles, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 > m2 ? -1 : (m1 < m2 ? 1 : 0);
+            }
+        });
+
+        for (int i = MAX_CACHE_SIZE; i < cacheFiles.length; i++) {
+            cacheFiles[i].delete();
+        }
+    }
+}
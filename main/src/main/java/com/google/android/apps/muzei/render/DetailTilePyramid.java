@@ -0,0 +1,323 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.opengl.Matrix;
+import android.os.Process;
+
+import com.google.android.apps.muzei.util.BitmapPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Sharper tiles of a picture for when the viewport is zoomed in past the resolution of the
+ * picture's base textures, as in art detail mode. The image is treated as a pyramid of levels at
+ * power-of-two sample sizes finer than the base picture's. Only the tiles of the level that the
+ * current viewport needs are decoded, on a background thread, and uploaded textures are kept in
+ * an LRU cache with a byte budget, so tiles that go off-screen are the first to be evicted.
+ *
+ * <p>All methods other than the constructor must be called on the GL thread.
+ */
+class DetailTilePyramid {
+    private static final int TILE_SIZE = 256; // in level pixels
+    private static final long TEXTURE_BUDGET_BYTES = 16 * 1024 * 1024;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    public interface Callbacks {
+        /**
+         * Called on a background thread when a tile has been decoded and is ready to upload.
+         */
+        void onTileReady();
+    }
+
+    private final BitmapRegionLoader mBitmapRegionLoader;
+    private final int mBaseSampleSize;
+    private final int mOriginalWidth;
+    private final int mOriginalHeight;
+    private final Callbacks mCallbacks;
+    private final BitmapPool mBitmapPool;
+
+    private final ExecutorService mDecodeExecutor;
+    private final Queue<DecodedTile> mDecodedTiles = new ConcurrentLinkedQueue<>();
+    private final Set<Long> mRequestedKeys = new HashSet<>();
+    private volatile Set<Long> mWantedKeys = new HashSet<>();
+
+    // Access-ordered, so iteration goes from least to most recently visible
+    private final LinkedHashMap<Long, DetailTile> mTextureCache = new LinkedHashMap<>(
+            16, 0.75f, true);
+    private long mTextureCacheBytes = 0;
+
+    private final float[] mTileMVPMatrix = new float[16];
+    private final float[] mTileModelMatrix = new float[16];
+
+    /**
+     * Creates a pyramid over the given loader, which this takes ownership of. The base picture
+     * drawn under the detail tiles is <code>baseHeight</code> pixels tall.
+     */
+    public DetailTilePyramid(BitmapRegionLoader bitmapRegionLoader, int baseHeight,
+            BitmapPool bitmapPool, Callbacks callbacks) {
+        mBitmapRegionLoader = bitmapRegionLoader;
+        mBitmapPool = bitmapPool;
+        mOriginalWidth = bitmapRegionLoader.getWidth();
+        mOriginalHeight = bitmapRegionLoader.getHeight();
+        mBaseSampleSize = Integer.highestOneBit(Math.max(1, mOriginalHeight / baseHeight));
+        mCallbacks = callbacks;
+        mDecodeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "DetailTilePyramid");
+            }
+        });
+    }
+
+    /**
+     * Requests the tiles needed to draw the given viewport (in picture coordinates from -1 to
+     * 1, with top greater than bottom) sharply on a screen of the given size, and uploads
+     * decoded tiles until the given {@link System#nanoTime()} deadline passes.
+     */
+    public void update(RectF viewport, int screenWidth, int screenHeight, long deadlineNanos) {
+        uploadDecodedTiles(deadlineNanos);
+
+        int sampleSize = getSampleSizeForViewport(viewport, screenWidth, screenHeight);
+        Set<Long> wantedKeys = new HashSet<>();
+        if (sampleSize < mBaseSampleSize) {
+            Rect tileRange = getVisibleTileRange(viewport, sampleSize);
+            for (int ty = tileRange.top; ty < tileRange.bottom; ty++) {
+                for (int tx = tileRange.left; tx < tileRange.right; tx++) {
+                    long key = makeKey(sampleSize, tx, ty);
+                    wantedKeys.add(key);
+                    if (mTextureCache.get(key) == null && !mRequestedKeys.contains(key)) {
+                        requestTile(key, sampleSize, tx, ty);
+                    }
+                }
+            }
+        }
+
+        // Let the decoder skip tiles that are no longer wanted
+        if (!wantedKeys.equals(mWantedKeys)) {
+            mWantedKeys = wantedKeys;
+        }
+    }
+
+    /**
+     * Draws all uploaded tiles that intersect the given viewport, coarsest first, so that finer
+     * tiles cover coarser ones while they load.
+     */
+    public void draw(float[] mvpMatrix, RectF viewport, float alpha, float desaturateAmount,
+            float dimAmount) {
+        if (mTextureCache.isEmpty()) {
+            return;
+        }
+
+        List<DetailTile> visibleTiles = new ArrayList<>();
+        for (DetailTile tile : mTextureCache.values()) {
+            if (tile.mBounds.intersects(viewport.left, viewport.bottom,
+                    viewport.right, viewport.top)) {
+                visibleTiles.add(tile);
+            }
+        }
+        Collections.sort(visibleTiles, new Comparator<DetailTile>() {
+            @Override
+            public int compare(DetailTile t1, DetailTile t2) {
+                return t2.mSampleSize - t1.mSampleSize;
+            }
+        });
+
+        for (DetailTile tile : visibleTiles) {
+            RectF bounds = tile.mBounds;
+            Matrix.setIdentityM(mTileModelMatrix, 0);
+            Matrix.translateM(mTileModelMatrix, 0, bounds.centerX(), bounds.centerY(), 0);
+            Matrix.scaleM(mTileModelMatrix, 0, bounds.width() / 2, bounds.height() / 2, 1);
+            Matrix.multiplyMM(mTileMVPMatrix, 0, mvpMatrix, 0, mTileModelMatrix, 0);
+            tile.mPicture.draw(mTileMVPMatrix, alpha, desaturateAmount, dimAmount);
+        }
+    }
+
+    public void destroy() {
+        mDecodeExecutor.shutdownNow();
+        // Waits for any in-flight decode to finish
+        mBitmapRegionLoader.destroy();
+
+        DecodedTile decodedTile;
+        while ((decodedTile = mDecodedTiles.poll()) != null) {
+            mBitmapPool.put(decodedTile.mBitmap);
+        }
+        for (DetailTile tile : mTextureCache.values()) {
+            tile.mPicture.destroy();
+        }
+        mTextureCache.clear();
+        mTextureCacheBytes = 0;
+    }
+
+    private int getSampleSizeForViewport(RectF viewport, int screenWidth, int screenHeight) {
+        if (screenWidth <= 0 || screenHeight <= 0) {
+            return mBaseSampleSize;
+        }
+
+        // The largest sample size that still has at least one image pixel per screen pixel
+        float maxSampleSize = Math.min(
+                mOriginalWidth * viewport.width() / 2 / screenWidth,
+                mOriginalHeight * (viewport.top - viewport.bottom) / 2 / screenHeight);
+        int sampleSize = 1;
+        while (sampleSize * 2 <= maxSampleSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private Rect getVisibleTileRange(RectF viewport, int sampleSize) {
+        int unsampledTileSize = TILE_SIZE * sampleSize;
+        int cols = (mOriginalWidth + unsampledTileSize - 1) / unsampledTileSize;
+        int rows = (mOriginalHeight + unsampledTileSize - 1) / unsampledTileSize;
+        float left = (viewport.left + 1) / 2 * mOriginalWidth;
+        float right = (viewport.right + 1) / 2 * mOriginalWidth;
+        float top = (1 - viewport.top) / 2 * mOriginalHeight;
+        float bottom = (1 - viewport.bottom) / 2 * mOriginalHeight;
+        return new Rect(
+                Math.max(0, (int) Math.floor(left / unsampledTileSize)),
+                Math.max(0, (int) Math.floor(top / unsampledTileSize)),
+                Math.min(cols, (int) Math.ceil(right / unsampledTileSize)),
+                Math.min(rows, (int) Math.ceil(bottom / unsampledTileSize)));
+    }
+
+    private void requestTile(final long key, final int sampleSize, int tx, int ty) {
+        int unsampledTileSize = TILE_SIZE * sampleSize;
+        final Rect region = new Rect(tx * unsampledTileSize, ty * unsampledTileSize,
+                (tx + 1) * unsampledTileSize, (ty + 1) * unsampledTileSize);
+        region.intersect(0, 0, mOriginalWidth, mOriginalHeight);
+        final RectF bounds = new RectF(
+                -1 + 2f * region.left / mOriginalWidth,
+                1 - 2f * region.bottom / mOriginalHeight,
+                -1 + 2f * region.right / mOriginalWidth,
+                1 - 2f * region.top / mOriginalHeight);
+
+        mRequestedKeys.add(key);
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                if (mWantedKeys.contains(key)) {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = sampleSize;
+                    bitmap = mBitmapRegionLoader.decodeUnrotatedRegion(region, options,
+                            mBitmapPool);
+                }
+                mDecodedTiles.add(new DecodedTile(key, sampleSize, bounds, bitmap));
+                mCallbacks.onTileReady();
+            }
+        });
+    }
+
+    private void uploadDecodedTiles(long deadlineNanos) {
+        DecodedTile decodedTile;
+        while (System.nanoTime() < deadlineNanos
+                && (decodedTile = mDecodedTiles.poll()) != null) {
+            mRequestedKeys.remove(decodedTile.mKey);
+            if (decodedTile.mBitmap == null) {
+                continue;
+            }
+
+            long bytes = (long) decodedTile.mBitmap.getWidth() * decodedTile.mBitmap.getHeight()
+                    * BYTES_PER_PIXEL;
+            // Detail tiles are never larger than the max texture size, so this is one tile
+            PictureTiles tiles = PictureTiles.split(decodedTile.mBitmap,
+                    mBitmapRegionLoader.getRotation(), GLPicture.getMaxTextureSize(),
+                    mBitmapPool);
+            GLPicture picture = new GLPicture(tiles);
+            picture.uploadTiles(deadlineNanos);
+            tiles.recycle();
+            DetailTile previous = mTextureCache.put(decodedTile.mKey, new DetailTile(
+                    picture, decodedTile.mSampleSize, decodedTile.mBounds, bytes));
+            mTextureCacheBytes += bytes;
+            if (previous != null) {
+                previous.mPicture.destroy();
+                mTextureCacheBytes -= previous.mBytes;
+            }
+            trimTextureCache();
+        }
+    }
+
+    private void trimTextureCache() {
+        Iterator<Map.Entry<Long, DetailTile>> it = mTextureCache.entrySet().iterator();
+        while (mTextureCacheBytes > TEXTURE_BUDGET_BYTES && it.hasNext()) {
+            Map.Entry<Long, DetailTile> entry = it.next();
+            if (mWantedKeys.contains(entry.getKey())) {
+                // Everything after this is at least as recently visible
+                break;
+            }
+            entry.getValue().mPicture.destroy();
+            mTextureCacheBytes -= entry.getValue().mBytes;
+            it.remove();
+        }
+    }
+
+    private static long makeKey(int sampleSize, int tx, int ty) {
+        return ((long) Integer.numberOfTrailingZeros(sampleSize) << 48)
+                | ((long) tx << 24) | ty;
+    }
+
+    private static class DecodedTile {
+        private final long mKey;
+        private final int mSampleSize;
+        private final RectF mBounds;
+        private final Bitmap mBitmap;
+
+        DecodedTile(long key, int sampleSize, RectF bounds, Bitmap bitmap) {
+            mKey = key;
+            mSampleSize = sampleSize;
+            mBounds = bounds;
+            mBitmap = bitmap;
+        }
+    }
+
+    private static class DetailTile {
+        private final GLPicture mPicture;
+        private final int mSampleSize;
+        private final RectF mBounds; // in picture coordinates; RectF top is the lowest y
+        private final long mBytes;
+
+        DetailTile(GLPicture picture, int sampleSize, RectF bounds, long bytes) {
+            mPicture = picture;
+            mSampleSize = sampleSize;
+            mBounds = bounds;
+            mBytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Collects frame timings from the GL thread and artwork load stage timings from the prepare
+ * thread, for {@code dumpsys} and the on-screen debug overlay. Frame durations are the time
+ * spent in {@link MuzeiBlurRenderer#onDrawFrame}; a frame counts as janky when it comes more
+ * than one and a half vsyncs after the previous frame of a running animation.
+ */
+class FrameStats {
+    static final int STAGE_DECODE = 0;
+    static final int STAGE_BLUR = 1;
+    static final int STAGE_UPLOAD = 2;
+    private static final String[] STAGE_NAMES = {"decode", "blur", "upload"};
+
+    static final long FRAME_BUDGET_NANOS = 16667 * 1000;
+    private static final long JANK_INTERVAL_NANOS = FRAME_BUDGET_NANOS * 3 / 2;
+    static final int RECENT_FRAME_COUNT = 64;
+
+    private final long[] mRecentFrameNanos = new long[RECENT_FRAME_COUNT];
+    private int mRecentFrameIndex;
+
+    private long mFrameStartNanos;
+    private long mLastFrameEndNanos;
+    private boolean mLastFrameAnimating;
+
+    private int mFrameCount;
+    private long mTotalFrameNanos;
+    private long mMaxFrameNanos;
+    private int mSlowFrameCount;
+    private int mJankCount;
+
+    private final AnimationStats mCrossfadeStats = new AnimationStats();
+    private final AnimationStats mBlurStats = new AnimationStats();
+
+    private final int[] mStageCounts = new int[STAGE_NAMES.length];
+    private final long[] mStageTotalNanos = new long[STAGE_NAMES.length];
+    private final long[] mStageMaxNanos = new long[STAGE_NAMES.length];
+    private final long[] mStageLastNanos = new long[STAGE_NAMES.length];
+
+    public synchronized void onFrameStart() {
+        mFrameStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Records the end of the frame started by the last {@link #onFrameStart()} call.
+     *
+     * @param stillAnimating whether the frame requested another frame right after it
+     */
+    public synchronized void onFrameEnd(boolean crossfading, boolean blurAnimating,
+            boolean stillAnimating) {
+        long now = System.nanoTime();
+        long duration = now - mFrameStartNanos;
+        mRecentFrameNanos[mRecentFrameIndex] = duration;
+        mRecentFrameIndex = (mRecentFrameIndex + 1) % RECENT_FRAME_COUNT;
+
+        ++mFrameCount;
+        mTotalFrameNanos += duration;
+        mMaxFrameNanos = Math.max(mMaxFrameNanos, duration);
+        if (duration > FRAME_BUDGET_NANOS) {
+            ++mSlowFrameCount;
+        }
+
+        // Intervals are only meaningful while frames are requested back to back
+        long interval = mLastFrameAnimating ? now - mLastFrameEndNanos : 0;
+        if (interval > JANK_INTERVAL_NANOS) {
+            ++mJankCount;
+        }
+        mCrossfadeStats.onFrame(crossfading, interval);
+        mBlurStats.onFrame(blurAnimating, interval);
+
+        mLastFrameEndNanos = now;
+        mLastFrameAnimating = stillAnimating;
+    }
+
+    /**
+     * Records how long a load stage took. May be called from any thread.
+     */
+    public synchronized void recordStage(int stage, long nanos) {
+        ++mStageCounts[stage];
+        mStageTotalNanos[stage] += nanos;
+        mStageMaxNanos[stage] = Math.max(mStageMaxNanos[stage], nanos);
+        mStageLastNanos[stage] = nanos;
+    }
+
+    /**
+     * Copies the durations of the most recent frames, oldest first, into the given array of
+     * length {@link #RECENT_FRAME_COUNT}.
+     */
+    public synchronized void getRecentFrameNanos(long[] out) {
+        for (int i = 0; i < RECENT_FRAME_COUNT; i++) {
+            out[i] = mRecentFrameNanos[(mRecentFrameIndex + i) % RECENT_FRAME_COUNT];
+        }
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Frames:");
+        writer.print(prefix);
+        writer.println(String.format(Locale.US,
+                "  count=%d avg=%.2fms max=%.2fms slow(>16.7ms)=%d janky=%d",
+                mFrameCount,
+                mFrameCount > 0 ? toMillis(mTotalFrameNanos) / mFrameCount : 0,
+                toMillis(mMaxFrameNanos), mSlowFrameCount, mJankCount));
+
+        writer.print(prefix);
+        writer.println("Animations:");
+        mCrossfadeStats.dump(prefix + "  ", "crossfade", writer);
+        mBlurStats.dump(prefix + "  ", "blur", writer);
+
+        writer.print(prefix);
+        writer.println("Load stages:");
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            int count = mStageCounts[stage];
+            writer.print(prefix);
+            writer.println(String.format(Locale.US,
+                    "  %s: count=%d last=%.1fms avg=%.1fms max=%.1fms",
+                    STAGE_NAMES[stage], count, toMillis(mStageLastNanos[stage]),
+                    count > 0 ? toMillis(mStageTotalNanos[stage]) / count : 0,
+                    toMillis(mStageMaxNanos[stage])));
+        }
+    }
+
+    private static float toMillis(long nanos) {
+        return nanos / 1000000f;
+    }
+
+    /**
+     * Frame rate of one kind of animation, both for its most recent run and overall.
+     */
+    private static class AnimationStats {
+        private boolean mRunning;
+        private int mRunFrames;
+        private long mRunNanos;
+        private int mLastRunFrames;
+        private long mLastRunNanos;
+        private int mTotalFrames;
+        private long mTotalNanos;
+
+        private void onFrame(boolean animating, long interval) {
+            if (!animating) {
+                if (mRunning && mRunNanos > 0) {
+                    mLastRunFrames = mRunFrames;
+                    mLastRunNanos = mRunNanos;
+                }
+                mRunning = false;
+                return;
+            }
+
+            if (!mRunning) {
+                // The first frame of a run has no meaningful interval
+                mRunning = true;
+                mRunFrames = 0;
+                mRunNanos = 0;
+                return;
+            }
+
+            ++mRunFrames;
+            mRunNanos += interval;
+            ++mTotalFrames;
+            mTotalNanos += interval;
+        }
+
+        private void dump(String prefix, String name, PrintWriter writer) {
+            writer.print(prefix);
+            writer.println(String.format(Locale.US, "%s: last=%.1ffps overall=%.1ffps",
+                    name, fps(mLastRunFrames, mLastRunNanos), fps(mTotalFrames, mTotalNanos)));
+        }
+
+        private static float fps(int frames, long nanos) {
+            return nanos > 0 ? frames * 1e9f / nanos : 0;
+        }
+    }
+}
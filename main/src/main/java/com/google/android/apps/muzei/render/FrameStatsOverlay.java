@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.graphics.Color;
+import android.opengl.Matrix;
+
+/**
+ * Debug overlay drawing the most recent frame durations as a bar graph along the bottom of
+ * the screen, with a line marking the 16.7ms frame budget. Bars over budget are red.
+ */
+class FrameStatsOverlay {
+    private static final float BUDGET_LINE_HEIGHT = 0.25f; // in normalized device coordinates
+    private static final float LINE_THICKNESS = 0.005f;
+
+    private static final int BACKGROUND_COLOR = Color.argb(96, 0, 0, 0);
+    private static final int BAR_COLOR = Color.argb(192, 0, 200, 83);
+    private static final int SLOW_BAR_COLOR = Color.argb(192, 213, 0, 0);
+    private static final int BUDGET_LINE_COLOR = Color.argb(255, 255, 255, 255);
+
+    private final GLColorOverlay mColorOverlay = new GLColorOverlay(0);
+    private final long[] mFrameNanos = new long[FrameStats.RECENT_FRAME_COUNT];
+    private final float[] mMatrix = new float[16];
+
+    /**
+     * Draws the overlay in normalized device coordinates. Must be called on the GL thread.
+     */
+    public void draw(FrameStats frameStats) {
+        frameStats.getRecentFrameNanos(mFrameNanos);
+
+        drawRect(-1, 1, 2 * BUDGET_LINE_HEIGHT, BACKGROUND_COLOR);
+
+        float barWidth = 2f / mFrameNanos.length;
+        for (int i = 0; i < mFrameNanos.length; i++) {
+            if (mFrameNanos[i] == 0) {
+                continue;
+            }
+
+            float height = Math.min(2 * BUDGET_LINE_HEIGHT,
+                    BUDGET_LINE_HEIGHT * mFrameNanos[i] / FrameStats.FRAME_BUDGET_NANOS);
+            float left = -1 + i * barWidth;
+            drawRect(left, left + barWidth * 0.8f, height,
+                    mFrameNanos[i] > FrameStats.FRAME_BUDGET_NANOS ? SLOW_BAR_COLOR : BAR_COLOR);
+        }
+
+        Matrix.setIdentityM(mMatrix, 0);
+        Matrix.translateM(mMatrix, 0, 0, -1 + BUDGET_LINE_HEIGHT, 0);
+        Matrix.scaleM(mMatrix, 0, 1, LINE_THICKNESS, 1);
+        mColorOverlay.setColor(BUDGET_LINE_COLOR);
+        mColorOverlay.draw(mMatrix);
+    }
+
+    private void drawRect(float left, float right, float height, int color) {
+        // GLColorOverlay covers [-1, 1] in both dimensions, so move and scale it into place
+        Matrix.setIdentityM(mMatrix, 0);
+        Matrix.translateM(mMatrix, 0, (left + right) / 2, -1 + height / 2, 0);
+        Matrix.scaleM(mMatrix, 0, (right - left) / 2, height / 2, 1);
+        mColorOverlay.setColor(color);
+        mColorOverlay.draw(mMatrix);
+    }
+}
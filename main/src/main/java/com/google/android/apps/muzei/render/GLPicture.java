@@ -17,14 +17,9 @@
 package com.google.android.apps.muzei.render;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Rect;
+import android.opengl.ETC1Util;
 import android.opengl.GLES20;
 
-import com.google.android.apps.muzei.util.MathUtil;
-
-import java.nio.FloatBuffer;
-
 class GLPicture {
     private static final String VERTEX_SHADER_CODE = "" +
             // This matrix member variable provides a hook to manipulate
@@ -38,43 +33,68 @@ class GLPicture {
             "  gl_Position = uMVPMatrix * aPosition;" +
             "}";
 
+    // Desaturation and dimming are applied here rather than baked into the textures or drawn
+    // as a separate overlay, so they can change without re-preparing the artwork
     private static final String FRAGMENT_SHADER_CODE = "" +
             "precision mediump float;" +
             "uniform sampler2D uTexture;" +
             "uniform float uAlpha;" +
+            "uniform float uDesaturate;" +
+            "uniform float uDim;" +
             "varying vec2 vTexCoords;" +
             "void main(){" +
-            "  gl_FragColor = texture2D(uTexture, vTexCoords);" +
-            "  gl_FragColor.a = uAlpha;" +
+            "  vec3 color = texture2D(uTexture, vTexCoords).rgb;" +
+            "  float lum = dot(color, vec3(0.299, 0.587, 0.114));" +
+            "  color = mix(color, vec3(lum), uDesaturate) * (1.0 - uDim);" +
+            "  gl_FragColor = vec4(color, uAlpha);" +
             "}";
 
-    // number of coordinates per vertex in this array
-    private static final int COORDS_PER_VERTEX = 3;
-    private static final int VERTEX_STRIDE_BYTES = COORDS_PER_VERTEX * GLUtil.BYTES_PER_FLOAT;
-    private static final int VERTICES = 6; // TL, BL, BR, TL, BR, TR
+    // Taps in the shader blur kernel, including the center tap
+    private static final int BLUR_KERNEL_TAPS = 17;
 
-    // S, T (or X, Y)
-    private static final int COORDS_PER_TEXTURE_VERTEX = 2;
-    private static final int TEXTURE_VERTEX_STRIDE_BYTES = COORDS_PER_TEXTURE_VERTEX
-            * GLUtil.BYTES_PER_FLOAT;
+    // Single-pass blur over a heavily downsampled texture: samples a spiral of taps across a
+    // disk of radius uBlurRadius (in texture coordinates) with gaussian-like weights, relying
+    // on bilinear filtering to smooth between taps.
+    private static final String BLUR_FRAGMENT_SHADER_CODE = "" +
+            "precision mediump float;" +
+            "uniform sampler2D uTexture;" +
+            "uniform float uAlpha;" +
+            "uniform vec2 uBlurRadius;" +
+            "uniform vec3 uKernel[" + BLUR_KERNEL_TAPS + "];" + // x, y offset and weight
+            "uniform float uDesaturate;" +
+            "uniform float uDim;" +
+            "varying vec2 vTexCoords;" +
+            "void main(){" +
+            "  vec3 color = vec3(0.0);" +
+            "  for (int i = 0; i < " + BLUR_KERNEL_TAPS + "; i++) {" +
+            "    color += uKernel[i].z" +
+            "        * texture2D(uTexture, vTexCoords + uKernel[i].xy * uBlurRadius).rgb;" +
+            "  }" +
+            "  float lum = dot(color, vec3(0.299, 0.587, 0.114));" +
+            "  gl_FragColor = vec4(mix(color, vec3(lum), uDesaturate) * (1.0 - uDim), uAlpha);" +
+            "}";
 
-    private static final float[] SQUARE_TEXTURE_VERTICES = {
-            0, 0, // top left
-            0, 1, // bottom left
-            1, 1, // bottom right
+    // Tiles larger than this make a single tile upload blow through the per-frame upload
+    // budget, so cap them even when the GPU supports larger textures
+    private static final int MAX_TILE_SIZE = 1024;
 
-            0, 0, // top left
-            1, 1, // bottom right
-            1, 0, // top right
-    };
+    // X, Y, S, T per vertex, interleaved in a static VBO built once per picture
+    private static final int COORDS_PER_VERTEX = 2;
+    private static final int COORDS_PER_TEXTURE_VERTEX = 2;
+    private static final int FLOATS_PER_VERTEX = COORDS_PER_VERTEX + COORDS_PER_TEXTURE_VERTEX;
+    private static final int VERTEX_STRIDE_BYTES = FLOATS_PER_VERTEX * GLUtil.BYTES_PER_FLOAT;
+    private static final int TEXTURE_COORDS_OFFSET_BYTES
+            = COORDS_PER_VERTEX * GLUtil.BYTES_PER_FLOAT;
+    private static final int VERTICES_PER_TILE = 4; // TL, BL, BR, TR
+    private static final int INDICES_PER_TILE = 6; // TL, BL, BR, TL, BR, TR
 
     private boolean mHasContent = false;
 
-    private float[] mVertices = new float[COORDS_PER_VERTEX * VERTICES];
-    private FloatBuffer mVertexBuffer;
-    private FloatBuffer mTextureCoordsBuffer;
+    private int mVertexBufferHandle;
+    private int mIndexBufferHandle;
 
     private static int sMaxTextureSize;
+    private static boolean sCompressedTexturesSupported;
 
     private static int sProgramHandle;
     private static int sAttribPositionHandle;
@@ -82,13 +102,30 @@ class GLPicture {
     private static int sUniformAlphaHandle;
     private static int sUniformTextureHandle;
     private static int sUniformMVPMatrixHandle;
+    private static int sUniformDesaturateHandle;
+    private static int sUniformDimHandle;
+
+    private static int sBlurProgramHandle;
+    private static int sBlurAttribPositionHandle;
+    private static int sBlurAttribTextureCoordsHandle;
+    private static int sBlurUniformAlphaHandle;
+    private static int sBlurUniformTextureHandle;
+    private static int sBlurUniformMVPMatrixHandle;
+    private static int sBlurUniformBlurRadiusHandle;
+    private static int sBlurUniformKernelHandle;
+    private static int sBlurUniformDesaturateHandle;
+    private static int sBlurUniformDimHandle;
+    private static float[] sBlurKernel;
 
     private int mCols = 1;
     private int mRows = 1;
     private int mWidth = 0;
     private int mHeight = 0;
     private int mTileSize = sMaxTextureSize;
+    private int mRotation = 0;
     private int[] mTextureHandles;
+    private PictureTiles mTiles;
+    private int mNextTileToUpload = 0;
 
     public static void initGl() {
         // Initialize shaders and create/link program
@@ -101,176 +138,357 @@ class GLPicture {
         sUniformMVPMatrixHandle = GLES20.glGetUniformLocation(sProgramHandle, "uMVPMatrix");
         sUniformTextureHandle = GLES20.glGetUniformLocation(sProgramHandle, "uTexture");
         sUniformAlphaHandle = GLES20.glGetUniformLocation(sProgramHandle, "uAlpha");
+        sUniformDesaturateHandle = GLES20.glGetUniformLocation(sProgramHandle, "uDesaturate");
+        sUniformDimHandle = GLES20.glGetUniformLocation(sProgramHandle, "uDim");
+
+        vertexShaderHandle = GLUtil.loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_CODE);
+        fragShaderHandle = GLUtil.loadShader(GLES20.GL_FRAGMENT_SHADER,
+                BLUR_FRAGMENT_SHADER_CODE);
+
+        sBlurProgramHandle = GLUtil.createAndLinkProgram(vertexShaderHandle, fragShaderHandle,
+                null);
+        sBlurAttribPositionHandle = GLES20.glGetAttribLocation(sBlurProgramHandle, "aPosition");
+        sBlurAttribTextureCoordsHandle = GLES20.glGetAttribLocation(sBlurProgramHandle,
+                "aTexCoords");
+        sBlurUniformMVPMatrixHandle = GLES20.glGetUniformLocation(sBlurProgramHandle,
+                "uMVPMatrix");
+        sBlurUniformTextureHandle = GLES20.glGetUniformLocation(sBlurProgramHandle, "uTexture");
+        sBlurUniformAlphaHandle = GLES20.glGetUniformLocation(sBlurProgramHandle, "uAlpha");
+        sBlurUniformBlurRadiusHandle = GLES20.glGetUniformLocation(sBlurProgramHandle,
+                "uBlurRadius");
+        sBlurUniformKernelHandle = GLES20.glGetUniformLocation(sBlurProgramHandle, "uKernel");
+        sBlurUniformDesaturateHandle = GLES20.glGetUniformLocation(sBlurProgramHandle,
+                "uDesaturate");
+        sBlurUniformDimHandle = GLES20.glGetUniformLocation(sBlurProgramHandle, "uDim");
+        if (sBlurKernel == null) {
+            sBlurKernel = createBlurKernel();
+        }
 
         // Compute max texture size
         int[] maxTextureSize = new int[1];
         GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
         sMaxTextureSize = maxTextureSize[0];
+
+        sCompressedTexturesSupported = ETC1Util.isETC1Supported();
     }
 
-    public GLPicture(BitmapRegionLoader bitmapRegionLoader, int maxHeight) {
-        if (bitmapRegionLoader == null || maxHeight == 0) {
-            return;
+    /**
+     * Builds the shader blur kernel: a center tap plus taps on a golden angle spiral filling
+     * the unit disk, weighted by a gaussian falloff and normalized to sum to 1.
+     */
+    private static float[] createBlurKernel() {
+        float[] kernel = new float[BLUR_KERNEL_TAPS * 3];
+        float totalWeight = 0;
+        int spiralTaps = BLUR_KERNEL_TAPS - 1;
+        for (int i = 0; i < BLUR_KERNEL_TAPS; i++) {
+            float r = 0;
+            float theta = 0;
+            if (i > 0) {
+                r = (float) Math.sqrt((i - 0.5f) / spiralTaps);
+                theta = i * 2.39996323f; // golden angle
+            }
+            float weight = (float) Math.exp(-2 * r * r);
+            kernel[i * 3] = (float) (r * Math.cos(theta));
+            kernel[i * 3 + 1] = (float) (r * Math.sin(theta));
+            kernel[i * 3 + 2] = weight;
+            totalWeight += weight;
         }
-
-        mHasContent = true;
-        mVertexBuffer = GLUtil.newFloatBuffer(mVertices.length);
-        mTextureCoordsBuffer = GLUtil.asFloatBuffer(SQUARE_TEXTURE_VERTICES);
-
-        int originalWidth = bitmapRegionLoader.getWidth();
-        int originalHeight = bitmapRegionLoader.getHeight();
-        int sampleSize = 1;
-        while (originalHeight / (sampleSize << 1) > maxHeight) {
-            sampleSize <<= 1;
+        for (int i = 0; i < BLUR_KERNEL_TAPS; i++) {
+            kernel[i * 3 + 2] /= totalWeight;
         }
+        return kernel;
+    }
+
+    /**
+     * Returns the tile size that {@link PictureTiles} passed to this class should use. Only valid
+     * after {@link #initGl()} has been called. OpenGL ES 2.0 always supports non-power-of-two
+     * textures with {@link GLES20#GL_CLAMP_TO_EDGE} and no mipmaps, which is all pictures use, so
+     * tiles are as large as the GPU and the upload budget allow rather than a power of two.
+     */
+    public static int getTileSize() {
+        return Math.min(MAX_TILE_SIZE, sMaxTextureSize);
+    }
 
-        mWidth = originalWidth / sampleSize;
-        mHeight = originalHeight / sampleSize;
+    /**
+     * Returns whether {@link PictureTiles} passed to this class may hold ETC1 compressed tiles.
+     * Only valid after {@link #initGl()} has been called.
+     */
+    public static boolean areCompressedTexturesSupported() {
+        return sCompressedTexturesSupported;
+    }
 
-        mTileSize = Math.min(512, sMaxTextureSize);
-        int unsampledTileSize = mTileSize * sampleSize;
-        int leftoverHeight = originalHeight % unsampledTileSize;
+    /**
+     * Returns the largest size a single tile can be. Pictures drawn with
+     * {@link #drawBlurred(float[], float, float, float, float)} should fit in a single tile,
+     * since the blur can't sample across tile edges.
+     */
+    public static int getMaxTextureSize() {
+        return sMaxTextureSize;
+    }
 
-        // Load m x n textures
-        mCols = MathUtil.intDivideRoundUp(mWidth, mTileSize);
-        mRows = MathUtil.intDivideRoundUp(mHeight, mTileSize);
+    /**
+     * Creates a picture from the given tiles. No textures are uploaded until
+     * {@link #uploadTiles(long)} is called. The tiles stay owned by the caller, since they may
+     * be shared with other pictures, and must not be recycled until they're uploaded.
+     */
+    public GLPicture(PictureTiles tiles) {
+        if (tiles == null) {
+            return;
+        }
 
+        mHasContent = true;
+
+        mTiles = tiles;
+        mWidth = tiles.mWidth;
+        mHeight = tiles.mHeight;
+        mTileSize = tiles.mTileSize;
+        mCols = tiles.mCols;
+        mRows = tiles.mRows;
+        mRotation = tiles.mRotation;
         mTextureHandles = new int[mCols * mRows];
 
-        Bitmap tileBitmap = Bitmap.createBitmap(mTileSize, mTileSize, Bitmap.Config.ARGB_8888);
-        Rect rect = new Rect();
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inSampleSize = sampleSize;
-        options.inBitmap = tileBitmap;
+        createTileMesh();
+    }
+
+    /**
+     * Builds the static mesh for all tiles into a VBO and IBO, so drawing needs no per-frame
+     * vertex updates. Tile i's two triangles are indices [6i, 6i + 6) in the IBO. Tile textures
+     * hold their regions unrotated, so the picture's rotation is applied by rotating each
+     * tile's texture coordinates.
+     */
+    private void createTileMesh() {
+        int numTiles = mCols * mRows;
+        float[] vertices = new float[numTiles * VERTICES_PER_TILE * FLOATS_PER_VERTEX];
+        short[] indices = new short[numTiles * INDICES_PER_TILE];
         for (int y = 0; y < mRows; y++) {
             for (int x = 0; x < mCols; x++) {
-                rect.set(x * unsampledTileSize,
-                        (mRows - y - 1) * unsampledTileSize,
-                        (x + 1) * unsampledTileSize,
-                        (mRows - y) * unsampledTileSize);
-                // The bottom tiles must be full tiles for drawing, so only allow edge tiles
-                // at the top
-                if (leftoverHeight > 0) {
-                    rect.offset(0, -unsampledTileSize + leftoverHeight);
-                }
-                rect.intersect(0, 0, originalWidth, originalHeight);
-                Bitmap useBitmap = bitmapRegionLoader.decodeRegion(rect, options);
-                if (useBitmap != null) {
-                    mTextureHandles[y * mCols + x] = GLUtil.loadTexture(useBitmap);
-                    if (useBitmap != tileBitmap) {
-                        useBitmap.recycle();
-                    }
-                }
+                int tile = y * mCols + x;
+                float left = Math.min(-1 + 2f * x * mTileSize / mWidth, 1);
+                float top = Math.min(-1 + 2f * (y + 1) * mTileSize / mHeight, 1);
+                float right = Math.min(-1 + 2f * (x + 1) * mTileSize / mWidth, 1);
+                float bottom = Math.min(-1 + 2f * y * mTileSize / mHeight, 1);
+
+                int v = tile * VERTICES_PER_TILE * FLOATS_PER_VERTEX;
+                // top left
+                vertices[v++] = left;
+                vertices[v++] = top;
+                v = putTextureCoords(vertices, v, 0, 0);
+                // bottom left
+                vertices[v++] = left;
+                vertices[v++] = bottom;
+                v = putTextureCoords(vertices, v, 0, 1);
+                // bottom right
+                vertices[v++] = right;
+                vertices[v++] = bottom;
+                v = putTextureCoords(vertices, v, 1, 1);
+                // top right
+                vertices[v++] = right;
+                vertices[v++] = top;
+                putTextureCoords(vertices, v, 1, 0);
+
+                int i = tile * INDICES_PER_TILE;
+                short firstVertex = (short) (tile * VERTICES_PER_TILE);
+                indices[i++] = firstVertex; // TL
+                indices[i++] = (short) (firstVertex + 1); // BL
+                indices[i++] = (short) (firstVertex + 2); // BR
+                indices[i++] = firstVertex; // TL
+                indices[i++] = (short) (firstVertex + 2); // BR
+                indices[i] = (short) (firstVertex + 3); // TR
             }
         }
+
+        int[] bufferHandles = new int[2];
+        GLES20.glGenBuffers(2, bufferHandles, 0);
+        mVertexBufferHandle = bufferHandles[0];
+        mIndexBufferHandle = bufferHandles[1];
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferHandle);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices.length * GLUtil.BYTES_PER_FLOAT,
+                GLUtil.asFloatBuffer(vertices), GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferHandle);
+        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER,
+                indices.length * GLUtil.BYTES_PER_SHORT,
+                GLUtil.asShortBuffer(indices), GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        GLUtil.checkGlError("createTileMesh");
     }
 
-    public GLPicture(Bitmap bitmap) {
-        if (bitmap == null) {
-            return;
+    /**
+     * Writes the texture coordinates of the point at (s, t) in the displayed tile, where (0, 0)
+     * is its top left corner, into the given array. Returns the index after them.
+     */
+    private int putTextureCoords(float[] vertices, int index, float s, float t) {
+        switch (mRotation) {
+            case 90:
+                vertices[index++] = t;
+                vertices[index++] = 1 - s;
+                break;
+
+            case 180:
+                vertices[index++] = 1 - s;
+                vertices[index++] = 1 - t;
+                break;
+
+            case 270:
+                vertices[index++] = 1 - t;
+                vertices[index++] = s;
+                break;
+
+            default:
+                vertices[index++] = s;
+                vertices[index++] = t;
         }
+        return index;
+    }
 
-        mTileSize = Math.min(512, sMaxTextureSize);
-        mHasContent = true;
-        mVertexBuffer = GLUtil.newFloatBuffer(mVertices.length);
-        mTextureCoordsBuffer = GLUtil.asFloatBuffer(SQUARE_TEXTURE_VERTICES);
-
-        mWidth = bitmap.getWidth();
-        mHeight = bitmap.getHeight();
-        int leftoverHeight = mHeight % mTileSize;
-
-        // Load m x n textures
-        mCols = MathUtil.intDivideRoundUp(mWidth, mTileSize);
-        mRows = MathUtil.intDivideRoundUp(mHeight, mTileSize);
+    /**
+     * Uploads pending tiles until all are uploaded or the given {@link System#nanoTime()}
+     * deadline passes. At least one tile is uploaded per call so that uploading always makes
+     * progress. Must be called on the GL thread.
+     *
+     * @return true if all tiles have been uploaded
+     */
+    public boolean uploadTiles(long deadlineNanos) {
+        if (mTiles == null) {
+            return true;
+        }
 
-        mTextureHandles = new int[mCols * mRows];
-        if (mCols == 1 && mRows == 1) {
-            mTextureHandles[0] = GLUtil.loadTexture(bitmap);
-        } else {
-            Rect rect = new Rect();
-            for (int y = 0; y < mRows; y++) {
-                for (int x = 0; x < mCols; x++) {
-                    rect.set(x * mTileSize,
-                            (mRows - y - 1) * mTileSize,
-                            (x + 1) * mTileSize,
-                            (mRows - y) * mTileSize);
-                    // The bottom tiles must be full tiles for drawing, so only allow edge tiles
-                    // at the top
-                    if (leftoverHeight > 0) {
-                        rect.offset(0, -mTileSize + leftoverHeight);
-                    }
-                    rect.intersect(0, 0, mWidth, mHeight);
-                    Bitmap subBitmap = Bitmap.createBitmap(bitmap,
-                            rect.left, rect.top, rect.width(), rect.height());
-                    mTextureHandles[y * mCols + x] = GLUtil.loadTexture(subBitmap);
-                    subBitmap.recycle();
-                }
+        Bitmap[] bitmaps = mTiles.mBitmaps;
+        ETC1Util.ETC1Texture[] compressedTiles = mTiles.mCompressedTiles;
+        while (mNextTileToUpload < bitmaps.length) {
+            Bitmap bitmap = bitmaps[mNextTileToUpload];
+            if (bitmap != null) {
+                mTextureHandles[mNextTileToUpload] = GLUtil.loadTexture(bitmap);
+            } else if (compressedTiles[mNextTileToUpload] != null) {
+                mTextureHandles[mNextTileToUpload] = GLUtil.loadCompressedTexture(
+                        compressedTiles[mNextTileToUpload]);
+            }
+            ++mNextTileToUpload;
+            if (System.nanoTime() > deadlineNanos) {
+                break;
             }
         }
+
+        if (mNextTileToUpload < bitmaps.length) {
+            return false;
+        }
+
+        mTiles = null;
+        return true;
+    }
+
+    public boolean isUploaded() {
+        return mTiles == null;
     }
 
-    public void draw(float[] mvpMatrix, float alpha) {
-        if (!mHasContent) {
+    /**
+     * Draws this picture.
+     *
+     * @param desaturateAmount how much to desaturate the picture, from 0 to 1
+     * @param dimAmount how much to darken the picture, from 0 (not at all) to 1 (black)
+     */
+    public void draw(float[] mvpMatrix, float alpha, float desaturateAmount, float dimAmount) {
+        if (!mHasContent || !isUploaded()) {
             return;
         }
 
         // Add program to OpenGL ES environment
         GLES20.glUseProgram(sProgramHandle);
 
+        // Set the alpha and color adjustments
+        GLES20.glUniform1f(sUniformAlphaHandle, alpha);
+        GLES20.glUniform1f(sUniformDesaturateHandle,
+                Math.max(0, Math.min(1, desaturateAmount)));
+        GLES20.glUniform1f(sUniformDimHandle, Math.max(0, Math.min(1, dimAmount)));
+
+        drawTiles(mvpMatrix, sUniformMVPMatrixHandle, sAttribPositionHandle,
+                sUniformTextureHandle, sAttribTextureCoordsHandle);
+    }
+
+    /**
+     * Draws this picture blurred in the fragment shader. Intended for small, downsampled
+     * pictures that fit in a single tile.
+     *
+     * @param blurRadius the blur radius in pixels of this picture
+     * @param desaturateAmount how much to desaturate the picture, from 0 to 1
+     * @param dimAmount how much to darken the picture, from 0 (not at all) to 1 (black)
+     */
+    public void drawBlurred(float[] mvpMatrix, float alpha, float blurRadius,
+            float desaturateAmount, float dimAmount) {
+        if (!mHasContent || !isUploaded()) {
+            return;
+        }
+
+        GLES20.glUseProgram(sBlurProgramHandle);
+
+        GLES20.glUniform1f(sBlurUniformAlphaHandle, alpha);
+        GLES20.glUniform1f(sBlurUniformDesaturateHandle,
+                Math.max(0, Math.min(1, desaturateAmount)));
+        GLES20.glUniform1f(sBlurUniformDimHandle, Math.max(0, Math.min(1, dimAmount)));
+        GLES20.glUniform3fv(sBlurUniformKernelHandle, BLUR_KERNEL_TAPS, sBlurKernel, 0);
+        // The radius is in texture coordinates, whose axes are swapped when rotated a quarter turn
+        float radiusX = blurRadius / Math.min(mWidth, mTileSize);
+        float radiusY = blurRadius / Math.min(mHeight, mTileSize);
+        boolean swapAxes = mRotation == 90 || mRotation == 270;
+        GLES20.glUniform2f(sBlurUniformBlurRadiusHandle,
+                swapAxes ? radiusY : radiusX,
+                swapAxes ? radiusX : radiusY);
+
+        drawTiles(mvpMatrix, sBlurUniformMVPMatrixHandle, sBlurAttribPositionHandle,
+                sBlurUniformTextureHandle, sBlurAttribTextureCoordsHandle);
+    }
+
+    private void drawTiles(float[] mvpMatrix, int uniformMVPMatrixHandle,
+            int attribPositionHandle, int uniformTextureHandle, int attribTextureCoordsHandle) {
         // Apply the projection and view transformation
-        GLES20.glUniformMatrix4fv(sUniformMVPMatrixHandle, 1, false, mvpMatrix, 0);
+        GLES20.glUniformMatrix4fv(uniformMVPMatrixHandle, 1, false, mvpMatrix, 0);
         GLUtil.checkGlError("glUniformMatrix4fv");
 
-        // Set up vertex buffer
-        GLES20.glEnableVertexAttribArray(sAttribPositionHandle);
-        GLES20.glVertexAttribPointer(sAttribPositionHandle,
+        // Set up the static tile mesh
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferHandle);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferHandle);
+        GLES20.glEnableVertexAttribArray(attribPositionHandle);
+        GLES20.glVertexAttribPointer(attribPositionHandle,
                 COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
-                VERTEX_STRIDE_BYTES, mVertexBuffer);
+                VERTEX_STRIDE_BYTES, 0);
+        GLES20.glEnableVertexAttribArray(attribTextureCoordsHandle);
+        GLES20.glVertexAttribPointer(attribTextureCoordsHandle,
+                COORDS_PER_TEXTURE_VERTEX, GLES20.GL_FLOAT, false,
+                VERTEX_STRIDE_BYTES, TEXTURE_COORDS_OFFSET_BYTES);
 
         // Set up texture stuff
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glUniform1i(sUniformTextureHandle, 0);
-        GLES20.glVertexAttribPointer(sAttribTextureCoordsHandle,
-                COORDS_PER_TEXTURE_VERTEX, GLES20.GL_FLOAT, false,
-                TEXTURE_VERTEX_STRIDE_BYTES, mTextureCoordsBuffer);
-        GLES20.glEnableVertexAttribArray(sAttribTextureCoordsHandle);
-
-        // Set the alpha
-        GLES20.glUniform1f(sUniformAlphaHandle, alpha);
-
-        // Draw tiles
-        for (int y = 0; y < mRows; y++) {
-            for (int x = 0; x < mCols; x++) {
-                // Pass in the vertex information
-                mVertices[0] = mVertices[3] = mVertices[9]
-                        = Math.min(-1 + 2f * x * mTileSize / mWidth, 1); // left
-                mVertices[1] = mVertices[10] = mVertices[16]
-                        = Math.min(-1 + 2f * (y + 1) * mTileSize / mHeight, 1); // top
-                mVertices[6] = mVertices[12] = mVertices[15]
-                        = Math.min(-1 + 2f * (x + 1) * mTileSize / mWidth, 1); // right
-                mVertices[4] = mVertices[7] = mVertices[13]
-                        = Math.min(-1 + 2f * y * mTileSize / mHeight, 1); // bottom
-                mVertexBuffer.put(mVertices);
-                mVertexBuffer.position(0);
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,
-                        mTextureHandles[y * mCols + x]);
-                GLUtil.checkGlError("glBindTexture");
-
-                // Draw the two triangles
-                GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, mVertices.length / COORDS_PER_VERTEX);
-            }
+        GLES20.glUniform1i(uniformTextureHandle, 0);
+
+        // Draw tiles, one call per tile texture
+        for (int tile = 0; tile < mTextureHandles.length; tile++) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureHandles[tile]);
+            GLES20.glDrawElements(GLES20.GL_TRIANGLES, INDICES_PER_TILE,
+                    GLES20.GL_UNSIGNED_SHORT,
+                    tile * INDICES_PER_TILE * GLUtil.BYTES_PER_SHORT);
         }
+        GLUtil.checkGlError("glDrawElements");
 
-        GLES20.glDisableVertexAttribArray(sAttribPositionHandle);
-        GLES20.glDisableVertexAttribArray(sAttribTextureCoordsHandle);
+        GLES20.glDisableVertexAttribArray(attribPositionHandle);
+        GLES20.glDisableVertexAttribArray(attribTextureCoordsHandle);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
     }
 
     public void destroy() {
+        mTiles = null;
         if (mTextureHandles != null) {
             GLES20.glDeleteTextures(mTextureHandles.length, mTextureHandles, 0);
             GLUtil.checkGlError("Destroy picture");
             mTextureHandles = null;
         }
+        if (mVertexBufferHandle != 0) {
+            int[] bufferHandles = {mVertexBufferHandle, mIndexBufferHandle};
+            GLES20.glDeleteBuffers(2, bufferHandles, 0);
+            mVertexBufferHandle = 0;
+            mIndexBufferHandle = 0;
+        }
     }
 }
@@ -17,6 +17,8 @@
 package com.google.android.apps.muzei.render;
 
 import android.graphics.Bitmap;
+import android.opengl.ETC1;
+import android.opengl.ETC1Util;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
 
@@ -27,6 +29,7 @@ import net.nurik.roman.muzei.BuildConfig;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 
 import static com.google.android.apps.muzei.util.LogUtil.LOGE;
 
@@ -34,6 +37,7 @@ public class GLUtil {
     private static final String TAG = LogUtil.makeLogTag(GLUtil.class);
 
     public static final int BYTES_PER_FLOAT = 4;
+    public static final int BYTES_PER_SHORT = 2;
 
     public static int loadShader(int type, String shaderCode) {
         // create a vertex shader type (GLES20.GL_VERTEX_SHADER)
@@ -67,6 +71,36 @@ public class GLUtil {
     }
 
     public static int loadTexture(Bitmap bitmap) {
+        int textureHandle = createTexture();
+        if (textureHandle != 0) {
+            // Load the bitmap into the bound texture.
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+            GLUtil.checkGlError("texImage2D");
+        }
+        return textureHandle;
+    }
+
+    /**
+     * Loads an ETC1 compressed texture. Callers must check {@link ETC1Util#isETC1Supported()}
+     * first.
+     */
+    public static int loadCompressedTexture(ETC1Util.ETC1Texture texture) {
+        int textureHandle = createTexture();
+        if (textureHandle != 0) {
+            ByteBuffer data = texture.getData();
+            data.position(0);
+            GLES20.glCompressedTexImage2D(GLES20.GL_TEXTURE_2D, 0, ETC1.ETC1_RGB8_OES,
+                    texture.getWidth(), texture.getHeight(), 0, data.remaining(), data);
+            GLUtil.checkGlError("glCompressedTexImage2D");
+        }
+        return textureHandle;
+    }
+
+    /**
+     * Generates and binds a new texture with the filtering every picture uses, returning its
+     * handle or 0 on failure.
+     */
+    private static int createTexture() {
         final int[] textureHandle = new int[1];
 
         GLES20.glGenTextures(1, textureHandle, 0);
@@ -85,10 +119,6 @@ public class GLUtil {
                     GLES20.GL_LINEAR);
             GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
                     GLES20.GL_LINEAR);
-
-            // Load the bitmap into the bound texture.
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
-            GLUtil.checkGlError("texImage2D");
         }
 
         if (textureHandle[0] == 0) {
@@ -118,6 +148,15 @@ public class GLUtil {
         return buffer;
     }
 
+    public static ShortBuffer asShortBuffer(short[] array) {
+        ShortBuffer buffer = ByteBuffer.allocateDirect(array.length * BYTES_PER_SHORT)
+                .order(ByteOrder.nativeOrder())
+                .asShortBuffer();
+        buffer.put(array);
+        buffer.position(0);
+        return buffer;
+    }
+
     public static FloatBuffer newFloatBuffer(int size) {
         FloatBuffer buffer = ByteBuffer.allocateDirect(size * BYTES_PER_FLOAT)
                 .order(ByteOrder.nativeOrder())
@@ -21,27 +21,38 @@ import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Color;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
 import android.os.Build;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.util.DisplayMetrics;
+import android.view.Choreographer;
 import android.view.animation.AccelerateDecelerateInterpolator;
 import android.view.animation.Interpolator;
 
 import com.google.android.apps.muzei.ArtDetailViewport;
+import com.google.android.apps.muzei.KeyframeCache;
 import com.google.android.apps.muzei.event.ArtworkSizeChangedEvent;
 import com.google.android.apps.muzei.event.SwitchingPhotosStateChangedEvent;
 import com.google.android.apps.muzei.settings.Prefs;
+import com.google.android.apps.muzei.util.BitmapPool;
+import com.google.android.apps.muzei.util.IOUtil;
 import com.google.android.apps.muzei.util.ImageBlurrer;
 import com.google.android.apps.muzei.util.LogUtil;
 import com.google.android.apps.muzei.util.MathUtil;
 import com.google.android.apps.muzei.util.TickingFloatAnimator;
 
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -54,6 +65,9 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
 
     private static final int CROSSFADE_ANIMATION_DURATION = 750;
     private static final int BLUR_ANIMATION_DURATION = 750;
+    private static final long UPLOAD_BUDGET_NANOS = 4 * 1000 * 1000; // per frame
+    private static final int SHADER_BLUR_MAX_PIXELS = 6; // in downsampled blur base pixels
+    private static final int PREVIEW_SAMPLE_FRACTION = 8; // preview height is 1/8 screen height
 
     public static final int DEFAULT_BLUR = 250; // max 500
     public static final int DEFAULT_GREY = 0; // max 500
@@ -64,6 +78,7 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
 
     private boolean mDemoMode;
     private boolean mPreview;
+    private boolean mShaderBlur;
     private int mMaxPrescaledBlurPixels;
     private int mBlurKeyframes = 3;
     private int mBlurredSampleSize;
@@ -81,16 +96,42 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
 
     private GLPictureSet mCurrentGLPictureSet;
     private GLPictureSet mNextGLPictureSet;
-    private GLColorOverlay mColorOverlay;
 
     private BitmapRegionLoader mQueuedNextBitmapRegionLoader;
 
+    // Artwork is prepared (decoded, scaled and blurred) on a background thread, then handed
+    // to the GL thread to be uploaded a little at a time between frames. While blurred, a low
+    // resolution preview is prepared and crossfaded in first, and the picture set showing it
+    // is upgraded in place once the full artwork is ready.
+    private final ExecutorService mPrepareExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicReference<PreparedArtwork> mPreparedPreview = new AtomicReference<>();
+    private final AtomicReference<PreparedArtwork> mPreparedArtwork = new AtomicReference<>();
+    private GLPictureSet mPreviewGLPictureSet;
+    private boolean mLoadingNextArtwork;
+
+    // When only the blur amount changes, keyframes are regenerated from the downsampled base
+    // kept from preparing the current artwork, and only they are uploaded again
+    private volatile BlurBase mBlurBase;
+    private final AtomicReference<PreparedKeyframes> mPreparedKeyframes
+            = new AtomicReference<>();
+
     private boolean mSurfaceCreated;
 
-    private volatile float mNormalOffsetX;
+    // Frame and load stage timings for dumpsys and the optional debug overlay
+    private final FrameStats mFrameStats = new FrameStats();
+    private FrameStatsOverlay mFrameStatsOverlay;
+    private boolean mDebugOverlay;
+    private long mUploadNanos;
+
+    // Offset changes arrive far more often than frames while swiping between home screens,
+    // so they only set a target, which the GL thread applies once per frame
+    private volatile float mTargetNormalOffsetX;
+    private float mNormalOffsetX;
+    private final AtomicBoolean mOffsetFrameCallbackPending = new AtomicBoolean();
     private volatile RectF mCurrentViewport = new RectF(); // [-1, -1] to [1, 1], flipped
 
     private Context mContext;
+    private final BitmapPool mBitmapPool;
 
     private boolean mIsBlurred = true;
     private boolean mBlurRelatedToArtDetailMode = false;
@@ -101,16 +142,18 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
     public MuzeiBlurRenderer(Context context, Callbacks callbacks) {
         mContext = context;
         mCallbacks = callbacks;
+        mBitmapPool = BitmapPool.getInstance(context);
 
         mBlurKeyframes = getNumberOfKeyframes();
+        mShaderBlur = shouldUseShaderBlur();
         mBlurAnimator = TickingFloatAnimator.create().from(mBlurKeyframes);
 
         mCurrentGLPictureSet = new GLPictureSet(0);
         mNextGLPictureSet = new GLPictureSet(1); // for transitioning to next pictures
-        setNormalOffsetX(0);
         recomputeMaxPrescaledBlurPixels();
         recomputeMaxDimAmount();
         recomputeGreyAmount();
+        recomputeDebugOverlay();
     }
 
     @TargetApi(Build.VERSION_CODES.KITKAT)
@@ -126,6 +169,42 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
         return 5;
     }
 
+    /**
+     * In shader blur mode, a single downsampled copy of the artwork is uploaded and blurred in
+     * the fragment shader instead of uploading a pre-blurred texture per keyframe. This is
+     * used where texture memory is tightest.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private boolean shouldUseShaderBlur() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            ActivityManager activityManager = (ActivityManager)
+                    mContext.getSystemService(Context.ACTIVITY_SERVICE);
+            return activityManager.isLowRamDevice();
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the config for blurred pictures. They have no fine detail, so on low RAM devices
+     * or while the system is low on memory they're kept as dithered RGB_565, halving their
+     * memory and upload bandwidth with no visible difference. Called when preparing each
+     * artwork, so it follows changes in memory pressure.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private Bitmap.Config getBlurredPictureConfig() {
+        ActivityManager activityManager = (ActivityManager)
+                mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && activityManager.isLowRamDevice()) {
+            return Bitmap.Config.RGB_565;
+        }
+
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        return memoryInfo.lowMemory ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
     public void recomputeMaxPrescaledBlurPixels() {
         // Compute blur sizes
         float maxBlurRadiusOverScreenHeight = PreferenceManager
@@ -133,8 +212,14 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                 * 0.0001f;
         DisplayMetrics dm = mContext.getResources().getDisplayMetrics();
         int maxBlurPx = (int) (dm.heightPixels * maxBlurRadiusOverScreenHeight);
+        // The shader blur's taps get sparse at large radii, so downsample further in that mode.
+        // Otherwise radii beyond RenderScript's limit are blurred in Java, which costs the same
+        // per pixel at any radius, so there's no need to downsample for them.
+        int maxSupportedBlurPx = mShaderBlur
+                ? SHADER_BLUR_MAX_PIXELS
+                : ImageBlurrer.MAX_EXTENDED_BLUR_PIXELS;
         mBlurredSampleSize = 4;
-        while (maxBlurPx / mBlurredSampleSize > ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS) {
+        while (maxBlurPx / mBlurredSampleSize > maxSupportedBlurPx) {
             mBlurredSampleSize <<= 1;
         }
         mMaxPrescaledBlurPixels = maxBlurPx / mBlurredSampleSize;
@@ -153,6 +238,11 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                 .getInt(Prefs.PREF_GREY_AMOUNT, DEFAULT_GREY);
     }
 
+    public void recomputeDebugOverlay() {
+        mDebugOverlay = !mDemoMode && PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getBoolean(Prefs.PREF_DEBUG_OVERLAY, false);
+    }
+
     public void onSurfaceCreated(GL10 unused, EGLConfig config) {
         mSurfaceCreated = false;
         GLES20.glEnable(GLES20.GL_BLEND);
@@ -170,7 +260,7 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
         GLColorOverlay.initGl();
         GLPicture.initGl();
 
-        mColorOverlay = new GLColorOverlay(0);
+        mFrameStatsOverlay = new FrameStatsOverlay();
 
         mSurfaceCreated = true;
         if (mQueuedNextBitmapRegionLoader != null) {
@@ -199,50 +289,64 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
     }
 
     public void onDrawFrame(GL10 unused) {
+        mFrameStats.onFrameStart();
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
         Matrix.setIdentityM(mMMatrix, 0);
 
-        boolean stillAnimating = mCrossfadeAnimator.tick();
-        stillAnimating |= mBlurAnimator.tick();
+        boolean stillAnimating = uploadPreparedArtwork();
+        boolean crossfading = mCrossfadeAnimator.tick();
+        boolean blurAnimating = mBlurAnimator.tick();
+        stillAnimating |= crossfading || blurAnimating;
 
-        if (mBlurRelatedToArtDetailMode) {
+        float targetNormalOffsetX = mTargetNormalOffsetX;
+        boolean offsetChanged = targetNormalOffsetX != mNormalOffsetX;
+        mNormalOffsetX = targetNormalOffsetX;
+        if (offsetChanged || mBlurRelatedToArtDetailMode) {
             mCurrentGLPictureSet.recomputeTransformMatrices();
             mNextGLPictureSet.recomputeTransformMatrices();
         }
 
-        float dimAmount = mCurrentGLPictureSet.mDimAmount;
         mCurrentGLPictureSet.drawFrame(1);
         if (mCrossfadeAnimator.isRunning()) {
-            dimAmount = MathUtil.interpolate(dimAmount, mNextGLPictureSet.mDimAmount,
-                    mCrossfadeAnimator.currentValue());
             mNextGLPictureSet.drawFrame(mCrossfadeAnimator.currentValue());
         }
 
-        mColorOverlay.setColor(Color.argb((int) (dimAmount
-                * mBlurAnimator.currentValue() / mBlurKeyframes), 0, 0, 0));
-        mColorOverlay.draw(mMMatrix); // don't need any perspective or anything for color overlay
+        mFrameStats.onFrameEnd(crossfading, blurAnimating, stillAnimating);
+        if (mDebugOverlay) {
+            mFrameStatsOverlay.draw(mFrameStats);
+        }
 
         if (stillAnimating) {
             mCallbacks.requestRender();
         }
     }
 
+    /**
+     * Sets the horizontal offset to pan to. Can be called on any thread, as often as offsets
+     * change: the latest offset is applied at the start of the next frame, and when called on
+     * a looper thread, at most one render is requested per vsync.
+     */
     public void setNormalOffsetX(float x) {
-        mNormalOffsetX = MathUtil.constrain(0, 1, x);
-        onViewportChanged();
+        mTargetNormalOffsetX = MathUtil.constrain(0, 1, x);
+        if (Looper.myLooper() == null) {
+            mCallbacks.requestRender();
+        } else if (mOffsetFrameCallbackPending.compareAndSet(false, true)) {
+            Choreographer.getInstance().postFrameCallback(mOffsetFrameCallback);
+        }
     }
 
-    private void onViewportChanged() {
-        mCurrentGLPictureSet.recomputeTransformMatrices();
-        mNextGLPictureSet.recomputeTransformMatrices();
-        if (mSurfaceCreated) {
+    private final Choreographer.FrameCallback mOffsetFrameCallback
+            = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mOffsetFrameCallbackPending.set(false);
             mCallbacks.requestRender();
         }
-    }
+    };
 
-    private float blurRadiusAtFrame(float f) {
-        return mMaxPrescaledBlurPixels * mBlurInterpolator.getInterpolation(f / mBlurKeyframes);
+    private float blurRadiusAtFrame(int maxPrescaledBlurPixels, float f) {
+        return maxPrescaledBlurPixels * mBlurInterpolator.getInterpolation(f / mBlurKeyframes);
     }
 
     public void setAndConsumeBitmapRegionLoader(final BitmapRegionLoader bitmapRegionLoader) {
@@ -251,7 +355,7 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
             return;
         }
 
-        if (mCrossfadeAnimator.isRunning()) {
+        if (mCrossfadeAnimator.isRunning() || mLoadingNextArtwork) {
             if (mQueuedNextBitmapRegionLoader != null) {
                 mQueuedNextBitmapRegionLoader.destroy();
             }
@@ -269,8 +373,150 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                     mAspectRatio);
         }
 
-        mNextGLPictureSet.load(bitmapRegionLoader);
+        mLoadingNextArtwork = true;
+        final PrepareParams params = new PrepareParams();
+        mPrepareExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Keep a decoder open over the artwork so art detail mode can zoom in past
+                // the resolution of the sharp picture
+                BitmapRegionLoader detailLoader = params.mDetailZoom
+                        ? bitmapRegionLoader.newSibling()
+                        : null;
+
+                // Another renderer may have already prepared this artwork
+                PreparedArtworkCache preparedArtworkCache = PreparedArtworkCache.getInstance(
+                        mContext);
+                String cacheKey = params.getPreparedArtworkCacheKey(bitmapRegionLoader);
+                PreparedArtwork preparedArtwork = null;
+                if (cacheKey != null) {
+                    preparedArtwork = preparedArtworkCache.getOrStartPreparing(cacheKey,
+                            detailLoader);
+                }
 
+                if (preparedArtwork != null) {
+                    // The blur base kept from the previous artwork is no use any more
+                    setBlurBase(null);
+                } else {
+                    try {
+                        float dimFactor = computeDimFactor(bitmapRegionLoader, params);
+                        if (params.mProgressive) {
+                            PreparedArtwork preview = preparePreview(bitmapRegionLoader, params,
+                                    dimFactor);
+                            if (preview != null) {
+                                deliver(mPreparedPreview, preview);
+                            }
+                        }
+
+                        preparedArtwork = prepareArtwork(bitmapRegionLoader, params, dimFactor,
+                                detailLoader);
+                    } finally {
+                        if (cacheKey != null) {
+                            // Don't share failed decodes
+                            preparedArtworkCache.finishPreparing(cacheKey,
+                                    preparedArtwork != null && preparedArtwork.mPictures[0] != null
+                                            ? preparedArtwork
+                                            : null);
+                        }
+                    }
+                }
+
+                bitmapRegionLoader.destroy();
+                deliver(mPreparedArtwork, preparedArtwork);
+            }
+
+            private void deliver(AtomicReference<PreparedArtwork> destination,
+                    PreparedArtwork preparedArtwork) {
+                if (mPrepareExecutor.isShutdown()) {
+                    preparedArtwork.recycle();
+                    return;
+                }
+
+                destination.set(preparedArtwork);
+                mCallbacks.requestRender();
+            }
+        });
+    }
+
+    /**
+     * Runs the GL "upload" stage for newly prepared artwork, spending at most
+     * {@link #UPLOAD_BUDGET_NANOS} per frame. The crossfade starts as soon as the first
+     * pictures for the next artwork (the preview, when there is one) are uploaded.
+     *
+     * @return true if there's more to upload on the next frame
+     */
+    private boolean uploadPreparedArtwork() {
+        PreparedKeyframes preparedKeyframes = mPreparedKeyframes.getAndSet(null);
+        if (preparedKeyframes != null) {
+            if (preparedKeyframes.mBlurBaseKey.equals(mCurrentGLPictureSet.mBlurBaseKey)) {
+                mCurrentGLPictureSet.setKeyframes(preparedKeyframes.mTiles);
+            } else {
+                preparedKeyframes.recycle();
+            }
+        }
+
+        PreparedArtwork preview = mPreparedPreview.getAndSet(null);
+        PreparedArtwork preparedArtwork = mPreparedArtwork.getAndSet(null);
+        if (preparedArtwork != null) {
+            if (preview != null) {
+                // The full artwork is already ready, so skip the preview
+                preview.recycle();
+            }
+            GLPictureSet target = mPreviewGLPictureSet != null
+                    ? mPreviewGLPictureSet
+                    : mNextGLPictureSet;
+            target.setPreparedArtwork(preparedArtwork);
+        } else if (preview != null) {
+            mNextGLPictureSet.setPreparedArtwork(preview);
+            mPreviewGLPictureSet = mNextGLPictureSet;
+        }
+
+        // The set being upgraded from a preview may already have become the current set
+        GLPictureSet uploadingGLPictureSet = mNextGLPictureSet.isUploading()
+                ? mNextGLPictureSet
+                : (mCurrentGLPictureSet.isUploading() ? mCurrentGLPictureSet : null);
+        if (uploadingGLPictureSet == null) {
+            return false;
+        }
+
+        boolean firstPictures = !uploadingGLPictureSet.mHasBitmap;
+        boolean keyframesOnly = uploadingGLPictureSet.mPendingKeyframesOnly;
+        long uploadStartNanos = System.nanoTime();
+        boolean uploaded = uploadingGLPictureSet.uploadPictures(
+                uploadStartNanos + UPLOAD_BUDGET_NANOS);
+        mUploadNanos += System.nanoTime() - uploadStartNanos;
+        if (!uploaded) {
+            return true;
+        }
+
+        mFrameStats.recordStage(FrameStats.STAGE_UPLOAD, mUploadNanos);
+        mUploadNanos = 0;
+
+        if (keyframesOnly) {
+            return true;
+        }
+        if (firstPictures) {
+            startCrossfade();
+        }
+        if (!uploadingGLPictureSet.mShowingPreview) {
+            mPreviewGLPictureSet = null;
+            mLoadingNextArtwork = false;
+            if (!mCrossfadeAnimator.isRunning()) {
+                loadQueuedArtwork();
+            }
+        }
+        return true;
+    }
+
+    private void loadQueuedArtwork() {
+        if (mQueuedNextBitmapRegionLoader != null) {
+            BitmapRegionLoader queuedNextBitmapRegionLoader = mQueuedNextBitmapRegionLoader;
+            mQueuedNextBitmapRegionLoader = null;
+            setAndConsumeBitmapRegionLoader(queuedNextBitmapRegionLoader);
+        }
+    }
+
+    private void startCrossfade() {
         mCrossfadeAnimator
                 .from(0).to(1)
                 .withDuration(CROSSFADE_ANIMATION_DURATION)
@@ -287,22 +533,340 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                             EventBus.getDefault().postSticky(new SwitchingPhotosStateChangedEvent(
                                     mCurrentGLPictureSet.mId, false));
                         }
-                        System.gc();
-                        if (mQueuedNextBitmapRegionLoader != null) {
-                            BitmapRegionLoader queuedNextBitmapRegionLoader
-                                    = mQueuedNextBitmapRegionLoader;
-                            mQueuedNextBitmapRegionLoader = null;
-                            setAndConsumeBitmapRegionLoader(queuedNextBitmapRegionLoader);
-                        }
+                        loadQueuedArtwork();
                     }
                 })
                 .start();
-        mCallbacks.requestRender();
+    }
+
+    /**
+     * Returns how much to dim the given artwork relative to the maximum dim amount, dimming
+     * brighter images more. Uses the analysis computed when the artwork was downloaded where
+     * available. Demo mode dims everything by the same amount.
+     */
+    private float computeDimFactor(BitmapRegionLoader bitmapRegionLoader, PrepareParams params) {
+        if (params.mDemoMode) {
+            return 1;
+        }
+
+        ArtworkAnalysis analysis = bitmapRegionLoader.getAnalysis();
+        if (analysis == null) {
+            analysis = ArtworkAnalysis.analyze(bitmapRegionLoader);
+        }
+        float luminance = analysis != null ? analysis.mMeanLuminance : 0;
+        return (float) ((1 - DIM_RANGE) + DIM_RANGE * Math.sqrt(luminance));
+    }
+
+    /**
+     * Decodes a single small, low resolution picture of the artwork that can be uploaded and
+     * crossfaded in within a frame. It's used for every keyframe, since while blurred it's
+     * hard to tell apart from the real keyframes. In shader blur mode, it's the blur base
+     * itself.
+     */
+    private PreparedArtwork preparePreview(BitmapRegionLoader bitmapRegionLoader,
+            PrepareParams params, float dimFactor) {
+        int originalWidth = bitmapRegionLoader.getWidth();
+        int originalHeight = bitmapRegionLoader.getHeight();
+        PictureTiles preview;
+        if (params.mShaderBlur) {
+            // The shader blur's radius is in pixels of the picture it blurs, so the preview must
+            // match the blur base's resolution for it to look as blurred as the final artwork
+            preview = prepareShaderBlurBase(bitmapRegionLoader, params,
+                    originalWidth * 1f / originalHeight);
+        } else {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = ImageUtil.calculateSampleSize(originalHeight,
+                    params.mHeight / PREVIEW_SAMPLE_FRACTION);
+            Bitmap bitmap = bitmapRegionLoader.decodeUnrotatedRegion(
+                    new Rect(0, 0, originalWidth, originalHeight), options, mBitmapPool);
+            preview = PictureTiles.split(bitmap, bitmapRegionLoader.getRotation(),
+                    GLPicture.getMaxTextureSize(), mBitmapPool);
+        }
+        if (preview == null) {
+            return null;
+        }
+
+        PictureTiles[] pictures = new PictureTiles[params.mBlurKeyframes + 1];
+        for (int f = 0; f < pictures.length; f++) {
+            pictures[f] = preview;
+        }
+        return new PreparedArtwork(originalWidth * 1f / originalHeight, dimFactor, pictures,
+                true, null, 0, null);
+    }
+
+    /**
+     * Runs the background "prepare" stage of loading an artwork: decodes the sharp tiles and
+     * generates each blur keyframe. Desaturation and dim are left to the shaders. Must not
+     * touch any renderer state other than the given snapshot of parameters.
+     */
+    private PreparedArtwork prepareArtwork(BitmapRegionLoader bitmapRegionLoader,
+            PrepareParams params, float dimFactor, BitmapRegionLoader detailLoader) {
+        float aspectRatio = bitmapRegionLoader.getWidth() * 1f / bitmapRegionLoader.getHeight();
+        PictureTiles[] pictures = new PictureTiles[params.mBlurKeyframes + 1];
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        Rect rect = new Rect();
+        int originalWidth = bitmapRegionLoader.getWidth();
+        int originalHeight = bitmapRegionLoader.getHeight();
+
+        // Decode the sharp picture tiles, or read them as ETC1 textures if they've been
+        // transcoded on a previous load
+        long stageStartNanos = System.nanoTime();
+        File file = bitmapRegionLoader.getFile();
+        if (params.mCompressedTextures && file != null) {
+            CompressedTileCache compressedTileCache = CompressedTileCache.getInstance(mContext);
+            String key = CompressedTileCache.makeKey(file, bitmapRegionLoader.getRotation(),
+                    params.mHeight, params.mTileSize);
+            pictures[0] = compressedTileCache.get(key);
+            if (pictures[0] == null) {
+                compressedTileCache.transcodeAsync(key, file, bitmapRegionLoader.getRotation(),
+                        params.mHeight, params.mTileSize);
+            }
+        }
+        if (pictures[0] == null) {
+            pictures[0] = PictureTiles.decode(bitmapRegionLoader, params.mHeight,
+                    params.mTileSize, mBitmapPool);
+        }
+        mFrameStats.recordStage(FrameStats.STAGE_DECODE, System.nanoTime() - stageStartNanos);
+
+        stageStartNanos = System.nanoTime();
+        BlurBase blurBase = null;
+        if (params.mMaxPrescaledBlurPixels == 0) {
+            for (int f = 1; f <= params.mBlurKeyframes; f++) {
+                pictures[f] = pictures[0];
+            }
+        } else if (params.mShaderBlur) {
+            pictures[1] = prepareShaderBlurBase(bitmapRegionLoader, params, aspectRatio);
+        } else {
+            int sampleSizeTargetHeight = params.mHeight / params.mBlurredSampleSize;
+            int rotation = bitmapRegionLoader.getRotation();
+
+            // The blur base and keyframes are kept unrotated, like the sharp tiles. Note that
+            // their width as stored should be a multiple of 4 to avoid issues with
+            // RenderScript allocations.
+            boolean swapDimensions = rotation == 90 || rotation == 270;
+            int displayedHeight = Math.max(2, MathUtil.floorEven(sampleSizeTargetHeight));
+            int displayedWidth = (int) (displayedHeight * aspectRatio);
+            int scaledWidth = Math.max(4, MathUtil.roundMult4(
+                    swapDimensions ? displayedHeight : displayedWidth));
+            int scaledHeight = Math.max(2, swapDimensions
+                    ? MathUtil.floorEven(displayedWidth)
+                    : displayedHeight);
+
+            // Blurring is expensive, so reuse keyframes from a previous load with the same
+            // artwork and parameters (e.g. after a rotation or from another renderer)
+            String keyframeCacheKey = params.getKeyframeCacheKey(bitmapRegionLoader);
+            KeyframeCache keyframeCache = KeyframeCache.getInstance(mContext);
+            Bitmap[] keyframes = null;
+            Bitmap.Config keyframeConfig = getBlurredPictureConfig();
+            if (keyframeCacheKey != null) {
+                keyframes = keyframeCache.get(keyframeCacheKey, params.mBlurKeyframes,
+                        keyframeConfig);
+            }
+
+            if (keyframes == null) {
+                // To blur, first load the entire bitmap region, but at a very large
+                // sample size that's appropriate for the final blurred image
+                options.inSampleSize = ImageUtil.calculateSampleSize(
+                        originalHeight, sampleSizeTargetHeight);
+                rect.set(0, 0, originalWidth, originalHeight);
+                Bitmap tempBitmap = bitmapRegionLoader.decodeUnrotatedRegion(rect, options,
+                        mBitmapPool);
+
+                if (tempBitmap != null) {
+                    // Next, create a scaled down version of the bitmap so that the blur radius
+                    // looks appropriate (tempBitmap will likely be bigger than the final
+                    // blurred bitmap, and thus the blur may look smaller if we just used
+                    // tempBitmap as the final blurred bitmap).
+
+                    // Note that image width should be a multiple of 4 to avoid
+                    // issues with RenderScript allocations.
+                    Bitmap scaledBitmap = Bitmap.createScaledBitmap(
+                            tempBitmap, scaledWidth, scaledHeight, true);
+                    if (tempBitmap != scaledBitmap) {
+                        mBitmapPool.put(tempBitmap);
+                    }
+
+                    // And finally, create a blurred copy for each keyframe. The unblurred
+                    // copy is kept so a blur-only change can regenerate just the keyframes.
+                    keyframes = blurKeyframes(scaledBitmap, params, keyframeConfig);
+                    String blurBaseKey = params.getBlurBaseKey(bitmapRegionLoader);
+                    if (blurBaseKey != null) {
+                        blurBase = new BlurBase(scaledBitmap, blurBaseKey,
+                                bitmapRegionLoader.getFile(), rotation);
+                    } else {
+                        mBitmapPool.put(scaledBitmap);
+                    }
+
+                    if (keyframeCacheKey != null) {
+                        keyframeCache.put(keyframeCacheKey, keyframes);
+                    }
+                } else {
+                    LOGE(TAG, "BitmapRegionLoader failed to decode the region, rect="
+                            + rect.toShortString());
+                }
+            }
+
+            if (keyframes != null) {
+                for (int f = 1; f <= params.mBlurKeyframes; f++) {
+                    pictures[f] = PictureTiles.split(keyframes[f - 1], rotation,
+                            params.mTileSize, mBitmapPool);
+                }
+            }
+        }
+        mFrameStats.recordStage(FrameStats.STAGE_BLUR, System.nanoTime() - stageStartNanos);
+
+        setBlurBase(blurBase);
+        return new PreparedArtwork(aspectRatio, dimFactor, pictures, false, detailLoader,
+                params.mMaxPrescaledBlurPixels > 0 ? params.mBlurredSampleSize : 0,
+                blurBase != null ? blurBase.mKey : null);
+    }
+
+    private Bitmap[] blurKeyframes(Bitmap base, PrepareParams params, Bitmap.Config config) {
+        float[] blurRadii = new float[params.mBlurKeyframes];
+        for (int f = 1; f <= params.mBlurKeyframes; f++) {
+            blurRadii[f - 1] = blurRadiusAtFrame(params.mMaxPrescaledBlurPixels, f);
+        }
+
+        ImageBlurrer blurrer = ImageBlurrer.acquire(mContext);
+        try {
+            return blurrer.blurKeyframes(base, blurRadii, config);
+        } finally {
+            blurrer.release();
+        }
+    }
+
+    /**
+     * Replaces the kept blur base, giving the previous one back to the pool. Must be called on
+     * the prepare thread.
+     */
+    private void setBlurBase(BlurBase blurBase) {
+        BlurBase previous = mBlurBase;
+        mBlurBase = blurBase;
+        if (previous != null && previous != blurBase) {
+            mBitmapPool.put(previous.mBitmap);
+        }
+    }
+
+    /**
+     * Regenerates the current artwork's blur keyframes after a change to the blur amount,
+     * keeping its sharp picture, if that's possible without reloading the artwork. In shader
+     * blur mode, where the blur is applied at draw time, this just redraws. Must be called on
+     * the GL thread.
+     *
+     * @return false if the artwork must be reloaded instead, e.g. because the blur needs a
+     * differently downsampled base than the one kept from preparing it
+     */
+    public boolean reblurCurrentArtwork() {
+        GLPictureSet pictureSet = mCurrentGLPictureSet;
+        if (!mSurfaceCreated || mLoadingNextArtwork || mCrossfadeAnimator.isRunning()
+                || !pictureSet.mHasBitmap
+                || (pictureSet.isUploading() && !pictureSet.mPendingKeyframesOnly)) {
+            return false;
+        }
+
+        int blurredSampleSize = mMaxPrescaledBlurPixels > 0 ? mBlurredSampleSize : 0;
+        if (mShaderBlur) {
+            if (blurredSampleSize == 0 || blurredSampleSize != pictureSet.mBlurredSampleSize) {
+                return false;
+            }
+
+            mCallbacks.requestRender();
+            return true;
+        }
+
+        if (blurredSampleSize == 0) {
+            // Every keyframe is the sharp picture
+            pictureSet.setKeyframes(new PictureTiles[mBlurKeyframes]);
+            mCallbacks.requestRender();
+            return true;
+        }
+
+        BlurBase blurBase = mBlurBase;
+        if (blurredSampleSize != pictureSet.mBlurredSampleSize
+                || pictureSet.mBlurBaseKey == null || blurBase == null
+                || !pictureSet.mBlurBaseKey.equals(blurBase.mKey)) {
+            return false;
+        }
+
+        final PrepareParams params = new PrepareParams();
+        mPrepareExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Prepare tasks run in order, so the base can't have been replaced since
+                BlurBase blurBase = mBlurBase;
+                long stageStartNanos = System.nanoTime();
+                Bitmap[] keyframes = blurKeyframes(blurBase.mBitmap, params,
+                        getBlurredPictureConfig());
+                String keyframeCacheKey = params.getKeyframeCacheKey(blurBase.mFile,
+                        blurBase.mRotation);
+                if (keyframeCacheKey != null) {
+                    KeyframeCache.getInstance(mContext).put(keyframeCacheKey, keyframes);
+                }
+
+                PictureTiles[] keyframeTiles = new PictureTiles[keyframes.length];
+                for (int f = 0; f < keyframes.length; f++) {
+                    keyframeTiles[f] = PictureTiles.split(keyframes[f], blurBase.mRotation,
+                            params.mTileSize, mBitmapPool);
+                }
+                mFrameStats.recordStage(FrameStats.STAGE_BLUR,
+                        System.nanoTime() - stageStartNanos);
+
+                PreparedKeyframes previous = mPreparedKeyframes.getAndSet(
+                        new PreparedKeyframes(blurBase.mKey, keyframeTiles));
+                if (previous != null) {
+                    // Superseded before it was ever uploaded
+                    previous.recycle();
+                }
+                mCallbacks.requestRender();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Decodes the single downsampled, unblurred copy of the artwork that shader blur mode blurs
+     * at draw time. It's kept in a single tile so the blur never has to sample across tiles.
+     */
+    private PictureTiles prepareShaderBlurBase(BitmapRegionLoader bitmapRegionLoader,
+            PrepareParams params, float aspectRatio) {
+        int maxTextureSize = GLPicture.getMaxTextureSize();
+        int targetHeight = params.mHeight / params.mBlurredSampleSize;
+        int scaledHeight = Math.max(1, Math.min(targetHeight,
+                (int) (maxTextureSize / aspectRatio)));
+        int scaledWidth = Math.max(1, Math.min(maxTextureSize,
+                (int) (scaledHeight * aspectRatio)));
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = ImageUtil.calculateSampleSize(
+                bitmapRegionLoader.getHeight(), scaledHeight);
+        // It's only ever drawn blurred, so it can have reduced precision too
+        options.inPreferredConfig = getBlurredPictureConfig();
+        options.inDither = true;
+        Rect rect = new Rect(0, 0, bitmapRegionLoader.getWidth(), bitmapRegionLoader.getHeight());
+        Bitmap tempBitmap = bitmapRegionLoader.decodeUnrotatedRegion(rect, options, mBitmapPool);
+        if (tempBitmap == null) {
+            LOGE(TAG, "BitmapRegionLoader failed to decode the region, rect="
+                    + rect.toShortString());
+            return null;
+        }
+
+        // The decoded bitmap is unrotated, so scale it as stored
+        int rotation = bitmapRegionLoader.getRotation();
+        boolean swapDimensions = rotation == 90 || rotation == 270;
+        Bitmap scaledBitmap = Bitmap.createScaledBitmap(tempBitmap,
+                swapDimensions ? scaledHeight : scaledWidth,
+                swapDimensions ? scaledWidth : scaledHeight, true);
+        if (tempBitmap != scaledBitmap) {
+            mBitmapPool.put(tempBitmap);
+        }
+        return PictureTiles.split(scaledBitmap, rotation, maxTextureSize, mBitmapPool);
     }
 
     public void setDemoMode(boolean demoMode) {
         mDemoMode = demoMode;
         recomputeGreyAmount();
+        recomputeDebugOverlay();
     }
     public void setIsPreview(boolean preview) {
         mPreview = preview;
@@ -313,114 +877,138 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
         private volatile float[] mPMatrix = new float[16];
         private final float[] mMVPMatrix = new float[16];
         private GLPicture[] mPictures = new GLPicture[mBlurKeyframes + 1];
+        private GLPicture[] mPendingPictures;
+        private PreparedArtwork mPendingArtwork;
+        private DetailTilePyramid mDetailPyramid;
+        private DetailTilePyramid mPendingDetailPyramid;
+        private final RectF mViewport = new RectF();
         private boolean mHasBitmap = false;
+        private boolean mShowingPreview = false;
+        private boolean mPendingPreview = false;
         private float mBitmapAspectRatio = 1f;
-        private int mDimAmount = 0;
+        private float mDimFactor = 0;
+        private int mBlurredSampleSize = 0;
+        private String mBlurBaseKey;
+        private boolean mPendingKeyframesOnly = false;
+        private PictureTiles[] mPendingKeyframeTiles;
+
+        // Applied by the picture shaders, following the blur animation
+        private float mFrameDesaturateAmount;
+        private float mFrameDimAmount;
 
         public GLPictureSet(int id) {
             mId = id;
         }
 
-        public void load(BitmapRegionLoader bitmapRegionLoader) {
-            mHasBitmap = (bitmapRegionLoader != null);
-            mBitmapAspectRatio = mHasBitmap
-                    ? bitmapRegionLoader.getWidth() * 1f / bitmapRegionLoader.getHeight()
-                    : 1f;
+        /**
+         * Takes ownership of the given prepared artwork, creating (but not yet uploading) the
+         * GL pictures for it. Call {@link #uploadPictures(long)} on subsequent frames until it
+         * returns true. Any pictures already shown (e.g. a preview of the same artwork) keep
+         * being drawn until then.
+         */
+        public void setPreparedArtwork(PreparedArtwork preparedArtwork) {
+            destroyPendingPictures();
+            mPendingArtwork = preparedArtwork;
+
+            mBitmapAspectRatio = preparedArtwork.mAspectRatio;
+            mDimFactor = preparedArtwork.mDimFactor;
+            mBlurredSampleSize = preparedArtwork.mBlurredSampleSize;
+            mBlurBaseKey = preparedArtwork.mBlurBaseKey;
+
+            PictureTiles[] tiles = preparedArtwork.mPictures;
+            mPendingPictures = new GLPicture[mBlurKeyframes + 1];
+            mPendingPictures[0] = tiles[0] != null ? new GLPicture(tiles[0]) : null;
+            for (int f = 1; f < mPendingPictures.length && f < tiles.length; f++) {
+                if (tiles[f] == null) {
+                    mPendingPictures[f] = null;
+                } else if (tiles[f] == tiles[0]) {
+                    mPendingPictures[f] = mPendingPictures[0];
+                } else {
+                    mPendingPictures[f] = new GLPicture(tiles[f]);
+                }
+            }
+            mPendingPreview = preparedArtwork.mIsPreview;
+
+            if (preparedArtwork.mDetailLoader != null && tiles[0] != null) {
+                mPendingDetailPyramid = new DetailTilePyramid(preparedArtwork.mDetailLoader,
+                        tiles[0].mHeight, mBitmapPool, new DetailTilePyramid.Callbacks() {
+                            @Override
+                            public void onTileReady() {
+                                mCallbacks.requestRender();
+                            }
+                        });
+            } else if (preparedArtwork.mDetailLoader != null) {
+                preparedArtwork.mDetailLoader.destroy();
+            }
 
-            mDimAmount = DEFAULT_MAX_DIM;
+            recomputeTransformMatrices();
+        }
 
-            destroyPictures();
+        /**
+         * Takes ownership of regenerated blur keyframes for the artwork already shown, to be
+         * uploaded by {@link #uploadPictures(long)} like a new artwork but keeping the sharp
+         * picture and its detail tiles. Null keyframes are replaced by the sharp picture.
+         */
+        public void setKeyframes(PictureTiles[] keyframeTiles) {
+            destroyPendingPictures();
+            mPendingKeyframesOnly = true;
+            mPendingKeyframeTiles = keyframeTiles;
+
+            mPendingPictures = new GLPicture[mBlurKeyframes + 1];
+            mPendingPictures[0] = mPictures[0];
+            for (int f = 1; f < mPendingPictures.length && f <= keyframeTiles.length; f++) {
+                mPendingPictures[f] = keyframeTiles[f - 1] != null
+                        ? new GLPicture(keyframeTiles[f - 1])
+                        : mPictures[0];
+            }
+            mPendingPreview = mShowingPreview;
+        }
 
-            if (bitmapRegionLoader != null) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                Rect rect = new Rect();
-                int originalWidth = bitmapRegionLoader.getWidth();
-                int originalHeight = bitmapRegionLoader.getHeight();
+        public boolean isUploading() {
+            return mPendingPictures != null;
+        }
 
-                // Calculate image darkness to determine dim amount
-                rect.set(0, 0, originalWidth, originalHeight);
-                options.inSampleSize = ImageUtil.calculateSampleSize(originalHeight, 64);
-                Bitmap tempBitmap = bitmapRegionLoader.decodeRegion(rect, options);
-                float darkness = ImageUtil.calculateDarkness(tempBitmap);
-                mDimAmount = mDemoMode
-                        ? DEMO_DIM
-                        : (int) (mMaxDim * ((1 - DIM_RANGE) + DIM_RANGE * Math.sqrt(darkness)));
-                if (tempBitmap != null) {
-                    tempBitmap.recycle();
+        /**
+         * Uploads pending picture tiles until done or the given {@link System#nanoTime()}
+         * deadline passes, then replaces the shown pictures with them.
+         *
+         * @return true if all pictures have been uploaded
+         */
+        public boolean uploadPictures(long deadlineNanos) {
+            for (GLPicture picture : mPendingPictures) {
+                if (picture == null || picture.isUploaded()) {
+                    continue;
                 }
 
-                // Create the GLPicture objects
-                mPictures[0] = new GLPicture(bitmapRegionLoader, mHeight);
-                if (mMaxPrescaledBlurPixels == 0 && mMaxGrey == 0) {
-                    for (int f = 1; f <= mBlurKeyframes; f++) {
-                        mPictures[f] = mPictures[0];
-                    }
-                } else {
-                    int sampleSizeTargetHeight, scaledHeight, scaledWidth;
-                    if (mMaxPrescaledBlurPixels > 0) {
-                        sampleSizeTargetHeight = mHeight / mBlurredSampleSize;
-                    } else {
-                        sampleSizeTargetHeight = mHeight;
-                    }
-
-                    // Note that image width should be a multiple of 4 to avoid
-                    // issues with RenderScript allocations.
-                    scaledHeight = Math.max(2, MathUtil.floorEven(
-                            sampleSizeTargetHeight));
-                    scaledWidth = Math.max(4, MathUtil.roundMult4(
-                            (int) (scaledHeight * mBitmapAspectRatio)));
-
-                    // To blur, first load the entire bitmap region, but at a very large
-                    // sample size that's appropriate for the final blurred image
-                    options.inSampleSize = ImageUtil.calculateSampleSize(
-                            originalHeight, sampleSizeTargetHeight);
-                    rect.set(0, 0, originalWidth, originalHeight);
-                    tempBitmap = bitmapRegionLoader.decodeRegion(rect, options);
-
-                    if (tempBitmap != null) {
-                        // Next, create a scaled down version of the bitmap so that the blur radius
-                        // looks appropriate (tempBitmap will likely be bigger than the final
-                        // blurred bitmap, and thus the blur may look smaller if we just used
-                        // tempBitmap as the final blurred bitmap).
-
-                        // Note that image width should be a multiple of 4 to avoid
-                        // issues with RenderScript allocations.
-                        Bitmap scaledBitmap = Bitmap.createScaledBitmap(
-                                tempBitmap, scaledWidth, scaledHeight, true);
-                        if (tempBitmap != scaledBitmap) {
-                            tempBitmap.recycle();
-                        }
-
-                        // And finally, create a blurred copy for each keyframe.
-                        ImageBlurrer blurrer = new ImageBlurrer(mContext);
-                        for (int f = 1; f <= mBlurKeyframes; f++) {
-                            float desaturateAmount = mMaxGrey / 500f * f / mBlurKeyframes;
-                            float blurRadius = 0f;
-                            if (mMaxPrescaledBlurPixels > 0) {
-                                blurRadius = blurRadiusAtFrame(f);
-                            }
-                            Bitmap blurredBitmap = blurrer.blurBitmap(
-                                    scaledBitmap, blurRadius, desaturateAmount);
-                            mPictures[f] = new GLPicture(blurredBitmap);
-                            if (blurredBitmap != null) {
-                                blurredBitmap.recycle();
-                            }
-                        }
-                        blurrer.destroy();
+                if (System.nanoTime() > deadlineNanos || !picture.uploadTiles(deadlineNanos)) {
+                    return false;
+                }
+            }
 
-                        scaledBitmap.recycle();
-                    } else {
-                        LOGE(TAG, "BitmapRegionLoader failed to decode the region, rect="
-                                + rect.toShortString());
-                        for (int f = 1; f <= mBlurKeyframes; f++) {
-                            mPictures[f] = null;
-                        }
+            destroyPictures(mPictures, mPendingPictures);
+            mPictures = mPendingPictures;
+            mPendingPictures = null;
+            if (mPendingKeyframesOnly) {
+                for (PictureTiles tiles : mPendingKeyframeTiles) {
+                    if (tiles != null) {
+                        tiles.recycle();
                     }
                 }
+                mPendingKeyframeTiles = null;
+                mPendingKeyframesOnly = false;
+            } else {
+                mPendingArtwork.releasePictures();
+                mPendingArtwork = null;
+                if (mDetailPyramid != null) {
+                    mDetailPyramid.destroy();
+                }
+                mDetailPyramid = mPendingDetailPyramid;
+                mPendingDetailPyramid = null;
             }
-
-            recomputeTransformMatrices();
+            mShowingPreview = mPendingPreview;
+            mHasBitmap = true;
             mCallbacks.requestRender();
+            return true;
         }
 
         private void recomputeTransformMatrices() {
@@ -487,6 +1075,7 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                     mCurrentViewport.left, mCurrentViewport.right,
                     mCurrentViewport.bottom, mCurrentViewport.top,
                     1, 10);
+            mViewport.set(mCurrentViewport);
         }
 
         public void drawFrame(float globalAlpha) {
@@ -498,6 +1087,19 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
             Matrix.multiplyMM(mMVPMatrix, 0, mPMatrix, 0, mMVPMatrix, 0);
 
             float blurFrame = mBlurAnimator.currentValue();
+            float blurAmount = blurFrame / mBlurKeyframes;
+            mFrameDesaturateAmount = mMaxGrey / 500f * blurAmount;
+            mFrameDimAmount = (mDemoMode ? DEMO_DIM : mMaxDim) * mDimFactor * blurAmount / 255f;
+            if (mDetailPyramid != null) {
+                mDetailPyramid.update(mViewport, Math.round(mHeight * mAspectRatio), mHeight,
+                        System.nanoTime() + UPLOAD_BUDGET_NANOS);
+            }
+
+            if (mShaderBlur) {
+                drawShaderBlurredFrame(globalAlpha, blurFrame);
+                return;
+            }
+
             int lo = (int) Math.floor(blurFrame);
             int hi = (int) Math.ceil(blurFrame);
 
@@ -510,15 +1112,15 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                     return;
                 }
 
-                mPictures[lo].draw(mMVPMatrix, globalAlpha);
+                drawPicture(lo, globalAlpha);
             } else if (globalAlpha == 1) {
                 // Simple drawing
                 if (mPictures[lo] == null || mPictures[hi] == null) {
                     return;
                 }
 
-                mPictures[lo].draw(mMVPMatrix, 1);
-                mPictures[hi].draw(mMVPMatrix, localHiAlpha);
+                drawPicture(lo, 1);
+                drawPicture(hi, localHiAlpha);
             } else {
                 // If there's both a global and local alpha, re-compose alphas, to
                 // effectively compose hi and lo before composing the result
@@ -534,31 +1136,250 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                 float newLocalLoAlpha = globalAlpha * (localHiAlpha - 1)
                         / (globalAlpha * localHiAlpha - 1);
                 float newLocalHiAlpha = globalAlpha * localHiAlpha;
-                mPictures[lo].draw(mMVPMatrix, newLocalLoAlpha);
-                mPictures[hi].draw(mMVPMatrix, newLocalHiAlpha);
+                drawPicture(lo, newLocalLoAlpha);
+                drawPicture(hi, newLocalHiAlpha);
+            }
+        }
+
+        /**
+         * Draws the picture for the given keyframe, with sharper detail tiles over the sharp
+         * picture where the viewport is zoomed in.
+         */
+        private void drawPicture(int keyframe, float alpha) {
+            mPictures[keyframe].draw(mMVPMatrix, alpha, mFrameDesaturateAmount, mFrameDimAmount);
+            if (keyframe == 0 && mDetailPyramid != null) {
+                mDetailPyramid.draw(mMVPMatrix, mViewport, alpha, mFrameDesaturateAmount,
+                        mFrameDimAmount);
+            }
+        }
+
+        /**
+         * Draws the frame in shader blur mode, where mPictures[1] is a downsampled copy of the
+         * artwork that's blurred at draw time by an amount that follows the blur animation.
+         */
+        private void drawShaderBlurredFrame(float globalAlpha, float blurFrame) {
+            GLPicture sharpPicture = mPictures[0];
+            GLPicture blurBasePicture = mPictures[1];
+            if (globalAlpha <= 0 || sharpPicture == null || blurBasePicture == null) {
+                return;
+            }
+
+            float blurRadius = blurRadiusAtFrame(mMaxPrescaledBlurPixels, blurFrame);
+
+            // Fade in the blurred copy over the first keyframe's worth of the animation, so
+            // its low resolution never shows at small blur radii
+            float blurAlpha = Math.min(1, blurFrame);
+            if (blurAlpha <= 0) {
+                drawPicture(0, globalAlpha);
+            } else if (blurAlpha == 1) {
+                blurBasePicture.drawBlurred(mMVPMatrix, globalAlpha,
+                        blurRadius, mFrameDesaturateAmount, mFrameDimAmount);
+            } else {
+                // Re-compose alphas as in drawFrame
+                float newLocalLoAlpha = globalAlpha * (blurAlpha - 1)
+                        / (globalAlpha * blurAlpha - 1);
+                float newLocalHiAlpha = globalAlpha * blurAlpha;
+                drawPicture(0, newLocalLoAlpha);
+                blurBasePicture.drawBlurred(mMVPMatrix, newLocalHiAlpha,
+                        blurRadius, mFrameDesaturateAmount, mFrameDimAmount);
             }
         }
 
         public void destroyPictures() {
-            for (int i = 0; i < mPictures.length; i++) {
-                if (mPictures[i] != null) {
-                    mPictures[i].destroy();
-                    mPictures[i] = null;
+            destroyPendingPictures();
+            destroyPictures(mPictures, null);
+            if (mDetailPyramid != null) {
+                mDetailPyramid.destroy();
+                mDetailPyramid = null;
+            }
+        }
+
+        private void destroyPendingPictures() {
+            destroyPictures(mPendingPictures, mPictures);
+            mPendingPictures = null;
+            if (mPendingArtwork != null) {
+                mPendingArtwork.releasePictures();
+                mPendingArtwork = null;
+            }
+            if (mPendingKeyframeTiles != null) {
+                for (PictureTiles tiles : mPendingKeyframeTiles) {
+                    if (tiles != null) {
+                        tiles.recycle();
+                    }
+                }
+                mPendingKeyframeTiles = null;
+            }
+            mPendingKeyframesOnly = false;
+            if (mPendingDetailPyramid != null) {
+                mPendingDetailPyramid.destroy();
+                mPendingDetailPyramid = null;
+            }
+        }
+
+        /**
+         * Destroys the given pictures, except for any that are also in the given array to keep
+         * (e.g. the sharp picture, when only the keyframes are replaced).
+         */
+        private void destroyPictures(GLPicture[] pictures, GLPicture[] keep) {
+            if (pictures == null) {
+                return;
+            }
+
+            for (int i = 0; i < pictures.length; i++) {
+                if (pictures[i] != null && !contains(keep, pictures[i])) {
+                    pictures[i].destroy();
+                }
+                pictures[i] = null;
+            }
+        }
+
+        private boolean contains(GLPicture[] pictures, GLPicture picture) {
+            if (pictures != null) {
+                for (GLPicture p : pictures) {
+                    if (p == picture) {
+                        return true;
+                    }
                 }
             }
+            return false;
         }
     }
 
     public void destroy() {
+        mPrepareExecutor.shutdownNow();
+        PreparedArtwork preview = mPreparedPreview.getAndSet(null);
+        if (preview != null) {
+            preview.recycle();
+        }
+        PreparedArtwork preparedArtwork = mPreparedArtwork.getAndSet(null);
+        if (preparedArtwork != null) {
+            preparedArtwork.recycle();
+        }
+        PreparedKeyframes preparedKeyframes = mPreparedKeyframes.getAndSet(null);
+        if (preparedKeyframes != null) {
+            preparedKeyframes.recycle();
+        }
         mCurrentGLPictureSet.destroyPictures();
         mNextGLPictureSet.destroyPictures();
     }
 
+    /**
+     * Immutable snapshot of the parameters used to prepare an artwork, taken on the GL thread
+     * so that the background prepare stage doesn't race with parameter changes.
+     */
+    private class PrepareParams {
+        private final int mHeight = MuzeiBlurRenderer.this.mHeight;
+        private final int mTileSize = GLPicture.getTileSize();
+        private final int mBlurKeyframes = MuzeiBlurRenderer.this.mBlurKeyframes;
+        private final int mMaxPrescaledBlurPixels
+                = MuzeiBlurRenderer.this.mMaxPrescaledBlurPixels;
+        private final int mBlurredSampleSize = MuzeiBlurRenderer.this.mBlurredSampleSize;
+        private final boolean mDemoMode = MuzeiBlurRenderer.this.mDemoMode;
+        private final boolean mShaderBlur = MuzeiBlurRenderer.this.mShaderBlur;
+        private final boolean mCompressedTextures = GLPicture.areCompressedTexturesSupported();
+        // A low resolution preview is only indistinguishable from the real thing when blurred
+        private final boolean mProgressive = mIsBlurred && !mDemoMode
+                && mMaxPrescaledBlurPixels > 0;
+        private final boolean mDetailZoom = !mDemoMode && !mPreview;
+
+        /**
+         * Returns the {@link KeyframeCache} key for keyframes generated from the given loader
+         * with these parameters, or null if the loader isn't backed by a cacheable file.
+         */
+        private String getKeyframeCacheKey(BitmapRegionLoader bitmapRegionLoader) {
+            return getKeyframeCacheKey(bitmapRegionLoader.getFile(),
+                    bitmapRegionLoader.getRotation());
+        }
+
+        private String getKeyframeCacheKey(File file, int rotation) {
+            if (file == null) {
+                return null;
+            }
+
+            return IOUtil.makeDerivedCacheKey(file, rotation,
+                    mHeight, mBlurKeyframes, mMaxPrescaledBlurPixels, mBlurredSampleSize);
+        }
+
+        /**
+         * Returns a key identifying the downsampled base that keyframes are blurred from, which
+         * doesn't depend on the blur amount, or null if the loader isn't backed by a file.
+         */
+        private String getBlurBaseKey(BitmapRegionLoader bitmapRegionLoader) {
+            File file = bitmapRegionLoader.getFile();
+            if (file == null) {
+                return null;
+            }
+
+            return IOUtil.makeDerivedCacheKey(file, bitmapRegionLoader.getRotation(),
+                    mHeight, mBlurredSampleSize);
+        }
+
+        /**
+         * Returns the {@link PreparedArtworkCache} key for artwork prepared from the given
+         * loader with these parameters, or null if the loader isn't backed by a file.
+         */
+        private String getPreparedArtworkCacheKey(BitmapRegionLoader bitmapRegionLoader) {
+            File file = bitmapRegionLoader.getFile();
+            if (file == null) {
+                return null;
+            }
+
+            return IOUtil.makeDerivedCacheKey(file, bitmapRegionLoader.getRotation(),
+                    mHeight, mTileSize, mBlurKeyframes, mMaxPrescaledBlurPixels,
+                    mBlurredSampleSize, mDemoMode, mShaderBlur, mCompressedTextures);
+        }
+    }
+
+    /**
+     * The downsampled, unblurred copy of an artwork that its keyframes were blurred from.
+     */
+    private static class BlurBase {
+        private final Bitmap mBitmap;
+        private final String mKey;
+        private final File mFile;
+        private final int mRotation;
+
+        private BlurBase(Bitmap bitmap, String key, File file, int rotation) {
+            mBitmap = bitmap;
+            mKey = key;
+            mFile = file;
+            mRotation = rotation;
+        }
+    }
+
+    /**
+     * Keyframes regenerated from a {@link BlurBase}, waiting to be uploaded.
+     */
+    private static class PreparedKeyframes {
+        private final String mBlurBaseKey;
+        private final PictureTiles[] mTiles;
+
+        private PreparedKeyframes(String blurBaseKey, PictureTiles[] tiles) {
+            mBlurBaseKey = blurBaseKey;
+            mTiles = tiles;
+        }
+
+        private void recycle() {
+            for (PictureTiles tiles : mTiles) {
+                if (tiles != null) {
+                    tiles.recycle();
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints frame and artwork load timings. May be called from any thread.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        mFrameStats.dump(prefix, writer);
+    }
+
     public boolean isBlurred() {
         return mIsBlurred;
     }
 
-    public void setIsBlurred(final boolean isBlurred, final boolean artDetailMode) {
+    public void setIsBlurred(boolean isBlurred, boolean artDetailMode) {
         if (artDetailMode && !isBlurred && !mDemoMode && !mPreview) {
             // Reset art detail viewport
             ArtDetailViewport.getInstance().setViewport(0, 0, 0, 0, 0, false);
@@ -571,14 +1392,6 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
         mBlurAnimator
                 .to(isBlurred ? mBlurKeyframes : 0)
                 .withDuration(BLUR_ANIMATION_DURATION * (mDemoMode ? 5 : 1))
-                .withEndListener(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (isBlurred && artDetailMode) {
-                            System.gc();
-                        }
-                    }
-                })
                 .start();
         mCallbacks.requestRender();
     }
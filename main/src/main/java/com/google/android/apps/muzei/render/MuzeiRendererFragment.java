@@ -115,9 +115,10 @@ public class MuzeiRendererFragment extends Fragment implements
         public void onBitmapLoaded(Bitmap bitmap, Picasso.LoadedFrom loadedFrom) {
             if (!mDemoFocus) {
                 // Blur
-                ImageBlurrer blurrer = new ImageBlurrer(getActivity());
+                ImageBlurrer blurrer = ImageBlurrer.acquire(getActivity());
                 Bitmap blurred = blurrer.blurBitmap(bitmap,
                         ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS, 0);
+                blurrer.release();
 
                 // Dim
                 Canvas c = new Canvas(blurred);
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.opengl.ETC1Util;
+
+import com.google.android.apps.muzei.util.BitmapPool;
+import com.google.android.apps.muzei.util.MathUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A picture split into m x n tile bitmaps, decoded off the GL thread and ready to be uploaded
+ * by a {@link GLPicture}. Tiles are indexed bottom row first; the bottom tiles are always full
+ * tiles, so only the top row and right column may be smaller than the tile size. Each tile is
+ * held either as a bitmap or as an ETC1 compressed texture. Tile bitmaps come from and are
+ * returned to a {@link BitmapPool}.
+ *
+ * <p>The tile grid is laid out over the picture as displayed, but each tile holds its region
+ * as stored in the image, unrotated. {@link GLPicture} applies the rotation when drawing, so
+ * images with EXIF rotation don't need a rotated copy of every tile.
+ */
+class PictureTiles {
+    private static final int BYTES_PER_RGB_565_PIXEL = 2;
+
+    final int mWidth;
+    final int mHeight;
+    final int mTileSize;
+    final int mCols;
+    final int mRows;
+    final int mRotation;
+    final Bitmap[] mBitmaps;
+    final ETC1Util.ETC1Texture[] mCompressedTiles;
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * Creates empty tiles. The pool may be null if the tiles will only hold compressed tiles.
+     */
+    PictureTiles(int width, int height, int tileSize, BitmapPool bitmapPool) {
+        this(width, height, tileSize, 0, bitmapPool);
+    }
+
+    /**
+     * Creates empty tiles of a picture with the given displayed size, whose tile bitmaps will
+     * need to be rotated clockwise by the given number of degrees (0, 90, 180 or 270) when
+     * drawn.
+     */
+    PictureTiles(int width, int height, int tileSize, int rotation, BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+        mWidth = width;
+        mHeight = height;
+        mTileSize = tileSize;
+        mRotation = rotation;
+        mCols = MathUtil.intDivideRoundUp(mWidth, mTileSize);
+        mRows = MathUtil.intDivideRoundUp(mHeight, mTileSize);
+        mBitmaps = new Bitmap[mCols * mRows];
+        mCompressedTiles = new ETC1Util.ETC1Texture[mCols * mRows];
+    }
+
+    /**
+     * Decodes the given image at the smallest power-of-two sample size that keeps it at least
+     * <code>maxHeight</code> pixels tall. Tiles are decoded in parallel with {@link TileDecoder}.
+     * Must not be called on the GL thread.
+     */
+    public static PictureTiles decode(BitmapRegionLoader bitmapRegionLoader, int maxHeight,
+            int tileSize, BitmapPool bitmapPool) {
+        return decode(bitmapRegionLoader, maxHeight, tileSize, null, bitmapPool);
+    }
+
+    /**
+     * Like {@link #decode(BitmapRegionLoader, int, int, BitmapPool)}, decoding tiles with the
+     * given config.
+     */
+    public static PictureTiles decode(BitmapRegionLoader bitmapRegionLoader, int maxHeight,
+            int tileSize, Bitmap.Config config, BitmapPool bitmapPool) {
+        if (bitmapRegionLoader == null || maxHeight == 0) {
+            return null;
+        }
+
+        int originalWidth = bitmapRegionLoader.getWidth();
+        int originalHeight = bitmapRegionLoader.getHeight();
+        int sampleSize = ImageUtil.calculateSampleSize(originalHeight, maxHeight);
+
+        final PictureTiles tiles = new PictureTiles(
+                originalWidth / sampleSize, originalHeight / sampleSize, tileSize,
+                bitmapRegionLoader.getRotation(), bitmapPool);
+        int unsampledTileSize = tileSize * sampleSize;
+        int leftoverHeight = originalHeight % unsampledTileSize;
+
+        Rect[] regions = new Rect[tiles.mBitmaps.length];
+        for (int y = 0; y < tiles.mRows; y++) {
+            for (int x = 0; x < tiles.mCols; x++) {
+                Rect rect = new Rect(x * unsampledTileSize,
+                        (tiles.mRows - y - 1) * unsampledTileSize,
+                        (x + 1) * unsampledTileSize,
+                        (tiles.mRows - y) * unsampledTileSize);
+                // The bottom tiles must be full tiles for drawing, so only allow edge tiles
+                // at the top
+                if (leftoverHeight > 0) {
+                    rect.offset(0, -unsampledTileSize + leftoverHeight);
+                }
+                rect.intersect(0, 0, originalWidth, originalHeight);
+                regions[y * tiles.mCols + x] = rect;
+            }
+        }
+
+        TileDecoder.decodeTiles(bitmapRegionLoader, regions, sampleSize, config, bitmapPool,
+                new TileDecoder.Callbacks() {
+                    @Override
+                    public void onTileDecoded(int index, Bitmap bitmap) {
+                        tiles.mBitmaps[index] = bitmap;
+                    }
+                });
+        return tiles;
+    }
+
+    /**
+     * Splits the given bitmap into tiles copied into bitmaps from the given pool. Ownership of
+     * the bitmap passes to the returned tiles, or back to the pool.
+     */
+    public static PictureTiles split(Bitmap bitmap, int tileSize, BitmapPool bitmapPool) {
+        return split(bitmap, 0, tileSize, bitmapPool);
+    }
+
+    /**
+     * Like {@link #split(Bitmap, int, BitmapPool)}, for an unrotated bitmap that should be
+     * displayed rotated clockwise by the given number of degrees, as decoded by
+     * {@link BitmapRegionLoader#decodeUnrotatedRegion}.
+     */
+    public static PictureTiles split(Bitmap bitmap, int rotation, int tileSize,
+            BitmapPool bitmapPool) {
+        if (bitmap == null) {
+            return null;
+        }
+
+        boolean swapDimensions = rotation == 90 || rotation == 270;
+        PictureTiles tiles = new PictureTiles(
+                swapDimensions ? bitmap.getHeight() : bitmap.getWidth(),
+                swapDimensions ? bitmap.getWidth() : bitmap.getHeight(),
+                tileSize, rotation, bitmapPool);
+        if (tiles.mCols == 1 && tiles.mRows == 1) {
+            tiles.mBitmaps[0] = bitmap;
+            return tiles;
+        }
+
+        int leftoverHeight = tiles.mHeight % tileSize;
+        Bitmap.Config config = bitmap.getConfig() != null
+                ? bitmap.getConfig()
+                : Bitmap.Config.ARGB_8888;
+        Rect rect = new Rect();
+        Rect tileRect = new Rect();
+        Canvas canvas = new Canvas();
+        for (int y = 0; y < tiles.mRows; y++) {
+            for (int x = 0; x < tiles.mCols; x++) {
+                rect.set(x * tileSize,
+                        (tiles.mRows - y - 1) * tileSize,
+                        (x + 1) * tileSize,
+                        (tiles.mRows - y) * tileSize);
+                // The bottom tiles must be full tiles for drawing, so only allow edge tiles
+                // at the top
+                if (leftoverHeight > 0) {
+                    rect.offset(0, -tileSize + leftoverHeight);
+                }
+                rect.intersect(0, 0, tiles.mWidth, tiles.mHeight);
+                BitmapRegionLoader.unrotateRect(rect, rotation,
+                        bitmap.getWidth(), bitmap.getHeight(), rect);
+                Bitmap tile = bitmapPool.getOrCreate(rect.width(), rect.height(), config);
+                tileRect.set(0, 0, rect.width(), rect.height());
+                canvas.setBitmap(tile);
+                canvas.drawBitmap(bitmap, rect, tileRect, null);
+                tiles.mBitmaps[y * tiles.mCols + x] = tile;
+            }
+        }
+        canvas.setBitmap(null);
+        bitmapPool.put(bitmap);
+        return tiles;
+    }
+
+    /**
+     * Replaces each tile bitmap with an ETC1 compressed copy, recycling the bitmaps. Returns
+     * false if any tile is missing, in which case the tiles shouldn't be cached. Slow; must not
+     * be called on the GL thread.
+     */
+    public boolean compress() {
+        boolean complete = true;
+        for (int i = 0; i < mBitmaps.length; i++) {
+            Bitmap bitmap = mBitmaps[i];
+            if (bitmap == null) {
+                complete &= mCompressedTiles[i] != null;
+                continue;
+            }
+
+            if (bitmap.getConfig() != Bitmap.Config.RGB_565) {
+                Bitmap converted = bitmap.copy(Bitmap.Config.RGB_565, false);
+                recycleBitmap(bitmap);
+                bitmap = converted;
+                if (bitmap == null) {
+                    mBitmaps[i] = null;
+                    complete = false;
+                    continue;
+                }
+            }
+
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            int stride = bitmap.getRowBytes();
+            ByteBuffer pixels = ByteBuffer.allocateDirect(stride * height)
+                    .order(ByteOrder.nativeOrder());
+            bitmap.copyPixelsToBuffer(pixels);
+            pixels.position(0);
+            recycleBitmap(bitmap);
+            mBitmaps[i] = null;
+            mCompressedTiles[i] = ETC1Util.compressTexture(pixels, width, height,
+                    BYTES_PER_RGB_565_PIXEL, stride);
+        }
+        return complete;
+    }
+
+    /**
+     * Returns the tile bitmaps to the pool and drops any compressed tiles.
+     */
+    public void recycle() {
+        for (int i = 0; i < mBitmaps.length; i++) {
+            if (mBitmaps[i] != null) {
+                recycleBitmap(mBitmaps[i]);
+                mBitmaps[i] = null;
+            }
+            mCompressedTiles[i] = null;
+        }
+    }
+
+    private void recycleBitmap(Bitmap bitmap) {
+        if (mBitmapPool != null) {
+            mBitmapPool.put(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.graphics.Bitmap;
+import android.opengl.ETC1Util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The output of the background "prepare" stage of loading an artwork: everything needed to
+ * build a picture set on the GL thread without any further decoding or blurring.
+ *
+ * <p>The pictures may be shared between renderers through {@link PreparedArtworkCache}. Each
+ * instance holds one reference to them, created with {@link #share(BitmapRegionLoader)} and
+ * given up with {@link #releasePictures()}; the tile bitmaps are recycled when the last
+ * reference is released. Pictures must not be modified once shared.
+ */
+class PreparedArtwork {
+    final float mAspectRatio;
+
+    /**
+     * How much to dim this artwork relative to the maximum dim amount, from 0 to 1, so that the
+     * maximum can change without preparing the artwork again.
+     */
+    final float mDimFactor;
+
+    /**
+     * Whether this is a quick, low resolution preview of the artwork to show while the full
+     * artwork is still being prepared. Previews hold the same picture at every index.
+     */
+    final boolean mIsPreview;
+
+    /**
+     * Index 0 is the sharp picture and indices 1..N are the blur keyframes. Keyframes may be the
+     * same instance as the sharp picture when no blur is applied, and may be null if decoding
+     * failed. In shader blur mode, index 1 instead holds a single downsampled, unblurred copy of
+     * the artwork and the remaining indices are null. Desaturation and dim are applied when
+     * drawing, so none of the pictures have them baked in.
+     */
+    final PictureTiles[] mPictures;
+
+    /**
+     * A loader over the artwork for decoding sharper tiles when zoomed in, or null if detail
+     * zoom isn't needed or the artwork isn't file-backed. Ownership passes to whoever takes
+     * this prepared artwork.
+     */
+    final BitmapRegionLoader mDetailLoader;
+
+    /**
+     * The sample size the blurred pictures were downsampled by, or 0 if they aren't blurred.
+     */
+    final int mBlurredSampleSize;
+
+    /**
+     * Identifies the unblurred, downsampled copy of the artwork that the renderer that prepared
+     * it kept for regenerating the keyframes, or null if none was kept.
+     */
+    final String mBlurBaseKey;
+
+    // Shared by all instances referencing the same pictures
+    private final AtomicInteger mPictureRefCount;
+    private boolean mPicturesReleased;
+
+    PreparedArtwork(float aspectRatio, float dimFactor, PictureTiles[] pictures,
+            boolean isPreview, BitmapRegionLoader detailLoader, int blurredSampleSize,
+            String blurBaseKey) {
+        mAspectRatio = aspectRatio;
+        mDimFactor = dimFactor;
+        mPictures = pictures;
+        mIsPreview = isPreview;
+        mDetailLoader = detailLoader;
+        mBlurredSampleSize = blurredSampleSize;
+        mBlurBaseKey = blurBaseKey;
+        mPictureRefCount = new AtomicInteger(1);
+    }
+
+    private PreparedArtwork(PreparedArtwork source, BitmapRegionLoader detailLoader) {
+        mAspectRatio = source.mAspectRatio;
+        mDimFactor = source.mDimFactor;
+        mPictures = source.mPictures;
+        mIsPreview = source.mIsPreview;
+        mDetailLoader = detailLoader;
+        mBlurredSampleSize = source.mBlurredSampleSize;
+        mBlurBaseKey = source.mBlurBaseKey;
+        mPictureRefCount = source.mPictureRefCount;
+        mPictureRefCount.incrementAndGet();
+    }
+
+    /**
+     * Returns a new reference to the same pictures, with the given detail loader. This
+     * instance must still hold its own reference.
+     */
+    PreparedArtwork share(BitmapRegionLoader detailLoader) {
+        return new PreparedArtwork(this, detailLoader);
+    }
+
+    /**
+     * Gives up this instance's reference to the pictures, recycling the tile bitmaps if it was
+     * the last one. Doesn't touch the detail loader. Only the first call has any effect.
+     */
+    public synchronized void releasePictures() {
+        if (mPicturesReleased) {
+            return;
+        }
+
+        mPicturesReleased = true;
+        if (mPictureRefCount.decrementAndGet() > 0) {
+            return;
+        }
+
+        for (PictureTiles tiles : mPictures) {
+            if (tiles != null) {
+                tiles.recycle();
+            }
+        }
+    }
+
+    /**
+     * Releases the pictures and detail loader of an artwork that will never be uploaded.
+     */
+    public void recycle() {
+        releasePictures();
+        if (mDetailLoader != null) {
+            mDetailLoader.destroy();
+        }
+    }
+
+    /**
+     * Returns the approximate number of bytes of memory held by the pictures.
+     */
+    public long getPictureByteCount() {
+        long bytes = 0;
+        for (int i = 0; i < mPictures.length; i++) {
+            PictureTiles tiles = mPictures[i];
+            if (tiles == null || isDuplicatePicture(i)) {
+                continue;
+            }
+
+            for (Bitmap bitmap : tiles.mBitmaps) {
+                if (bitmap != null) {
+                    bytes += bitmap.getRowBytes() * bitmap.getHeight();
+                }
+            }
+            for (ETC1Util.ETC1Texture compressedTile : tiles.mCompressedTiles) {
+                if (compressedTile != null) {
+                    bytes += compressedTile.getData().capacity();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private boolean isDuplicatePicture(int index) {
+        for (int i = 0; i < index; i++) {
+            if (mPictures[i] == mPictures[index]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process-wide in-memory cache of prepared artwork (sharp tiles, blur keyframes and dim amount),
+ * so that the wallpaper engine, the wallpaper preview and the renderer inside the app don't
+ * each decode and blur the same artwork. Entries hold their own reference to the pictures, and
+ * recently used entries are kept within a memory budget even when no renderer is using them.
+ * Artwork bigger than the whole budget isn't cached at all, so that its bitmaps go back to the
+ * pool once the renderers are done with them.
+ *
+ * <p>If one renderer is already preparing an artwork that another asks for, the second waits
+ * for the first to finish instead of preparing it again.
+ */
+public class PreparedArtworkCache {
+    private static final int MEMORY_CLASS_FRACTION = 8; // budget is 1/8 of the memory class
+
+    private static PreparedArtworkCache sInstance;
+
+    private final long mMaxBytes;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(4, 0.75f, true);
+    private final Set<String> mPreparingKeys = new HashSet<>();
+    private long mBytes;
+
+    public static synchronized PreparedArtworkCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PreparedArtworkCache(context);
+        }
+
+        return sInstance;
+    }
+
+    private PreparedArtworkCache(Context context) {
+        ActivityManager activityManager = (ActivityManager)
+                context.getSystemService(Context.ACTIVITY_SERVICE);
+        mMaxBytes = activityManager.getMemoryClass() * 1024L * 1024L / MEMORY_CLASS_FRACTION;
+    }
+
+    /**
+     * Returns a new reference to the cached artwork for the given key, with the given detail
+     * loader, or null if it isn't cached. If another thread is preparing the same key, waits
+     * for it to finish first. When this returns null, the caller must prepare the artwork and
+     * then call {@link #finishPreparing(String, PreparedArtwork)}, even if preparing fails.
+     * Must not be called on the main or GL threads.
+     */
+    public synchronized PreparedArtwork getOrStartPreparing(String key,
+            BitmapRegionLoader detailLoader) {
+        while (mPreparingKeys.contains(key)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Prepare it here instead
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            return entry.mArtwork.share(detailLoader);
+        }
+
+        mPreparingKeys.add(key);
+        return null;
+    }
+
+    /**
+     * Stores newly prepared artwork for the given key, started with
+     * {@link #getOrStartPreparing(String, BitmapRegionLoader)}, and wakes up any threads
+     * waiting for it. The caller keeps its own reference. Pass null if preparing failed.
+     */
+    public synchronized void finishPreparing(String key, PreparedArtwork preparedArtwork) {
+        if (!mPreparingKeys.remove(key)) {
+            // Not started here, e.g. after an interrupted wait
+            return;
+        }
+
+        Entry previous = mEntries.remove(key);
+        if (previous != null) {
+            previous.mArtwork.releasePictures();
+            mBytes -= previous.mBytes;
+        }
+
+        long bytes = (preparedArtwork != null) ? preparedArtwork.getPictureByteCount() : 0;
+        if (preparedArtwork != null && bytes <= mMaxBytes) {
+            mEntries.put(key, new Entry(preparedArtwork.share(null), bytes));
+            mBytes += bytes;
+            trim(mMaxBytes);
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Releases all cached artwork, e.g. when memory is low. Renderers keep their own references.
+     */
+    public synchronized void clear() {
+        for (Entry entry : mEntries.values()) {
+            entry.mArtwork.releasePictures();
+        }
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    private void trim(long maxBytes) {
+        // Evict the least recently used entries until within budget
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            entry.mArtwork.releasePictures();
+            mBytes -= entry.mBytes;
+            it.remove();
+        }
+    }
+
+    private static class Entry {
+        private final PreparedArtwork mArtwork;
+        private final long mBytes;
+
+        private Entry(PreparedArtwork artwork, long bytes) {
+            mArtwork = artwork;
+            mBytes = bytes;
+        }
+    }
+}
@@ -17,7 +17,6 @@
 package com.google.android.apps.muzei.render;
 
 import android.content.Context;
-import android.media.ExifInterface;
 
 import com.google.android.apps.muzei.ArtworkCache;
 import com.google.android.apps.muzei.NewWallpaperNotificationReceiver;
@@ -33,12 +32,10 @@ import com.google.android.apps.muzei.util.LogUtil;
 import org.greenrobot.eventbus.Subscribe;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 
 import static com.google.android.apps.muzei.util.LogUtil.LOGD;
 import static com.google.android.apps.muzei.util.LogUtil.LOGE;
-import static com.google.android.apps.muzei.util.LogUtil.LOGW;
 
 public class RealRenderController extends RenderController {
     private static final String TAG = LogUtil.makeLogTag(RealRenderController.class);
@@ -83,27 +80,36 @@ public class RealRenderController extends RenderController {
             return null;
         }
 
-        // Check if there's rotation
-        int rotation = 0;
-        try {
-            ExifInterface exifInterface = new ExifInterface(file.getAbsolutePath());
-            int orientation = exifInterface.getAttributeInt(
-                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-            switch (orientation) {
-                case ExifInterface.ORIENTATION_ROTATE_90: rotation = 90; break;
-                case ExifInterface.ORIENTATION_ROTATE_180: rotation = 180; break;
-                case ExifInterface.ORIENTATION_ROTATE_270: rotation = 270; break;
-            }
-            LOGD(TAG, "Loading artwork with rotation: " + rotation);
-
-        } catch (IOException e) {
-            LOGW(TAG, "Couldn't open EXIF interface on file: " + file.getAbsolutePath(), e);
+        // The header is normally found and stored while the artwork downloads, so this only
+        // parses the image header and EXIF data for artwork downloaded before then
+        ArtworkHeader header = artworkCache.getArtworkHeader(file);
+        if (header == null) {
+            LOGE(TAG, "Not a valid image: " + file.getAbsolutePath() + " from "
+                    + currentArtwork.getImageUri());
+            return null;
         }
+        LOGD(TAG, "Loading artwork with rotation: " + header.mRotation);
 
-        // Load the stream
         try {
-            BitmapRegionLoader loader = BitmapRegionLoader.newInstance(
-                    new FileInputStream(file), rotation);
+            BitmapRegionLoader loader = BitmapRegionLoader.newInstance(file, header.mRotation);
+            if (loader == null) {
+                LOGE(TAG, "Couldn't open a decoder for image: " + file.getAbsolutePath()
+                        + " from " + currentArtwork.getImageUri());
+                return null;
+            }
+
+            // The analysis is normally computed when the artwork is downloaded; analyze
+            // artwork downloaded before analysis existed, or whose content changed since it
+            // was analyzed, now so it's only done once
+            ArtworkAnalysis analysis = ArtworkAnalysis.query(mContext,
+                    currentArtwork.getImageUri(), header.mContentHash);
+            if (analysis == null) {
+                analysis = ArtworkAnalysis.analyze(loader);
+                if (analysis != null) {
+                    analysis.save(mContext, currentArtwork.getImageUri(), header.mContentHash);
+                }
+            }
+            loader.setAnalysis(analysis);
             if (MuzeiProvider.saveCurrentArtworkLocation(mContext, file)) {
                 mContext.getContentResolver().insert(MuzeiContract.Artwork.CONTENT_URI, currentArtwork.toContentValues());
             }
@@ -22,6 +22,7 @@ import android.os.Handler;
 import android.os.Message;
 
 import com.google.android.apps.muzei.event.BlurAmountChangedEvent;
+import com.google.android.apps.muzei.event.DebugOverlayChangedEvent;
 import com.google.android.apps.muzei.event.DimAmountChangedEvent;
 import com.google.android.apps.muzei.event.GreyAmountChangedEvent;
 
@@ -52,19 +53,35 @@ public abstract class RenderController {
     @Subscribe
     public void onEventMainThread(BlurAmountChangedEvent e) {
         mRenderer.recomputeMaxPrescaledBlurPixels();
-        throttledForceReloadCurrentArtwork();
+        // Only the keyframes depend on the blur amount, so try regenerating just them first
+        mCallbacks.queueEventOnGlThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!mRenderer.reblurCurrentArtwork()) {
+                    throttledForceReloadCurrentArtwork();
+                }
+            }
+        });
     }
 
     @Subscribe
     public void onEventMainThread(DimAmountChangedEvent e) {
+        // Dim is applied when drawing, so there's no need to reload
         mRenderer.recomputeMaxDimAmount();
-        throttledForceReloadCurrentArtwork();
+        mCallbacks.requestRender();
     }
 
     @Subscribe
     public void onEventMainThread(GreyAmountChangedEvent e) {
+        // As is desaturation
         mRenderer.recomputeGreyAmount();
-        throttledForceReloadCurrentArtwork();
+        mCallbacks.requestRender();
+    }
+
+    @Subscribe
+    public void onEventMainThread(DebugOverlayChangedEvent e) {
+        mRenderer.recomputeDebugOverlay();
+        mCallbacks.requestRender();
     }
 
     private void throttledForceReloadCurrentArtwork() {
@@ -72,6 +89,7 @@ public abstract class RenderController {
         mThrottledForceReloadHandler.sendEmptyMessageDelayed(0, 250);
     }
 
+    // Created on the main thread, but may be posted to from the GL thread
     private Handler mThrottledForceReloadHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
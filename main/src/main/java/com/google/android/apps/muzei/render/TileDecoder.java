@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.Process;
+
+import com.google.android.apps.muzei.util.BitmapPool;
+import com.google.android.apps.muzei.util.LogUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.android.apps.muzei.util.LogUtil.LOGE;
+
+/**
+ * Decodes image tiles from a {@link BitmapRegionLoader} on a bounded pool of worker threads.
+ * {@link BitmapRegionLoader#decodeRegion} is synchronized over a single decoder, so when the
+ * loader is backed by a file, the workers open additional decoders over the same file as they
+ * need them and share them with each other.
+ */
+class TileDecoder {
+    private static final String TAG = LogUtil.makeLogTag(TileDecoder.class);
+
+    private static final int MAX_WORKERS = Math.max(1,
+            Math.min(Runtime.getRuntime().availableProcessors(), 8));
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 5;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    public interface Callbacks {
+        /**
+         * Called on the thread that called {@link #decodeTiles} once the tile with the given
+         * index has been decoded. Ownership of the bitmap passes to the callee.
+         */
+        void onTileDecoded(int index, Bitmap bitmap);
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS,
+                    WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, "TileDecoder #" + mCount.getAndIncrement());
+                        }
+                    });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Decodes each of the given regions at the given sample size, blocking until all tiles have
+     * been handed to the callbacks. Tiles are delivered in completion order, not index order.
+     * Tiles that fail to decode are skipped. A null config uses the decoder's default. Tiles
+     * are decoded into bitmaps from the given pool where possible, and are left unrotated; see
+     * {@link BitmapRegionLoader#decodeUnrotatedRegion}.
+     */
+    public static void decodeTiles(final BitmapRegionLoader loader, Rect[] regions,
+            final int sampleSize, final Bitmap.Config config, final BitmapPool bitmapPool,
+            Callbacks callbacks) {
+        if (loader == null || regions.length == 0) {
+            return;
+        }
+
+        // Share the original loader as the first decoder, and let each worker that finds no
+        // free decoder open another one itself, so that opening them overlaps with decoding
+        final BlockingQueue<BitmapRegionLoader> decoders = new LinkedBlockingQueue<>();
+        final List<BitmapRegionLoader> siblings = new ArrayList<>();
+        final AtomicInteger siblingsToOpen = new AtomicInteger(
+                Math.min(MAX_WORKERS, regions.length) - 1);
+        final AtomicBoolean finished = new AtomicBoolean();
+        decoders.add(loader);
+
+        CompletionService<Tile> completionService
+                = new ExecutorCompletionService<>(getExecutor());
+        List<Future<Tile>> futures = new ArrayList<>();
+        for (int i = 0; i < regions.length; i++) {
+            final int index = i;
+            final Rect region = new Rect(regions[i]);
+            futures.add(completionService.submit(new Callable<Tile>() {
+                @Override
+                public Tile call() throws Exception {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = sampleSize;
+                    if (config != null) {
+                        options.inPreferredConfig = config;
+                    }
+                    BitmapRegionLoader decoder = decoders.poll();
+                    if (decoder == null && siblingsToOpen.getAndDecrement() > 0) {
+                        decoder = loader.newSibling();
+                        if (decoder == null) {
+                            // Not file-backed, or can't be reopened; don't try again
+                            siblingsToOpen.set(0);
+                        } else {
+                            synchronized (siblings) {
+                                if (finished.get()) {
+                                    // Given up on while this was opening
+                                    decoder.destroy();
+                                    return new Tile(index, null);
+                                }
+                                siblings.add(decoder);
+                            }
+                        }
+                    }
+                    if (decoder == null) {
+                        decoder = decoders.take();
+                    }
+                    try {
+                        return new Tile(index,
+                                decoder.decodeUnrotatedRegion(region, options, bitmapPool));
+                    } finally {
+                        decoders.put(decoder);
+                    }
+                }
+            }));
+        }
+
+        try {
+            for (int i = 0; i < regions.length; i++) {
+                Tile tile;
+                try {
+                    tile = completionService.take().get();
+                } catch (ExecutionException e) {
+                    LOGE(TAG, "Error decoding tile.", e.getCause());
+                    continue;
+                }
+
+                if (tile.mBitmap != null) {
+                    callbacks.onTileDecoded(tile.mIndex, tile.mBitmap);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGE(TAG, "Interrupted while decoding tiles.", e);
+            for (Future<Tile> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+        } finally {
+            // Destroying a loader waits for any in-flight decode on it to finish
+            synchronized (siblings) {
+                for (BitmapRegionLoader sibling : siblings) {
+                    sibling.destroy();
+                }
+                finished.set(true);
+            }
+        }
+    }
+
+    private static class Tile {
+        private final int mIndex;
+        private final Bitmap mBitmap;
+
+        Tile(int index, Bitmap bitmap) {
+            mIndex = index;
+            mBitmap = bitmap;
+        }
+    }
+
+    private TileDecoder() {
+    }
+}
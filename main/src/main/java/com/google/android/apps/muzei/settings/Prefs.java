@@ -23,4 +23,5 @@ public interface Prefs {
     public static final String PREF_GREY_AMOUNT = "grey_amount";
     public static final String PREF_DIM_AMOUNT = "dim_amount";
     public static final String PREF_BLUR_AMOUNT = "blur_amount";
+    public static final String PREF_DEBUG_OVERLAY = "debug_overlay";
 }
@@ -33,6 +33,7 @@ import android.widget.SeekBar;
 import com.google.android.apps.muzei.LockScreenVisibleReceiver;
 import com.google.android.apps.muzei.NewWallpaperNotificationReceiver;
 import com.google.android.apps.muzei.event.BlurAmountChangedEvent;
+import com.google.android.apps.muzei.event.DebugOverlayChangedEvent;
 import com.google.android.apps.muzei.event.DimAmountChangedEvent;
 import com.google.android.apps.muzei.event.GreyAmountChangedEvent;
 import com.google.android.apps.muzei.render.MuzeiBlurRenderer;
@@ -53,6 +54,7 @@ public class SettingsAdvancedFragment extends Fragment
     private SeekBar mGreySeekBar;
     private CheckBox mNotifyNewWallpaperCheckBox;
     private CheckBox mBlurOnLockScreenCheckBox;
+    private CheckBox mDebugOverlayCheckBox;
 
     public SettingsAdvancedFragment() {
     }
@@ -69,8 +71,9 @@ public class SettingsAdvancedFragment extends Fragment
             @Override
             public void onProgressChanged(SeekBar seekBar, int value, boolean fromUser) {
                 if (fromUser) {
+                    // Only the keyframes are regenerated, so a short delay is enough
                     mHandler.removeCallbacks(mUpdateBlurRunnable);
-                    mHandler.postDelayed(mUpdateBlurRunnable, 750);
+                    mHandler.postDelayed(mUpdateBlurRunnable, 150);
                 }
             }
 
@@ -90,8 +93,8 @@ public class SettingsAdvancedFragment extends Fragment
             @Override
             public void onProgressChanged(SeekBar seekBar, int value, boolean fromUser) {
                 if (fromUser) {
-                    mHandler.removeCallbacks(mUpdateDimRunnable);
-                    mHandler.postDelayed(mUpdateDimRunnable, 750);
+                    // Cheap to apply, so follow the slider as it moves
+                    mUpdateDimRunnable.run();
                 }
             }
 
@@ -111,8 +114,8 @@ public class SettingsAdvancedFragment extends Fragment
             @Override
             public void onProgressChanged(SeekBar seekBar, int value, boolean fromUser) {
                 if (fromUser) {
-                    mHandler.removeCallbacks(mUpdateGreyRunnable);
-                    mHandler.postDelayed(mUpdateGreyRunnable, 750);
+                    // Cheap to apply, so follow the slider as it moves
+                    mUpdateGreyRunnable.run();
                 }
             }
 
@@ -154,6 +157,21 @@ public class SettingsAdvancedFragment extends Fragment
         );
         mBlurOnLockScreenCheckBox.setChecked(!getSharedPreferences()
                 .getBoolean(LockScreenVisibleReceiver.PREF_ENABLED, false));
+
+        mDebugOverlayCheckBox = (CheckBox) rootView.findViewById(R.id.debug_overlay_checkbox);
+        mDebugOverlayCheckBox.setOnCheckedChangeListener(
+                new CompoundButton.OnCheckedChangeListener() {
+                    @Override
+                    public void onCheckedChanged(CompoundButton button, boolean checked) {
+                        getSharedPreferences().edit()
+                                .putBoolean(Prefs.PREF_DEBUG_OVERLAY, checked)
+                                .apply();
+                        EventBus.getDefault().post(new DebugOverlayChangedEvent());
+                    }
+                }
+        );
+        mDebugOverlayCheckBox.setChecked(getSharedPreferences()
+                .getBoolean(Prefs.PREF_DEBUG_OVERLAY, false));
         return rootView;
     }
 
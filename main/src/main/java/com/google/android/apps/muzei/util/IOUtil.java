@@ -37,18 +37,24 @@ import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 
 public class IOUtil {
-    private static final int DEFAULT_READ_TIMEOUT = 30; // in seconds
-    private static final int DEFAULT_CONNECT_TIMEOUT = 15; // in seconds
-
     public static InputStream openUri(Context context, Uri uri, String reqContentTypeSubstring)
             throws OpenUriException {
+        return openUri(context, uri, reqContentTypeSubstring, null);
+    }
+
+    /**
+     * Opens the given URI like {@link #openUri(Context, Uri, String)}, but for HTTP URIs, makes
+     * a conditional or resumed request as described by the given request, and fills in its
+     * response fields. Returns null when the server says the content on hand is still current.
+     */
+    public static InputStream openUri(Context context, Uri uri, String reqContentTypeSubstring,
+            ConditionalRequest conditionalRequest) throws OpenUriException {
 
         if (uri == null) {
             throw new IllegalArgumentException("Uri cannot be empty");
@@ -93,23 +99,39 @@ public class IOUtil {
             }
 
         } else if ("http".equals(scheme) || "https".equals(scheme)) {
-            OkHttpClient client = new OkHttpClient.Builder()
-                    .connectTimeout(DEFAULT_CONNECT_TIMEOUT, TimeUnit.SECONDS)
-                    .readTimeout(DEFAULT_READ_TIMEOUT, TimeUnit.SECONDS)
-                    .build();
+            OkHttpClient client = SharedHttpClient.getInstance(context);
             Request request;
             int responseCode = 0;
             String responseMessage = null;
             try {
-                request = new Request.Builder().url(new URL(uri.toString())).build();
+                Request.Builder requestBuilder = new Request.Builder().url(new URL(uri.toString()));
+                if (conditionalRequest != null) {
+                    conditionalRequest.addHeaders(requestBuilder);
+                }
+                request = requestBuilder.build();
             } catch (MalformedURLException e) {
                 throw new OpenUriException(false, e);
             }
 
             try {
                 Response response = client.newCall(request).execute();
+                if (response.code() == 416 && conditionalRequest != null) {
+                    // The partial download can't be resumed, e.g. the content got shorter, so
+                    // start over
+                    response.body().close();
+                    conditionalRequest.mResumeOffset = 0;
+                    request = request.newBuilder()
+                            .removeHeader("Range")
+                            .removeHeader("If-Range")
+                            .build();
+                    response = client.newCall(request).execute();
+                }
                 responseCode = response.code();
                 responseMessage = response.message();
+                if (conditionalRequest != null && !conditionalRequest.readResponse(response)) {
+                    response.body().close();
+                    return null;
+                }
                 if (!(responseCode >= 200 && responseCode < 300)) {
                     throw new IOException("HTTP error response.");
                 }
@@ -141,6 +163,76 @@ public class IOUtil {
         return in;
     }
 
+    /**
+     * Describes the content already on hand for an HTTP request, so that the server can skip
+     * sending it, and receives what the server said about it. Validators are the
+     * <code>ETag</code> and <code>Last-Modified</code> headers of an earlier response for the
+     * same URI.
+     *
+     * <p>With a resume offset, the request asks for the rest of a partial download, if it's
+     * still the same content. Without one, the request revalidates complete content and
+     * {@link #mNotModified} is set if it's still current.
+     */
+    public static class ConditionalRequest {
+        public String mETag;
+        public String mLastModified;
+        public long mResumeOffset;
+
+        // Filled in from the response
+        public boolean mNotModified;
+        public boolean mResumed;
+        public String mResponseETag;
+        public String mResponseLastModified;
+
+        private void addHeaders(Request.Builder requestBuilder) {
+            if (mResumeOffset > 0) {
+                // Weak ETags can't be used to resume, since the bytes may differ
+                String validator = (mETag != null && !mETag.startsWith("W/"))
+                        ? mETag
+                        : mLastModified;
+                if (validator == null) {
+                    mResumeOffset = 0;
+                    return;
+                }
+                requestBuilder.header("Range", "bytes=" + mResumeOffset + "-");
+                requestBuilder.header("If-Range", validator);
+                return;
+            }
+
+            if (mETag != null) {
+                requestBuilder.header("If-None-Match", mETag);
+            }
+            if (mLastModified != null) {
+                requestBuilder.header("If-Modified-Since", mLastModified);
+            }
+        }
+
+        /**
+         * Reads the response fields, returning false if the response has no content to read.
+         */
+        private boolean readResponse(Response response) throws IOException {
+            mResponseETag = response.header("ETag");
+            mResponseLastModified = response.header("Last-Modified");
+            mNotModified = false;
+            mResumed = false;
+            if (response.code() == 304) {
+                mNotModified = true;
+                return false;
+            }
+
+            if (response.code() == 206) {
+                // Only resume at the exact offset asked for
+                String contentRange = response.header("Content-Range");
+                if (mResumeOffset <= 0 || contentRange == null
+                        || !contentRange.startsWith("bytes " + mResumeOffset + "-")) {
+                    throw new IOException("Unexpected Content-Range '" + contentRange + "'.");
+                }
+                mResumed = true;
+            }
+            return true;
+        }
+    }
+
     public static String getCacheFilenameForUri(Uri uri) {
         StringBuilder filename = new StringBuilder();
         filename.append(uri.getScheme()).append("_")
@@ -172,6 +264,40 @@ public class IOUtil {
         return filename.toString();
     }
 
+    /**
+     * Builds a cache key for data derived from the given file and parameters. The file's size
+     * and modification time are included so that a re-downloaded file never matches stale data.
+     */
+    public static String makeDerivedCacheKey(File file, Object... params) {
+        StringBuilder key = new StringBuilder(file.getAbsolutePath())
+                .append(':').append(file.length())
+                .append(':').append(file.lastModified());
+        for (Object param : params) {
+            key.append(':').append(param);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns a filename-safe hash of the given cache key.
+     */
+    public static String getCacheFilenameForKey(String key) {
+        StringBuilder filename = new StringBuilder();
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(key.getBytes("UTF-8"));
+            for (byte b : md.digest()) {
+                if ((0xff & b) < 0x10) {
+                    filename.append("0");
+                }
+                filename.append(Integer.toHexString(0xff & b));
+            }
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            filename.append(key.hashCode());
+        }
+        return filename.toString();
+    }
+
     public static class OpenUriException extends Exception {
         private boolean mRetryable;
 
@@ -191,7 +317,12 @@ public class IOUtil {
     }
 
     public static void readFullyWriteToFile(InputStream in, File file) throws IOException {
-        readFullyWriteToOutputStream(in, new FileOutputStream(file));
+        readFullyWriteToFile(in, file, false);
+    }
+
+    public static void readFullyWriteToFile(InputStream in, File file, boolean append)
+            throws IOException {
+        readFullyWriteToOutputStream(in, new FileOutputStream(file, append));
     }
 
     public static void readFullyWriteToOutputStream(InputStream in, OutputStream out)
@@ -28,6 +28,7 @@ import com.google.android.apps.muzei.api.Artwork;
 import com.google.android.apps.muzei.api.MuzeiContract;
 import com.google.android.apps.muzei.render.BitmapRegionLoader;
 import com.google.android.apps.muzei.render.ImageUtil;
+import com.google.android.apps.muzei.util.BitmapPool;
 import com.google.android.apps.muzei.util.LogUtil;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
@@ -131,10 +132,12 @@ public class WearableController {
         } else {
             options.inSampleSize = ImageUtil.calculateSampleSize(width, 320);
         }
-        Bitmap image = bitmapRegionLoader.decodeRegion(rect, options);
+        BitmapPool bitmapPool = BitmapPool.getInstance(context);
+        Bitmap image = bitmapRegionLoader.decodeRegion(rect, options, bitmapPool);
         if (image != null) {
             final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
             image.compress(Bitmap.CompressFormat.PNG, 100, byteStream);
+            bitmapPool.put(image);
             Asset asset = Asset.createFromBytes(byteStream.toByteArray());
             PutDataMapRequest dataMapRequest = PutDataMapRequest.create("/artwork");
             dataMapRequest.getDataMap().putDataMap("artwork", DataMap.fromBundle(artwork.toBundle()));
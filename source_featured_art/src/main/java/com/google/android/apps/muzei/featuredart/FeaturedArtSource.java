@@ -30,6 +30,7 @@ import android.widget.Toast;
 import com.google.android.apps.muzei.api.Artwork;
 import com.google.android.apps.muzei.api.RemoteMuzeiArtSource;
 import com.google.android.apps.muzei.api.UserCommand;
+import com.google.android.apps.muzei.util.SharedHttpClient;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -250,7 +251,7 @@ public class FeaturedArtSource extends RemoteMuzeiArtSource {
     }
 
     private JSONObject fetchJsonObject(final String url) throws IOException, JSONException {
-        OkHttpClient client = new OkHttpClient.Builder().build();
+        OkHttpClient client = SharedHttpClient.getInstance(this);
 
         Request request = new Request.Builder()
                 .url(url)
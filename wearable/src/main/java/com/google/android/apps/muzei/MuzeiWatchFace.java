@@ -327,10 +327,10 @@ public class MuzeiWatchFace extends CanvasWatchFaceService {
                         (int) (scalingFactor * mBackgroundBitmap.getHeight()),
                         true /* filter */);
             }
-            ImageBlurrer blurrer = new ImageBlurrer(MuzeiWatchFace.this);
+            ImageBlurrer blurrer = ImageBlurrer.acquire(MuzeiWatchFace.this);
             mBackgroundScaledBlurredBitmap = blurrer.blurBitmap(mBackgroundScaledBitmap,
                     ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS / 2, 0f);
-            blurrer.destroy();
+            blurrer.release();
         }
 
         @Override
@@ -144,10 +144,10 @@ public class PanView extends View {
             float scalingFactor = mWidth * 1f / width;
             mScaledImage = Bitmap.createScaledBitmap(mImage, mWidth, (int)(scalingFactor * height), true);
         }
-        ImageBlurrer blurrer = new ImageBlurrer(getContext());
+        ImageBlurrer blurrer = ImageBlurrer.acquire(getContext());
         mBlurredImage = blurrer.blurBitmap(mScaledImage,
                 ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS, 0f);
-        blurrer.destroy();
+        blurrer.release();
         // Center the image
         mOffsetX = (mWidth - mScaledImage.getWidth()) / 2;
         mOffsetY = (mHeight - mScaledImage.getHeight()) / 2;